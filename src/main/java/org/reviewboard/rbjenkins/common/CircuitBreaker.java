@@ -0,0 +1,114 @@
+package org.reviewboard.rbjenkins.common;
+
+/**
+ * Tracks failures talking to a Review Board server, and stops requests from
+ * being sent while the server appears to be down.
+ *
+ * After a number of consecutive failures the breaker opens, and requests
+ * fail immediately instead of waiting for a connection timeout. Once the
+ * open period has passed, a single request is let through as a probe. If it
+ * succeeds the breaker closes again, otherwise it stays open for another
+ * period.
+ */
+public class CircuitBreaker {
+    /**
+     * Enumerates the possible states of the breaker.
+     */
+    public enum State {
+        /** Requests are sent normally. */
+        CLOSED,
+        /** Requests fail immediately. */
+        OPEN,
+        /** A single probe request has been let through. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    /**
+     * Construct the breaker.
+     * @param failureThreshold Number of consecutive failures which open the
+     *                         breaker
+     * @param openMillis Time to wait before probing the server again
+     */
+    public CircuitBreaker(final int failureThreshold, final long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns the current state of the breaker.
+     * @return Breaker state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns whether a request may be sent now.
+     * @return true if the request may be sent
+     */
+    public boolean allowRequest() {
+        return allowRequest(System.currentTimeMillis());
+    }
+
+    synchronized boolean allowRequest(final long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if (now - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records that the server handled a request.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Records that a request ended without a response, for example because
+     * the thread sending it was interrupted. This says nothing about the
+     * server, but if the request was the probe, the breaker goes back to
+     * open so that the next request can probe the server instead.
+     */
+    public synchronized void recordAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * Records that the server could not be reached or failed to handle a
+     * request.
+     */
+    public void recordFailure() {
+        recordFailure(System.currentTimeMillis());
+    }
+
+    synchronized void recordFailure(final long now) {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package org.reviewboard.rbjenkins.common;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+/**
+ * Caches diffs downloaded from Review Board on the controller.
+ *
+ * A diff revision never changes once it has been posted, so every build of
+ * the same revision can share one download. Diffs are stored under
+ * caches/rb-diffs in the Jenkins home directory, named by a SHA-256 hash of
+ * the server URL, review request ID and diff revision. Each diff has a
+ * sidecar file holding the SHA-256 checksum of its contents, which is
+ * checked before the diff is used so that a damaged file is downloaded again
+ * rather than applied.
+ *
+ * The cache is bounded in size. When it grows too large, the least recently
+ * used diffs are removed. Diffs are only read through streams opened by
+ * open(), which are opened before a diff can be removed, so a diff in use
+ * is never removed from under a build.
+ */
+@Extension
+public class DiffCache {
+    private static final Logger LOGGER = Logger.getLogger(DiffCache.class.getName());
+
+    private static final long MAX_SIZE =
+            SystemProperties.getLong(DiffCache.class.getName() + ".maxSize", 256L * 1024 * 1024);
+
+    private static final String CACHE_DIR = "caches/rb-diffs";
+    private static final String DIFF_SUFFIX = ".diff";
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path directory;
+    private final long maxSize;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final Set<String> inUse = new HashSet<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct the cache in the Jenkins home directory.
+     */
+    public DiffCache() {
+        this(Jenkins.get().getRootDir().toPath().resolve(CACHE_DIR), MAX_SIZE);
+    }
+
+    /**
+     * Construct the cache in the given directory.
+     * @param directory Directory to store diffs in
+     * @param maxSize Maximum total size of the cached diffs, in bytes
+     */
+    DiffCache(final Path directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the diff cache for this Jenkins instance.
+     * @return Diff cache
+     */
+    public static DiffCache get() {
+        return ExtensionList.lookupSingleton(DiffCache.class);
+    }
+
+    /**
+     * Makes sure the diff for a review request's diff revision is cached,
+     * downloading it from Review Board if it isn't.
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     */
+    public void fetch(final ReviewBoardServerConfiguration serverConfig, final ReviewRequest reviewRequest)
+            throws IOException, ReviewBoardException, InterruptedException {
+        withDiff(serverConfig, reviewRequest, diff -> null);
+    }
+
+    /**
+     * Opens the cached diff for a review request's diff revision,
+     * downloading it from Review Board first if it isn't cached.
+     *
+     * The stream is opened before the diff can be evicted, so it can be read
+     * to the end even if the diff is removed from the cache in the meantime.
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @return Stream of the diff, which the caller must close
+     */
+    public InputStream open(final ReviewBoardServerConfiguration serverConfig, final ReviewRequest reviewRequest)
+            throws IOException, ReviewBoardException, InterruptedException {
+        return withDiff(serverConfig, reviewRequest, Files::newInputStream);
+    }
+
+    /**
+     * Looks up or downloads a diff, then passes it to a function while it
+     * is protected from eviction.
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @param function Function to call with the path to the cached diff
+     * @return Result of the function
+     */
+    private <T> T withDiff(
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final DiffFunction<T> function)
+            throws IOException, ReviewBoardException, InterruptedException {
+        final String key = getKey(reviewRequest);
+
+        // Locks are striped by key, so that builds of the same revision wait
+        // for a single download rather than each fetching the diff
+        // themselves, without keeping a lock for every revision ever built.
+        final ReentrantLock lock = locks[Math.floorMod(key.hashCode(), locks.length)];
+        lock.lockInterruptibly();
+
+        try {
+            setInUse(key, true);
+
+            try {
+                Path diff = lookup(key);
+
+                if (diff != null) {
+                    hits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    diff = store(key, serverConfig.getClient(), reviewRequest);
+                    evict();
+                }
+
+                return function.apply(diff);
+            } finally {
+                setInUse(key, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks a diff as being looked up or opened, so that it isn't evicted.
+     * @param key Cache key
+     * @param used Whether the diff is in use
+     */
+    private synchronized void setInUse(final String key, final boolean used) {
+        if (used) {
+            inUse.add(key);
+        } else {
+            inUse.remove(key);
+        }
+    }
+
+    /**
+     * Returns the checksum of a cached diff, without downloading it.
+     * @param reviewRequest Review request and diff revision
+     * @return Hex-encoded SHA-256 checksum of the diff, or null if it isn't
+     *         cached
+     */
+    public String getChecksum(final ReviewRequest reviewRequest) {
+        try {
+            return Files.readString(directory.resolve(getKey(reviewRequest) + CHECKSUM_SUFFIX), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of times a diff was found in the cache.
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times a diff had to be downloaded.
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of lookups which were found in the cache.
+     * @return Hit rate between 0 and 1, or 0 if nothing has been looked up
+     */
+    public double getHitRate() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the cache key for a review request's diff revision.
+     * @param reviewRequest Review request
+     * @return Hex-encoded SHA-256 hash identifying the diff
+     */
+    static String getKey(final ReviewRequest reviewRequest) {
+        final String id = String.join(
+                "\n",
+                reviewRequest.getNormalizedServerURL(),
+                Integer.toString(reviewRequest.getReviewId()),
+                Integer.toString(reviewRequest.getRevision()));
+
+        return HexFormat.of().formatHex(newDigest().digest(id.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns the cached diff for the key if it exists and matches its
+     * checksum. A diff which doesn't match is removed.
+     * @param key Cache key
+     * @return Path to the cached diff, or null
+     */
+    private Path lookup(final String key) throws IOException {
+        final Path diff = directory.resolve(key + DIFF_SUFFIX);
+        final Path checksum = directory.resolve(key + CHECKSUM_SUFFIX);
+
+        if (!Files.exists(diff) || !Files.exists(checksum)) {
+            return null;
+        }
+
+        final MessageDigest digest = newDigest();
+
+        try (InputStream in = new DigestInputStream(Files.newInputStream(diff), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+
+        if (!HexFormat.of().formatHex(digest.digest()).equals(Files.readString(checksum, StandardCharsets.UTF_8))) {
+            LOGGER.log(Level.WARNING, "Removing cached diff {0}, which doesn''t match its checksum", diff);
+            Files.deleteIfExists(diff);
+            Files.deleteIfExists(checksum);
+            return null;
+        }
+
+        // The modification time tracks when the diff was last used, for
+        // eviction.
+        Files.setLastModifiedTime(diff, FileTime.fromMillis(System.currentTimeMillis()));
+
+        return diff;
+    }
+
+    /**
+     * Downloads a diff into the cache. The diff is written to a temporary
+     * file and moved into place once complete, so that an interrupted
+     * download is never mistaken for a cached diff.
+     * @param key Cache key
+     * @param client Review Board client
+     * @param reviewRequest Review request and diff revision
+     * @return Path to the cached diff
+     */
+    private Path store(final String key, final ReviewBoardClient client, final ReviewRequest reviewRequest)
+            throws IOException, ReviewBoardException {
+        Files.createDirectories(directory);
+
+        final Path diff = directory.resolve(key + DIFF_SUFFIX);
+        final Path temp = Files.createTempFile(directory, key, ".tmp");
+        final MessageDigest digest = newDigest();
+
+        try {
+            try (InputStream in = new DigestInputStream(
+                    client.openDiff(reviewRequest.getReviewId(), reviewRequest.getRevision()), digest)) {
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            Files.writeString(
+                    directory.resolve(key + CHECKSUM_SUFFIX),
+                    HexFormat.of().formatHex(digest.digest()),
+                    StandardCharsets.UTF_8);
+
+            try {
+                Files.move(temp, diff, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, diff, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        return diff;
+    }
+
+    /**
+     * Removes the least recently used diffs until the cache fits within its
+     * maximum size. The most recently used diff, and diffs being looked up
+     * or opened, are always kept.
+     */
+    private synchronized void evict() {
+        final List<Path> diffs = new ArrayList<>();
+        long totalSize = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + DIFF_SUFFIX)) {
+            for (Path diff : stream) {
+                diffs.add(diff);
+                totalSize += Files.size(diff);
+            }
+
+            diffs.sort(Comparator.comparing(DiffCache::getLastModifiedTime));
+
+            for (int i = 0; i < diffs.size() - 1 && totalSize > maxSize; i++) {
+                final Path diff = diffs.get(i);
+                final String name = diff.getFileName().toString();
+                final String key = name.substring(0, name.length() - DIFF_SUFFIX.length());
+
+                if (inUse.contains(key)) {
+                    continue;
+                }
+
+                final long size = Files.size(diff);
+
+                try {
+                    Files.deleteIfExists(diff);
+                } catch (final IOException e) {
+                    // A diff which can't be deleted right now is left for
+                    // a later eviction.
+                    continue;
+                }
+
+                totalSize -= size;
+                Files.deleteIfExists(diff.resolveSibling(key + CHECKSUM_SUFFIX));
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to evict diffs from the Review Board diff cache", e);
+        }
+    }
+
+    /**
+     * Does something with a cached diff.
+     */
+    private interface DiffFunction<T> {
+        T apply(Path diff) throws IOException;
+    }
+
+    private static FileTime getLastModifiedTime(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (final IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.reviewboard.rbjenkins.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summarizes the files a diff changes and how many lines it adds and removes
+ * in each, for steps which only need to know what changed rather than how.
+ *
+ * The summary is built in one pass over the diff, keeping only the file
+ * headers, so it is cheap even for very large diffs.
+ */
+public final class DiffStats {
+    private final List<FileStats> files;
+
+    private DiffStats(final List<FileStats> files) {
+        this.files = Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Reads the summary of a diff.
+     * @param in Stream to read the diff from
+     * @return Summary of the diff
+     * @throws IOException if the diff can't be read or is malformed
+     */
+    public static DiffStats read(final InputStream in) throws IOException {
+        final List<FileStats> files = new ArrayList<>();
+
+        for (UnifiedDiff.FilePatch patch : UnifiedDiff.parseHeaders(in)) {
+            int added = 0;
+            int removed = 0;
+
+            for (UnifiedDiff.Hunk hunk : patch.getHunks()) {
+                added += hunk.getAddedCount();
+                removed += hunk.getRemovedCount();
+            }
+
+            final char status;
+
+            if (patch.isNewFile()) {
+                status = 'A';
+            } else if (patch.isDeletedFile()) {
+                status = 'D';
+            } else if (patch.isRename()) {
+                status = 'R';
+            } else if (patch.isCopy()) {
+                status = 'C';
+            } else {
+                status = 'M';
+            }
+
+            files.add(new FileStats(
+                    status,
+                    patch.getPath(),
+                    patch.isRename() || patch.isCopy() ? patch.getOldPath() : null,
+                    added,
+                    removed,
+                    patch.isBinary()));
+        }
+
+        return new DiffStats(files);
+    }
+
+    /**
+     * Reads a summary back from its manifest.
+     * @param manifest Manifest returned by {@link #toManifest()}
+     * @return Summary of the diff
+     * @throws IllegalArgumentException if the manifest is malformed
+     */
+    public static DiffStats fromManifest(final String manifest) {
+        final List<FileStats> files = new ArrayList<>();
+
+        for (String line : manifest.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            final String[] fields = line.split("\t", -1);
+
+            if (fields.length < 4 || fields.length > 5 || fields[0].length() != 1) {
+                throw new IllegalArgumentException("Malformed manifest line: " + line);
+            }
+
+            final boolean binary = fields[1].equals("-");
+
+            files.add(new FileStats(
+                    fields[0].charAt(0),
+                    fields[3],
+                    fields.length == 5 ? fields[4] : null,
+                    binary ? 0 : Integer.parseInt(fields[1]),
+                    binary ? 0 : Integer.parseInt(fields[2]),
+                    binary));
+        }
+
+        return new DiffStats(files);
+    }
+
+    /**
+     * Returns the changes to each file, in the order they appear in the diff.
+     * @return Changed files
+     */
+    public List<FileStats> getFiles() {
+        return files;
+    }
+
+    /**
+     * Returns the paths of the changed files. For a renamed file, both the
+     * old and new paths are included. A copied file's source is unchanged,
+     * so only the copy is included.
+     * @return Changed paths
+     */
+    public List<String> getPaths() {
+        final List<String> paths = new ArrayList<>();
+
+        for (FileStats file : files) {
+            if (file.oldPath() != null && file.status() != 'C') {
+                paths.add(file.oldPath());
+            }
+
+            paths.add(file.path());
+        }
+
+        return paths;
+    }
+
+    /**
+     * Returns the number of lines added across all files.
+     * @return Added lines
+     */
+    public int getLinesAdded() {
+        int total = 0;
+
+        for (FileStats file : files) {
+            total += file.added();
+        }
+
+        return total;
+    }
+
+    /**
+     * Returns the number of lines removed across all files.
+     * @return Removed lines
+     */
+    public int getLinesRemoved() {
+        int total = 0;
+
+        for (FileStats file : files) {
+            total += file.removed();
+        }
+
+        return total;
+    }
+
+    /**
+     * Returns the manifest of changed files, with one tab-separated line per
+     * file: the status (A, M, D, R or C), the lines added and removed ("-"
+     * for binary files), and the path. Renamed and copied files are followed
+     * by their old path.
+     * @return Manifest, ending in a newline unless empty
+     */
+    public String toManifest() {
+        final StringBuilder builder = new StringBuilder();
+
+        for (FileStats file : files) {
+            builder.append(file.status())
+                    .append('\t')
+                    .append(file.binary() ? "-" : Integer.toString(file.added()))
+                    .append('\t')
+                    .append(file.binary() ? "-" : Integer.toString(file.removed()))
+                    .append('\t')
+                    .append(file.path());
+
+            if (file.oldPath() != null) {
+                builder.append('\t').append(file.oldPath());
+            }
+
+            builder.append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * The changes to a single file.
+     * @param status A for added, M for modified, D for deleted, R for
+     *        renamed or C for copied
+     * @param path Path of the file, or its old path if deleted
+     * @param oldPath Path the file was renamed or copied from, or null
+     * @param added Lines added
+     * @param removed Lines removed
+     * @param binary Whether the file is binary
+     */
+    public record FileStats(char status, String path, String oldPath, int added, int removed, boolean binary) {}
+}
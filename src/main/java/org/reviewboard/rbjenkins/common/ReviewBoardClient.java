@@ -0,0 +1,337 @@
+package org.reviewboard.rbjenkins.common;
+
+import hudson.ProxyConfiguration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import jenkins.util.SystemProperties;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+/**
+ * Sends requests to the Web API of a single Review Board server.
+ *
+ * Each server configuration owns one client, and each client owns one
+ * HttpClient. The HttpClient keeps a pool of persistent connections to the
+ * server and negotiates HTTP/2 where the server supports it, so repeated
+ * requests reuse an existing connection instead of paying for a new TCP and
+ * TLS handshake every time.
+ *
+ * Requests which fail because the server could not be reached or returned
+ * a 5xx error are retried with jittered exponential backoff, up to the
+ * number of retries set on the server configuration. A circuit breaker
+ * makes requests fail immediately while the server appears to be down.
+ */
+public class ReviewBoardClient {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(
+            SystemProperties.getInteger(ReviewBoardClient.class.getName() + ".connectTimeout", 10));
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(
+            SystemProperties.getInteger(ReviewBoardClient.class.getName() + ".requestTimeout", 30));
+    private static final long RETRY_BASE_DELAY =
+            SystemProperties.getLong(ReviewBoardClient.class.getName() + ".retryBaseDelay", 500L);
+    private static final long RETRY_MAX_DELAY =
+            SystemProperties.getLong(ReviewBoardClient.class.getName() + ".retryMaxDelay", 30000L);
+    private static final int CIRCUIT_BREAKER_THRESHOLD =
+            SystemProperties.getInteger(ReviewBoardClient.class.getName() + ".circuitBreakerThreshold", 5);
+    private static final long CIRCUIT_BREAKER_OPEN_TIME =
+            SystemProperties.getLong(ReviewBoardClient.class.getName() + ".circuitBreakerOpenTime", 60000L);
+
+    private final ReviewBoardServerConfiguration serverConfig;
+    private final HttpClient httpClient;
+    private final CircuitBreaker circuitBreaker =
+            new CircuitBreaker(CIRCUIT_BREAKER_THRESHOLD, CIRCUIT_BREAKER_OPEN_TIME);
+
+    /**
+     * Construct the client for the given server configuration.
+     * @param serverConfig Review Board server configuration
+     */
+    public ReviewBoardClient(final ReviewBoardServerConfiguration serverConfig) {
+        this.serverConfig = Objects.requireNonNull(serverConfig, "serverConfig must not be null");
+        this.httpClient = ProxyConfiguration.newHttpClientBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    /**
+     * Returns the circuit breaker tracking the availability of the server.
+     * @return Circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Updates a status update on a review request.
+     *
+     * @param reviewId Review request ID
+     * @param statusUpdateId Status update ID
+     * @param state Status update state
+     * @param description Status update description
+     * @param url URL to use for the build link, or null
+     * @param urlText Text to use for the build link, or null
+     */
+    public void updateStatusUpdate(
+            final int reviewId,
+            final int statusUpdateId,
+            final ReviewRequest.StatusUpdateState state,
+            final String description,
+            final String url,
+            final String urlText)
+            throws IOException, ReviewBoardException {
+        Objects.requireNonNull(state, "state must not be null");
+        Objects.requireNonNull(description, "description must not be null");
+
+        final String path = String.format("/api/review-requests/%d/status-updates/%d/", reviewId, statusUpdateId);
+
+        String content = String.format(
+                "state=%s&description=%s",
+                URLEncoder.encode(state.toString(), StandardCharsets.UTF_8),
+                URLEncoder.encode(description, StandardCharsets.UTF_8));
+
+        if (url != null) {
+            content += String.format("&url=%s", URLEncoder.encode(url, StandardCharsets.UTF_8));
+        }
+
+        if (urlText != null) {
+            content += String.format("&url_text=%s", URLEncoder.encode(urlText, StandardCharsets.UTF_8));
+        }
+
+        final HttpRequest request = newRequestBuilder(path)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .PUT(HttpRequest.BodyPublishers.ofString(content, StandardCharsets.UTF_8))
+                .build();
+
+        // The body is always consumed, even though we don't use it, so that
+        // the connection is returned to the pool.
+        final int responseCode = execute(request, HttpResponse.BodyHandlers.discarding())
+                .statusCode();
+
+        checkResponseCode(
+                responseCode,
+                "Status Update or Review Request not found",
+                "Review Board API token does not have permission to " + "update Status Update");
+    }
+
+    /**
+     * Opens a stream of the raw diff for a diff revision of a review request.
+     *
+     * The diff is requested with gzip compression and decompressed as it is
+     * read, so it is never held in memory as a whole. The caller must close
+     * the stream.
+     * @param reviewId Review request ID
+     * @param revision Diff revision
+     * @return Stream of the diff's contents
+     */
+    public InputStream openDiff(final int reviewId, final int revision) throws IOException, ReviewBoardException {
+        final String path = String.format("/api/review-requests/%d/diffs/%d/", reviewId, revision);
+
+        // Asking for text/x-patch makes Review Board return the diff itself
+        // rather than the JSON resource describing it.
+        final HttpRequest request = newRequestBuilder(path)
+                .header("Accept", "text/x-patch")
+                .header("Accept-Encoding", "gzip")
+                .GET()
+                .build();
+
+        // Only a successful response's body is streamed. Any other body is
+        // discarded so that the connection is returned to the pool.
+        final HttpResponse.BodyHandler<InputStream> bodyHandler =
+                responseInfo -> responseInfo.statusCode() == HttpURLConnection.HTTP_OK
+                        ? HttpResponse.BodySubscribers.ofInputStream()
+                        : HttpResponse.BodySubscribers.replacing(null);
+        final HttpResponse<InputStream> response = execute(request, bodyHandler);
+
+        checkResponseCode(
+                response.statusCode(),
+                String.format("Diff revision %d of review request %d not found", revision, reviewId),
+                "Review Board API token does not have permission to access the review request");
+
+        final boolean gzipped = response.headers()
+                .firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+
+        if (!gzipped) {
+            return response.body();
+        }
+
+        try {
+            return new GZIPInputStream(response.body());
+        } catch (final IOException e) {
+            response.body().close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the response code of a request, throwing an exception
+     * describing the error if the request didn't succeed.
+     * @param responseCode HTTP response code
+     * @param notFoundMessage Error message to use if the resource isn't found
+     * @param forbiddenMessage Error message to use if access is denied
+     */
+    private static void checkResponseCode(
+            final int responseCode, final String notFoundMessage, final String forbiddenMessage)
+            throws ReviewBoardException {
+        switch (responseCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                throw new ReviewBoardException(notFoundMessage);
+
+            case HttpURLConnection.HTTP_FORBIDDEN:
+                throw new ReviewBoardException(forbiddenMessage);
+
+            case HttpURLConnection.HTTP_UNAUTHORIZED:
+                throw new ReviewBoardException("Review Board API token is invalid");
+
+            default:
+                throw new ReviewBoardException(
+                        String.format("Unhandled response code sent from Review " + "Board: %d", responseCode));
+        }
+    }
+
+    /**
+     * Creates a request builder for the given API path on this server, with
+     * the timeout and authorization already set.
+     * @param path API path, relative to the server's root
+     * @return Request builder
+     */
+    private HttpRequest.Builder newRequestBuilder(final String path) throws IOException, ReviewBoardException {
+        final String token = serverConfig.findReviewBoardAPIToken();
+
+        if (token == null) {
+            throw new ReviewBoardException(String.format(
+                    "No Review Board API token found for credentials ID '%s'", serverConfig.getCredentialsId()));
+        }
+
+        final URL serverBaseUrl = new URL(serverConfig.getReviewBoardURL());
+        final String fullPath = (serverBaseUrl.getPath() + path).replace("//", "/");
+
+        try {
+            return ProxyConfiguration.newHttpRequestBuilder(
+                            new URL(serverBaseUrl, fullPath).toURI())
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Authorization", String.format("token %s", token));
+        } catch (final URISyntaxException e) {
+            throw new IOException("Invalid Review Board URL: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends the request, retrying it while the server is unavailable.
+     *
+     * Connection failures, timeouts and 5xx responses are retried with
+     * exponential backoff and full jitter. Any other response is returned
+     * to the caller to handle.
+     * @param request HTTP request
+     * @param bodyHandler Handler for the response body
+     * @return HTTP response
+     * @throws ReviewBoardUnavailableException if the server was still
+     *         unavailable after the last retry, or the circuit breaker is
+     *         open
+     */
+    private <T> HttpResponse<T> execute(final HttpRequest request, final HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, ReviewBoardException {
+        final int maxRetries = serverConfig.getMaxRetries();
+
+        for (int attempt = 0; ; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new ReviewBoardUnavailableException(String.format(
+                        "Review Board server '%s' is unavailable. Requests will be "
+                                + "retried once it responds again.",
+                        serverConfig.getReviewBoardURL()));
+            }
+
+            ReviewBoardUnavailableException error = null;
+            boolean succeeded = false;
+
+            try {
+                final HttpResponse<T> response = send(request, bodyHandler);
+
+                if (response.statusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    succeeded = true;
+                    return response;
+                }
+
+                error = new ReviewBoardUnavailableException(String.format(
+                        "Review Board returned an error: %d", response.statusCode()));
+            } catch (final ReviewBoardUnavailableException e) {
+                error = e;
+            } finally {
+                // Interruptions and unexpected errors leave no outcome to
+                // record, but must not leave a probe outstanding forever.
+                if (succeeded) {
+                    circuitBreaker.recordSuccess();
+                } else if (error == null) {
+                    circuitBreaker.recordAbandoned();
+                }
+            }
+
+            circuitBreaker.recordFailure();
+
+            if (attempt >= maxRetries) {
+                throw error;
+            }
+
+            try {
+                Thread.sleep(getRetryDelay(attempt));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry Review Board request");
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait before the given retry, picked at random up
+     * to an exponentially increasing limit so that clients don't retry in
+     * lockstep.
+     * @param attempt Number of the attempt which failed, starting at 0
+     * @return Delay in milliseconds
+     */
+    static long getRetryDelay(final int attempt) {
+        final long limit = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(limit + 1);
+    }
+
+    /**
+     * Sends the request, translating connection failures into
+     * ReviewBoardUnavailableExceptions.
+     * @param request HTTP request
+     * @param bodyHandler Handler for the response body
+     * @return HTTP response
+     */
+    private <T> HttpResponse<T> send(final HttpRequest request, final HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, ReviewBoardException {
+        try {
+            return httpClient.send(request, bodyHandler);
+        } catch (final ConnectException e) {
+            throw new ReviewBoardUnavailableException(
+                    "Review Board URL could not be reached. Cause: " + e.getMessage());
+        } catch (final HttpTimeoutException e) {
+            throw new ReviewBoardUnavailableException("Timed out waiting for Review Board. Cause: " + e.getMessage());
+        } catch (final IOException e) {
+            throw new ReviewBoardUnavailableException("Review Board request failed. Cause: " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Review Board");
+        }
+    }
+}
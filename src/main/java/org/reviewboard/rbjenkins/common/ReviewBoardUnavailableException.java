@@ -0,0 +1,17 @@
+package org.reviewboard.rbjenkins.common;
+
+/**
+ * A ReviewBoardUnavailableException is thrown when a Review Board server
+ * could not be reached or failed to handle a request, and the request may
+ * succeed if tried again later.
+ */
+public class ReviewBoardUnavailableException extends ReviewBoardException {
+    /**
+     * Construct the ReviewBoardUnavailableException with the given error
+     * message.
+     * @param message Error message
+     */
+    public ReviewBoardUnavailableException(String message) {
+        super(message);
+    }
+}
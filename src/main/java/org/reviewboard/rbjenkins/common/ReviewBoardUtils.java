@@ -3,11 +3,9 @@ package org.reviewboard.rbjenkins.common;
 import hudson.model.Action;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.List;
 import java.util.Objects;
 import jenkins.model.GlobalConfiguration;
@@ -18,10 +16,10 @@ import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
  * Contains common utility functions.
  */
 public class ReviewBoardUtils {
-    private static final String REVIEWBOARD_DIFF_REVISION = "REVIEWBOARD_DIFF_REVISION";
-    private static final String REVIEWBOARD_REVIEW_ID = "REVIEWBOARD_REVIEW_ID";
-    private static final String REVIEWBOARD_STATUS_UPDATE_ID = "REVIEWBOARD_STATUS_UPDATE_ID";
-    private static final String REVIEWBOARD_SERVER = "REVIEWBOARD_SERVER";
+    public static final String REVIEWBOARD_DIFF_REVISION = "REVIEWBOARD_DIFF_REVISION";
+    public static final String REVIEWBOARD_REVIEW_ID = "REVIEWBOARD_REVIEW_ID";
+    public static final String REVIEWBOARD_STATUS_UPDATE_ID = "REVIEWBOARD_STATUS_UPDATE_ID";
+    public static final String REVIEWBOARD_SERVER = "REVIEWBOARD_SERVER";
 
     /**
      * Parse the review request details from the build parameters.
@@ -82,10 +80,28 @@ public class ReviewBoardUtils {
         Objects.requireNonNull(state, "state must not be null");
         Objects.requireNonNull(description, "description must not be null");
 
-        final String path = String.format(
-                "/api/review-requests/%d/status-updates/%d/",
-                reviewRequest.getReviewId(), reviewRequest.getStatusUpdateId());
+        final ReviewBoardServerConfiguration serverConfig = getServerConfiguration(reviewRequest.getServerURL());
+
+        serverConfig
+                .getClient()
+                .updateStatusUpdate(
+                        reviewRequest.getReviewId(),
+                        reviewRequest.getStatusUpdateId(),
+                        state,
+                        description,
+                        url,
+                        urlText);
+    }
 
+    /**
+     * Fetch the server configuration for the given Review Board server URL.
+     *
+     * @param serverURL Review Board server URL
+     * @return Server configuration
+     * @throws ReviewBoardException if no matching configuration exists
+     */
+    public static ReviewBoardServerConfiguration getServerConfiguration(final URL serverURL)
+            throws ReviewBoardException {
         final ReviewBoardGlobalConfiguration globalConfig =
                 (GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class));
 
@@ -93,66 +109,13 @@ public class ReviewBoardUtils {
             throw new ReviewBoardException("No Review Board server configurations found.");
         }
 
-        final ReviewBoardServerConfiguration serverConfig =
-                globalConfig.getServerConfiguration(reviewRequest.getServerURL());
+        final ReviewBoardServerConfiguration serverConfig = globalConfig.getServerConfiguration(serverURL);
 
         if (serverConfig == null) {
             throw new ReviewBoardException(String.format(
-                    "No Review Board server configuration found " + "for server URL '%s'.",
-                    reviewRequest.getServerURL().toString()));
+                    "No Review Board server configuration found " + "for server URL '%s'.", serverURL.toString()));
         }
 
-        final String token = String.format("token %s", serverConfig.getReviewBoardAPIToken());
-        final URL serverBaseUrl = new URL(serverConfig.getReviewBoardURL());
-        final String fullPath = (serverBaseUrl.getPath() + path).replace("//", "/");
-        final URL serverUrl = new URL(serverBaseUrl, fullPath);
-        final HttpURLConnection conn = (HttpURLConnection) serverUrl.openConnection();
-        conn.setRequestMethod("PUT");
-        conn.setRequestProperty("Authorization", token);
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setDoOutput(true);
-
-        final String utf8 = StandardCharsets.UTF_8.toString();
-        String content = String.format(
-                "state=%s&description=%s",
-                URLEncoder.encode(state.toString(), utf8), URLEncoder.encode(description, utf8));
-
-        if (url != null) {
-            content += String.format("&url=%s", URLEncoder.encode(url, utf8));
-        }
-
-        if (urlText != null) {
-            content += String.format("&url_text=%s", URLEncoder.encode(urlText, utf8));
-        }
-
-        try {
-            final BufferedWriter writer =
-                    new BufferedWriter(new OutputStreamWriter(conn.getOutputStream(), StandardCharsets.UTF_8));
-            writer.write(content);
-            writer.flush();
-            writer.close();
-        } catch (final ConnectException e) {
-            throw new ReviewBoardException("Review Board URL could not be reached. Cause: " + e.getMessage());
-        }
-
-        final int responseCode = conn.getResponseCode();
-        switch (responseCode) {
-            case HttpURLConnection.HTTP_OK:
-                break;
-
-            case HttpURLConnection.HTTP_NOT_FOUND:
-                throw new ReviewBoardException("Status Update or Review Request not found");
-
-            case HttpURLConnection.HTTP_FORBIDDEN:
-                throw new ReviewBoardException(
-                        "Review Board API token does not have permission to " + "update Status Update");
-
-            case HttpURLConnection.HTTP_UNAUTHORIZED:
-                throw new ReviewBoardException("Review Board API token is invalid");
-
-            default:
-                throw new ReviewBoardException(
-                        String.format("Unhandled response code sent from Review " + "Board: %d", responseCode));
-        }
+        return serverConfig;
     }
 }
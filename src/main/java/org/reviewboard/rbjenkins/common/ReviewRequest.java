@@ -1,6 +1,8 @@
 package org.reviewboard.rbjenkins.common;
 
 import java.net.URL;
+import java.util.Objects;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
 
 /**
  * Stores information about the Review Request which triggered the Jenkins
@@ -32,6 +34,15 @@ public class ReviewRequest {
             this.value = value;
         }
 
+        /**
+         * Returns whether this state marks the end of the build, after which
+         * the status update is no longer expected to change.
+         * @return true for any state other than PENDING_STATE
+         */
+        public boolean isTerminal() {
+            return this != PENDING_STATE;
+        }
+
         @Override
         public String toString() {
             return value;
@@ -84,4 +95,55 @@ public class ReviewRequest {
     public URL getServerURL() {
         return serverURL;
     }
+
+    /**
+     * Returns the server URL for the review request, normalized the same way
+     * as when looking up the server's configuration, so that equivalent
+     * spellings of the URL identify the same server.
+     * @return Normalized server URL
+     */
+    public String getNormalizedServerURL() {
+        final String url = serverURL.toExternalForm();
+        final String normalized = ReviewBoardGlobalConfiguration.normalizeURL(url);
+
+        return normalized == null ? url : normalized;
+    }
+
+    /**
+     * Review requests are equal when they refer to the same status update
+     * on the same server and diff revision. The server URL is compared by
+     * its string form, since URL.equals may resolve host names.
+     * @param o Object to compare with
+     * @return true if both refer to the same status update
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof ReviewRequest)) {
+            return false;
+        }
+
+        final ReviewRequest other = (ReviewRequest) o;
+        return reviewId == other.reviewId
+                && revision == other.revision
+                && statusUpdateId == other.statusUpdateId
+                && Objects.equals(getServerURLString(), other.getServerURLString());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(reviewId, revision, statusUpdateId, getServerURLString());
+    }
+
+    private String getServerURLString() {
+        return serverURL == null ? null : serverURL.toExternalForm();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("review request %d status update %d on %s", reviewId, statusUpdateId, serverURL);
+    }
 }
@@ -0,0 +1,110 @@
+package org.reviewboard.rbjenkins.common;
+
+import hudson.Extension;
+import hudson.model.InvisibleAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import java.net.MalformedURLException;
+import java.util.List;
+
+/**
+ * Records the review request a build is for, parsed once from its
+ * parameters, so that each Review Board step can look it up without
+ * scanning every parameter of the build again.
+ *
+ * The action is attached when a build with Review Board parameters is
+ * created, or otherwise the first time a step looks it up. Parameters which
+ * can't be parsed are recorded as an error, which each step reports in the
+ * same way. Missing parameters are left as -1 or null, since the steps need
+ * different parameters.
+ */
+public class ReviewRequestAction extends InvisibleAction {
+    private final ReviewRequest reviewRequest;
+    private final String error;
+
+    private ReviewRequestAction(final ReviewRequest reviewRequest, final String error) {
+        this.reviewRequest = reviewRequest;
+        this.error = error;
+    }
+
+    /**
+     * Returns the review request for a build, parsing it from the build's
+     * parameters and attaching it to the build the first time.
+     * @param run Build
+     * @return Review request action
+     */
+    public static ReviewRequestAction get(final Run<?, ?> run) {
+        ReviewRequestAction action = run.getAction(ReviewRequestAction.class);
+
+        if (action == null) {
+            action = parse(run.getActions(ParametersAction.class));
+            run.addOrReplaceAction(action);
+        }
+
+        return action;
+    }
+
+    /**
+     * Parses the review request from a build's parameters.
+     * @param actions Parameters of the build
+     * @return Review request action
+     */
+    static ReviewRequestAction parse(final List<ParametersAction> actions) {
+        try {
+            return new ReviewRequestAction(ReviewBoardUtils.parseReviewRequestFromParameters(actions), null);
+        } catch (final MalformedURLException e) {
+            return new ReviewRequestAction(null, "URL provided in REVIEWBOARD_SERVER is not a valid URL.");
+        } catch (final NumberFormatException e) {
+            return new ReviewRequestAction(
+                    null,
+                    "REVIEWBOARD_REVIEW_ID, REVIEWBOARD_DIFF_REVISION and REVIEWBOARD_STATUS_UPDATE_ID must be "
+                            + "numbers: "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the review request, in which missing IDs are -1 and a missing
+     * server URL is null.
+     * @return Review request, or null if the parameters couldn't be parsed
+     */
+    public ReviewRequest getReviewRequest() {
+        return reviewRequest;
+    }
+
+    /**
+     * Returns why the parameters couldn't be parsed.
+     * @return Error message, or null if they were parsed
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Attaches the review request to builds with Review Board parameters as
+     * soon as they are created.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onInitialize(final Run<?, ?> run) {
+            if (hasReviewBoardParameters(run) && run.getAction(ReviewRequestAction.class) == null) {
+                run.addAction(parse(run.getActions(ParametersAction.class)));
+            }
+        }
+
+        private static boolean hasReviewBoardParameters(final Run<?, ?> run) {
+            for (ParametersAction action : run.getActions(ParametersAction.class)) {
+                for (ParameterValue value : action.getParameters()) {
+                    if (value.getName().startsWith("REVIEWBOARD_")) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+}
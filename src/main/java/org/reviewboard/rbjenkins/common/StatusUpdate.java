@@ -0,0 +1,141 @@
+package org.reviewboard.rbjenkins.common;
+
+import java.util.Objects;
+
+/**
+ * Stores a pending change to a status update on a review request.
+ */
+public class StatusUpdate {
+    private final ReviewRequest reviewRequest;
+    private final ReviewRequest.StatusUpdateState state;
+    private final String description;
+    private final String url;
+    private final String urlText;
+    private final long created;
+
+    /**
+     * Construct the status update with the given details.
+     * @param reviewRequest Review request the status update belongs to
+     * @param state Status update state
+     * @param description Status update description
+     * @param url URL to use for the build link, or null
+     * @param urlText Text to use for the build link, or null
+     */
+    public StatusUpdate(
+            final ReviewRequest reviewRequest,
+            final ReviewRequest.StatusUpdateState state,
+            final String description,
+            final String url,
+            final String urlText) {
+        this(reviewRequest, state, description, url, urlText, System.currentTimeMillis());
+    }
+
+    /**
+     * Construct the status update with the given details, made at the given
+     * time.
+     * @param reviewRequest Review request the status update belongs to
+     * @param state Status update state
+     * @param description Status update description
+     * @param url URL to use for the build link, or null
+     * @param urlText Text to use for the build link, or null
+     * @param created Time the update was made, in milliseconds since the
+     *        epoch
+     */
+    StatusUpdate(
+            final ReviewRequest reviewRequest,
+            final ReviewRequest.StatusUpdateState state,
+            final String description,
+            final String url,
+            final String urlText,
+            final long created) {
+        this.reviewRequest = Objects.requireNonNull(reviewRequest, "reviewRequest must not be null");
+        this.state = Objects.requireNonNull(state, "state must not be null");
+        this.description = Objects.requireNonNull(description, "description must not be null");
+        this.url = url;
+        this.urlText = urlText;
+        this.created = created;
+    }
+
+    /**
+     * Returns the review request the status update belongs to.
+     * @return Review request
+     */
+    public ReviewRequest getReviewRequest() {
+        return reviewRequest;
+    }
+
+    /**
+     * Returns the state to set on the status update.
+     * @return Status update state
+     */
+    public ReviewRequest.StatusUpdateState getState() {
+        return state;
+    }
+
+    /**
+     * Returns the description to set on the status update.
+     * @return Status update description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the URL to use for the build link.
+     * @return Build link URL, or null
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the text to use for the build link.
+     * @return Build link text, or null
+     */
+    public String getUrlText() {
+        return urlText;
+    }
+
+    /**
+     * Returns the time the update was made.
+     * @return Time in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns whether this update may replace an earlier update to the same
+     * status update. A build can't go back to pending once it has finished,
+     * so a pending state only replaces a terminal one made before it, which
+     * happens when Review Board runs the build again with the same status
+     * update.
+     * @param existing Earlier update
+     * @return true if this update should replace the earlier one
+     */
+    public boolean canReplace(final StatusUpdate existing) {
+        return !existing.getState().isTerminal() || state.isTerminal() || created > existing.getCreated();
+    }
+
+    /**
+     * Returns this update with the build link of an earlier update it
+     * replaces, if this update has no link of its own. Otherwise a link sent
+     * with a pending update would be lost when a terminal update without one
+     * replaces it before it is sent. The link of a finished build is never
+     * carried over to a pending update for the next one.
+     * @param existing Earlier update
+     * @return Update to send in place of both
+     */
+    public StatusUpdate withLinkFrom(final StatusUpdate existing) {
+        if (url != null || existing.getUrl() == null || existing.getState().isTerminal() && !state.isTerminal()) {
+            return this;
+        }
+
+        return new StatusUpdate(reviewRequest, state, description, existing.getUrl(), existing.getUrlText(), created);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s: %s)", reviewRequest, state, description);
+    }
+}
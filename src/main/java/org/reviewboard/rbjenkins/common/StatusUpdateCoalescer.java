@@ -0,0 +1,166 @@
+package org.reviewboard.rbjenkins.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tracks queued status updates for each review request so that only the
+ * newest state of a status update is sent.
+ *
+ * At most one update per review request is queued or being sent at a time.
+ * Updates offered while another is queued replace it, and updates offered
+ * while one is being sent are held until it finishes. A pending state only
+ * replaces a terminal state that is queued or being sent if it was made
+ * after it, by a new run, and updates which match the last one sent are not
+ * sent again. An update replacing a queued
+ * one keeps its build link if it has none of its own.
+ */
+public class StatusUpdateCoalescer {
+    private static final int MAX_SENT_ENTRIES = 10000;
+
+    private final Map<ReviewRequest, Slot> queued = new HashMap<>();
+    private final Map<ReviewRequest, StatusUpdate> sending = new HashMap<>();
+    private final Map<ReviewRequest, StatusUpdate> lastSent =
+            new LinkedHashMap<ReviewRequest, StatusUpdate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<ReviewRequest, StatusUpdate> eldest) {
+                    return size() > MAX_SENT_ENTRIES;
+                }
+            };
+
+    /**
+     * A queued status update, along with the futures of every update it
+     * has replaced.
+     */
+    public static final class Slot {
+        private StatusUpdate update;
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+        private Slot(final StatusUpdate update) {
+            this.update = update;
+        }
+
+        /**
+         * Returns the status update to send.
+         * @return Status update
+         */
+        public StatusUpdate getUpdate() {
+            return update;
+        }
+
+        /**
+         * Completes the futures of this update and every update it replaced.
+         * @param error Error which prevented the update being sent, or null
+         */
+        public void complete(final Throwable error) {
+            for (CompletableFuture<Void> waiter : waiters) {
+                if (error == null) {
+                    waiter.complete(null);
+                } else {
+                    waiter.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a status update.
+     * @param update Status update to queue
+     * @param future Future to complete once the update, or the update
+     *               replacing it, has been sent
+     * @return true if the caller must schedule a call to take() for this
+     *         review request, or false if one is already scheduled
+     */
+    public synchronized boolean offer(final StatusUpdate update, final CompletableFuture<Void> future) {
+        final ReviewRequest key = update.getReviewRequest();
+        final Slot slot = queued.get(key);
+
+        if (slot != null) {
+            if (update.canReplace(slot.update)) {
+                slot.update = update.withLinkFrom(slot.update);
+            }
+
+            slot.waiters.add(future);
+            return false;
+        }
+
+        final StatusUpdate inFlight = sending.get(key);
+
+        if (inFlight != null && !update.canReplace(inFlight)) {
+            future.complete(null);
+            return false;
+        }
+
+        final Slot newSlot = new Slot(update);
+        newSlot.waiters.add(future);
+        queued.put(key, newSlot);
+
+        return inFlight == null;
+    }
+
+    /**
+     * Takes the queued update for the review request and marks it as being
+     * sent.
+     * @param key Review request
+     * @return Queued update, or null if there is none
+     */
+    public synchronized Slot take(final ReviewRequest key) {
+        final Slot slot = queued.remove(key);
+
+        if (slot != null) {
+            sending.put(key, slot.update);
+        }
+
+        return slot;
+    }
+
+    /**
+     * Returns whether the update is the same as the last one sent for its
+     * review request, in which case it doesn't need to be sent again.
+     * @param update Status update
+     * @return true if the update matches the last one sent
+     */
+    public synchronized boolean isAlreadySent(final StatusUpdate update) {
+        final StatusUpdate sent = lastSent.get(update.getReviewRequest());
+
+        return sent != null
+                && sent.getState() == update.getState()
+                && sent.getDescription().equals(update.getDescription())
+                && Objects.equals(sent.getUrl(), update.getUrl())
+                && Objects.equals(sent.getUrlText(), update.getUrlText());
+    }
+
+    /**
+     * Returns whether an update for the review request is queued or being
+     * sent.
+     * @param key Review request
+     * @return true if an update is queued or being sent
+     */
+    public synchronized boolean isActive(final ReviewRequest key) {
+        return queued.containsKey(key) || sending.containsKey(key);
+    }
+
+    /**
+     * Finishes sending an update taken with take().
+     * @param slot Slot returned by take()
+     * @param sent true if Review Board accepted the update
+     * @return true if another update was queued for the review request in
+     *         the meantime, in which case the caller must schedule another
+     *         call to take()
+     */
+    public synchronized boolean finish(final Slot slot, final boolean sent) {
+        final ReviewRequest key = slot.update.getReviewRequest();
+        sending.remove(key);
+
+        if (sent) {
+            lastSent.put(key, slot.update);
+        }
+
+        return queued.containsKey(key);
+    }
+}
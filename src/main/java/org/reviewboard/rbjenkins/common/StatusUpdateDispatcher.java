@@ -0,0 +1,246 @@
+package org.reviewboard.rbjenkins.common;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Sends status updates to Review Board in the background, so that builds
+ * don't hold on to their executor while waiting for Review Board to respond.
+ *
+ * Updates are queued and sent by a small pool of worker threads shared by
+ * the whole controller. When the queue is full, the caller sends the update
+ * itself, which slows down producers rather than dropping updates.
+ *
+ * Updates for the same review request are coalesced, so that a burst of
+ * changes to one status update results in a single request carrying the
+ * newest state. See {@link StatusUpdateCoalescer} for the rules.
+ *
+ * Every update is also recorded in a {@link StatusUpdateOutbox} until it has
+ * been handled. Updates which fail because Review Board is unavailable stay
+ * there and are retried by {@link StatusUpdateOutboxWork}, including after a
+ * restart. Updates still queued when Jenkins shuts down are given a chance
+ * to be sent before it exits, and updates submitted after that are left in
+ * the outbox for the next start.
+ */
+@Extension
+public class StatusUpdateDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(StatusUpdateDispatcher.class.getName());
+
+    private static final int THREADS =
+            SystemProperties.getInteger(StatusUpdateDispatcher.class.getName() + ".threads", 4);
+    private static final int QUEUE_SIZE =
+            SystemProperties.getInteger(StatusUpdateDispatcher.class.getName() + ".queueSize", 1000);
+    private static final int SHUTDOWN_FLUSH_TIMEOUT =
+            SystemProperties.getInteger(StatusUpdateDispatcher.class.getName() + ".shutdownFlushTimeout", 30);
+
+    private static final String OUTBOX_FILENAME = "reviewboard-outbox.journal";
+
+    private final ThreadPoolExecutor executor;
+    private final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+    private final StatusUpdateOutbox outbox;
+
+    /**
+     * Construct the dispatcher and its worker pool.
+     */
+    public StatusUpdateDispatcher() {
+        executor = new ThreadPoolExecutor(
+                THREADS,
+                THREADS,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Review Board status update dispatcher"),
+                StatusUpdateDispatcher::rejected);
+        executor.allowCoreThreadTimeOut(true);
+        outbox = new StatusUpdateOutbox(
+                new File(Jenkins.get().getRootDir(), OUTBOX_FILENAME).toPath());
+    }
+
+    /**
+     * Handles a task which the worker pool can't accept. While the pool is
+     * running, this means the queue is full, so the task runs on the calling
+     * thread. Once the pool has shut down, the task is rejected.
+     * @param task Task to run
+     * @param pool Worker pool
+     */
+    private static void rejected(final Runnable task, final ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("The Review Board status update dispatcher has shut down");
+        }
+
+        task.run();
+    }
+
+    /**
+     * Returns the dispatcher for this Jenkins instance.
+     * @return Status update dispatcher
+     */
+    public static StatusUpdateDispatcher get() {
+        return ExtensionList.lookupSingleton(StatusUpdateDispatcher.class);
+    }
+
+    /**
+     * Queues a status update to be sent to Review Board.
+     *
+     * This returns immediately unless the queue is full, in which case the
+     * update is sent on the calling thread.
+     * @param update Status update to send
+     * @return Future which completes once Review Board has accepted the
+     *         update, or completes exceptionally if it could not be sent or
+     *         Jenkins is shutting down
+     */
+    public CompletableFuture<Void> submit(final StatusUpdate update) {
+        outbox.add(update);
+        return enqueue(update);
+    }
+
+    /**
+     * Queues any updates left in the outbox which are not already queued or
+     * being sent.
+     * @return Number of updates queued
+     */
+    public int retryPending() {
+        int count = 0;
+
+        for (StatusUpdate update : outbox.getPending()) {
+            if (!coalescer.isActive(update.getReviewRequest())) {
+                enqueue(update);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Queues a status update which has already been added to the outbox.
+     * @param update Status update to send
+     * @return Future which completes once the update has been handled
+     */
+    private CompletableFuture<Void> enqueue(final StatusUpdate update) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        if (coalescer.offer(update, future)) {
+            schedule(update.getReviewRequest());
+        }
+
+        return future;
+    }
+
+    /**
+     * Schedules the queued update for the review request to be sent.
+     * @param key Review request
+     */
+    private void schedule(final ReviewRequest key) {
+        try {
+            executor.execute(() -> drain(key));
+        } catch (final RejectedExecutionException e) {
+            // Jenkins is shutting down. The update stays in the outbox and
+            // is sent after the next start.
+            final StatusUpdateCoalescer.Slot slot = coalescer.take(key);
+
+            if (slot != null) {
+                coalescer.finish(slot, false);
+                slot.complete(e);
+            }
+        }
+    }
+
+    /**
+     * Sends the newest queued update for the review request, unless it
+     * matches the last update sent.
+     * @param key Review request
+     */
+    private void drain(final ReviewRequest key) {
+        final StatusUpdateCoalescer.Slot slot = coalescer.take(key);
+
+        if (slot == null) {
+            return;
+        }
+
+        final StatusUpdate update = slot.getUpdate();
+        Exception error = null;
+
+        try {
+            if (!coalescer.isAlreadySent(update)) {
+                send(update);
+            }
+        } catch (final Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to send status update " + update + " to Review Board", e);
+            error = e;
+        }
+
+        // Updates which failed because Review Board is unavailable stay in
+        // the outbox to be retried later. Any other failure won't be fixed
+        // by retrying.
+        if (!(error instanceof ReviewBoardUnavailableException)) {
+            outbox.remove(update);
+        }
+
+        final boolean more = coalescer.finish(slot, error == null);
+        slot.complete(error);
+
+        if (more) {
+            schedule(key);
+        }
+    }
+
+    /**
+     * Sends the status update to Review Board.
+     * @param update Status update to send
+     */
+    private void send(final StatusUpdate update) throws Exception {
+        ReviewBoardUtils.updateStatusUpdate(
+                update.getReviewRequest(),
+                update.getState(),
+                update.getDescription(),
+                update.getUrl(),
+                update.getUrlText());
+    }
+
+    /**
+     * Stops accepting work and waits for queued updates to be sent, up to
+     * the configured flush timeout.
+     */
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+
+        if (SHUTDOWN_FLUSH_TIMEOUT <= 0 || !executor.awaitTermination(SHUTDOWN_FLUSH_TIMEOUT, TimeUnit.SECONDS)) {
+            final List<Runnable> dropped = executor.shutdownNow();
+
+            if (!dropped.isEmpty()) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "{0} Review Board status updates were not sent before shutdown, and will be "
+                                + "retried after the next start",
+                        dropped.size());
+            }
+        }
+
+        // Anything which wasn't sent is still in the outbox, and will be sent
+        // after the next start.
+        outbox.close();
+    }
+
+    /**
+     * Flushes queued status updates when Jenkins shuts down.
+     */
+    @Terminator
+    public static void flushOnShutdown() throws InterruptedException {
+        get().shutdown();
+    }
+}
@@ -0,0 +1,412 @@
+package org.reviewboard.rbjenkins.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Stores status updates which have not yet reached Review Board, so that
+ * they can be sent after a controller restart or a Review Board outage.
+ *
+ * The outbox is an append-only journal with one line per record. Adding an
+ * update appends an "A" record and removing it appends a "D" record, so the
+ * write path is a single sequential append. Writes are flushed to disk in
+ * batches, and the journal is rewritten with only the live entries once
+ * enough dead records have built up.
+ *
+ * Only the newest update for each review request is kept, following the
+ * same rules as {@link StatusUpdateCoalescer}. Updates which still haven't
+ * been sent after a maximum age are dropped, so that an update to a build
+ * long since replaced isn't sent once Review Board is back.
+ */
+public class StatusUpdateOutbox {
+    private static final Logger LOGGER = Logger.getLogger(StatusUpdateOutbox.class.getName());
+
+    private static final long FSYNC_INTERVAL =
+            SystemProperties.getLong(StatusUpdateOutbox.class.getName() + ".fsyncInterval", 1000L);
+    private static final int COMPACTION_THRESHOLD =
+            SystemProperties.getInteger(StatusUpdateOutbox.class.getName() + ".compactionThreshold", 1000);
+    private static final long MAX_AGE = SystemProperties.getLong(
+            StatusUpdateOutbox.class.getName() + ".maxAge", TimeUnit.DAYS.toMillis(1));
+
+    private static final String ADD_RECORD = "A";
+    private static final String DELETE_RECORD = "D";
+    private static final String SEPARATOR = "\t";
+
+    private final Path journal;
+    private final Map<ReviewRequest, Entry> entries = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long nextSequence = 1;
+    private int deadRecords = 0;
+    private boolean dirty = false;
+    private ScheduledFuture<?> syncTask;
+
+    /**
+     * A live entry in the journal.
+     */
+    private static final class Entry {
+        private final long sequence;
+        private final StatusUpdate update;
+
+        private Entry(final long sequence, final StatusUpdate update) {
+            this.sequence = sequence;
+            this.update = update;
+        }
+    }
+
+    /**
+     * Construct the outbox, loading any entries left in the journal.
+     *
+     * If the journal can't be opened, the outbox still tracks entries in
+     * memory, but they will not survive a restart.
+     * @param journal Path to the journal file
+     */
+    public StatusUpdateOutbox(final Path journal) {
+        this.journal = journal;
+
+        try {
+            replay();
+            open();
+        } catch (final IOException e) {
+            LOGGER.log(
+                    Level.WARNING,
+                    "Unable to open the Review Board status update outbox at " + journal
+                            + ". Status updates will not survive a restart.",
+                    e);
+        }
+
+        syncTask = Timer.get().scheduleWithFixedDelay(this::sync, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a status update to the outbox, replacing any earlier update for
+     * the same review request.
+     * @param update Status update
+     */
+    public synchronized void add(final StatusUpdate update) {
+        final ReviewRequest key = update.getReviewRequest();
+        final Entry existing = entries.get(key);
+
+        if (existing != null) {
+            if (!update.canReplace(existing.update)) {
+                return;
+            }
+
+            deadRecords++;
+        }
+
+        final Entry entry = new Entry(nextSequence++, update);
+        entries.put(key, entry);
+        write(encode(entry));
+    }
+
+    /**
+     * Removes a status update from the outbox once it has been handled. If
+     * the update has since been replaced by a newer one, nothing is removed.
+     * @param update Status update
+     */
+    public synchronized void remove(final StatusUpdate update) {
+        final ReviewRequest key = update.getReviewRequest();
+        final Entry entry = entries.get(key);
+
+        if (entry == null || entry.update != update) {
+            return;
+        }
+
+        entries.remove(key);
+        write(DELETE_RECORD + SEPARATOR + entry.sequence);
+
+        // Both the add and delete records are now dead.
+        deadRecords += 2;
+
+        if (deadRecords >= COMPACTION_THRESHOLD && deadRecords > entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the status updates which are still waiting to be sent,
+     * dropping any older than the maximum age.
+     * @return Pending status updates, oldest first
+     */
+    public synchronized List<StatusUpdate> getPending() {
+        final long oldest = System.currentTimeMillis() - MAX_AGE;
+        final List<StatusUpdate> result = new ArrayList<>(entries.size());
+
+        for (Entry entry : List.copyOf(entries.values())) {
+            if (entry.update.getCreated() < oldest) {
+                LOGGER.warning("Dropping the Review Board status update " + entry.update
+                        + ", which could not be sent within " + TimeUnit.MILLISECONDS.toMinutes(MAX_AGE) + " minutes");
+                remove(entry.update);
+            } else {
+                result.add(entry.update);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Flushes any records written since the last flush to disk.
+     */
+    public synchronized void sync() {
+        if (!dirty || channel == null) {
+            return;
+        }
+
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to flush the Review Board status update outbox", e);
+        }
+    }
+
+    /**
+     * Flushes and closes the journal.
+     */
+    public synchronized void close() {
+        syncTask.cancel(false);
+        sync();
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close the Review Board status update outbox", e);
+            }
+
+            channel = null;
+        }
+    }
+
+    /**
+     * Loads the live entries from the journal. A partially written final
+     * line, or any other line that can't be parsed, is skipped.
+     */
+    private void replay() throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+
+        final Map<Long, ReviewRequest> keysBySequence = new HashMap<>();
+        int records = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(SEPARATOR, -1);
+
+                try {
+                    final long sequence = Long.parseLong(fields[1]);
+                    nextSequence = Math.max(nextSequence, sequence + 1);
+
+                    if (ADD_RECORD.equals(fields[0])) {
+                        final StatusUpdate update = decode(fields);
+                        final ReviewRequest key = update.getReviewRequest();
+                        entries.remove(key);
+                        entries.put(key, new Entry(sequence, update));
+                        keysBySequence.put(sequence, key);
+                    } else if (DELETE_RECORD.equals(fields[0])) {
+                        final ReviewRequest key = keysBySequence.remove(sequence);
+                        final Entry entry = key == null ? null : entries.get(key);
+
+                        if (entry != null && entry.sequence == sequence) {
+                            entries.remove(key);
+                        }
+                    } else {
+                        continue;
+                    }
+
+                    records++;
+                } catch (final IllegalArgumentException | IndexOutOfBoundsException | MalformedURLException e) {
+                    LOGGER.log(Level.FINE, "Skipping unreadable outbox record: " + line, e);
+                }
+            }
+        }
+
+        deadRecords = records - entries.size();
+    }
+
+    /**
+     * Opens the journal for appending.
+     */
+    private void open() throws IOException {
+        Files.createDirectories(journal.getParent());
+        channel = FileChannel.open(
+                journal,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+
+        // Terminate a partially written final line, so that it doesn't run
+        // into the next record.
+        final long size = channel.size();
+
+        if (size > 0) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+
+            if (last.get(0) != '\n') {
+                write("");
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the journal. The record is flushed to disk by the
+     * next sync().
+     * @param record Record to append, without a line terminator
+     */
+    private void write(final String record) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            dirty = true;
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write to the Review Board status update outbox", e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live entries, replacing the old
+     * journal atomically.
+     */
+    private void compact() {
+        if (channel == null) {
+            return;
+        }
+
+        final Path compacted = journal.resolveSibling(journal.getFileName() + ".tmp");
+
+        try {
+            try (FileChannel out = FileChannel.open(
+                    compacted,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                final StringBuilder records = new StringBuilder();
+
+                for (Entry entry : entries.values()) {
+                    records.append(encode(entry)).append('\n');
+                }
+
+                final ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+
+                out.force(false);
+            }
+
+            channel.close();
+
+            try {
+                Files.move(
+                        compacted, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            deadRecords = 0;
+            dirty = false;
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to compact the Review Board status update outbox", e);
+        }
+
+        try {
+            open();
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to reopen the Review Board status update outbox", e);
+            channel = null;
+        }
+    }
+
+    /**
+     * Encodes an entry as an add record. Each field is URL-encoded so that
+     * it can't contain the separator or a line break.
+     * @param entry Entry to encode
+     * @return Encoded record
+     */
+    private static String encode(final Entry entry) {
+        final StatusUpdate update = entry.update;
+        final ReviewRequest reviewRequest = update.getReviewRequest();
+
+        return String.join(
+                SEPARATOR,
+                ADD_RECORD,
+                Long.toString(entry.sequence),
+                encodeField(reviewRequest.getServerURL().toExternalForm()),
+                Integer.toString(reviewRequest.getReviewId()),
+                Integer.toString(reviewRequest.getRevision()),
+                Integer.toString(reviewRequest.getStatusUpdateId()),
+                update.getState().name(),
+                encodeField(update.getDescription()),
+                encodeField(update.getUrl()),
+                encodeField(update.getUrlText()),
+                Long.toString(update.getCreated()));
+    }
+
+    /**
+     * Decodes a status update from the fields of an add record. Records
+     * written before the creation time was recorded are treated as new.
+     * @param fields Record fields
+     * @return Status update
+     */
+    private static StatusUpdate decode(final String[] fields) throws MalformedURLException {
+        final ReviewRequest reviewRequest = new ReviewRequest(
+                Integer.parseInt(fields[3]),
+                Integer.parseInt(fields[4]),
+                Integer.parseInt(fields[5]),
+                new URL(decodeField(fields[2])));
+
+        return new StatusUpdate(
+                reviewRequest,
+                ReviewRequest.StatusUpdateState.valueOf(fields[6]),
+                URLDecoder.decode(fields[7], StandardCharsets.UTF_8),
+                decodeField(fields[8]),
+                decodeField(fields[9]),
+                fields.length > 10 ? Long.parseLong(fields[10]) : System.currentTimeMillis());
+    }
+
+    private static String encodeField(final String value) {
+        return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String decodeField(final String value) {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,39 @@
+package org.reviewboard.rbjenkins.common;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+
+/**
+ * Periodically retries status updates left in the outbox, such as those
+ * which failed while Review Board was unavailable or were still waiting to
+ * be sent when Jenkins last shut down.
+ */
+@Extension
+public class StatusUpdateOutboxWork extends AsyncPeriodicWork {
+    private static final long RECURRENCE_PERIOD = SystemProperties.getLong(
+            StatusUpdateOutboxWork.class.getName() + ".recurrencePeriod", TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * Constructs the periodic work.
+     */
+    public StatusUpdateOutboxWork() {
+        super("Review Board status update outbox");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(final TaskListener listener) {
+        final int count = StatusUpdateDispatcher.get().retryPending();
+
+        if (count > 0) {
+            listener.getLogger().printf("Retrying %d Review Board status updates%n", count);
+        }
+    }
+}
@@ -0,0 +1,744 @@
+package org.reviewboard.rbjenkins.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses unified diffs, including the extended headers written by git.
+ *
+ * Diffs are read one line at a time from a stream, so the whole diff never
+ * needs to be held in memory as text. Lines are decoded as ISO-8859-1, which
+ * maps every byte to one character, so files in any encoding survive being
+ * patched unchanged. Line endings other than the final newline, such as a
+ * carriage return, are kept as part of each line.
+ *
+ * File paths are the exception: as git does, they are read as UTF-8, after
+ * undoing the C-style quoting git uses for names with special characters,
+ * such as "a/caf\303\251.txt".
+ */
+public final class UnifiedDiff {
+    private static final String DEV_NULL = "/dev/null";
+    private static final String NO_NEWLINE_MARKER = "\\";
+    private static final Pattern HUNK_HEADER =
+            Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*", Pattern.DOTALL);
+
+    private UnifiedDiff() {}
+
+    /**
+     * The changes to a single file.
+     */
+    public static final class FilePatch {
+        private String oldPath;
+        private String newPath;
+        private String oldMode;
+        private String newMode;
+        private boolean git;
+        private boolean copy;
+        private boolean binary;
+        private final List<Hunk> hunks = new ArrayList<>();
+
+        /**
+         * Returns the path of the file before the change, relative to the
+         * root of the repository.
+         * @return Old path, or null if the file is added
+         */
+        public String getOldPath() {
+            return oldPath;
+        }
+
+        /**
+         * Returns the path of the file after the change, relative to the
+         * root of the repository.
+         * @return New path, or null if the file is deleted
+         */
+        public String getNewPath() {
+            return newPath;
+        }
+
+        /**
+         * Returns the path of the file, which is the new path unless the
+         * file is deleted.
+         * @return Path of the file
+         */
+        public String getPath() {
+            return newPath == null ? oldPath : newPath;
+        }
+
+        /**
+         * Returns the git file mode before the change, such as 100644 for a
+         * regular file.
+         * @return Old mode, or null if the diff doesn't give one
+         */
+        public String getOldMode() {
+            return oldMode;
+        }
+
+        /**
+         * Returns the git file mode after the change, such as 100755 for an
+         * executable file.
+         * @return New mode, or null if the diff doesn't change it
+         */
+        public String getNewMode() {
+            return newMode;
+        }
+
+        public boolean isNewFile() {
+            return oldPath == null;
+        }
+
+        public boolean isDeletedFile() {
+            return newPath == null;
+        }
+
+        public boolean isRename() {
+            return !copy && oldPath != null && newPath != null && !oldPath.equals(newPath);
+        }
+
+        /**
+         * Returns whether the file is created as a copy of another file,
+         * which is left in place.
+         * @return true if the file is copied from its old path
+         */
+        public boolean isCopy() {
+            return copy;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public List<Hunk> getHunks() {
+            return Collections.unmodifiableList(hunks);
+        }
+
+        /**
+         * Returns a patch which undoes this one.
+         * @return Reversed patch
+         */
+        public FilePatch reverse() {
+            final FilePatch result = new FilePatch();
+            result.oldPath = newPath;
+            result.newPath = oldPath;
+            result.oldMode = newMode;
+            result.newMode = oldMode;
+            result.git = git;
+            result.copy = copy;
+            result.binary = binary;
+
+            for (Hunk hunk : hunks) {
+                result.hunks.add(hunk.reverse());
+            }
+
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof FilePatch)) {
+                return false;
+            }
+
+            final FilePatch other = (FilePatch) o;
+
+            return copy == other.copy
+                    && binary == other.binary
+                    && Objects.equals(oldPath, other.oldPath)
+                    && Objects.equals(newPath, other.newPath)
+                    && Objects.equals(oldMode, other.oldMode)
+                    && Objects.equals(newMode, other.newMode)
+                    && hunks.equals(other.hunks);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(oldPath, newPath, oldMode, newMode, copy, binary, hunks);
+        }
+    }
+
+    /**
+     * A contiguous block of changes within a file.
+     */
+    public static final class Hunk {
+        private final int oldStart;
+        private final int oldCount;
+        private final int newStart;
+        private final int newCount;
+        private final List<String> lines = new ArrayList<>();
+        private int addedCount;
+        private int removedCount;
+        private boolean oldMissingNewline;
+        private boolean newMissingNewline;
+
+        private Hunk(final int oldStart, final int oldCount, final int newStart, final int newCount) {
+            this.oldStart = oldStart;
+            this.oldCount = oldCount;
+            this.newStart = newStart;
+            this.newCount = newCount;
+        }
+
+        public int getOldStart() {
+            return oldStart;
+        }
+
+        public int getOldCount() {
+            return oldCount;
+        }
+
+        public int getNewStart() {
+            return newStart;
+        }
+
+        public int getNewCount() {
+            return newCount;
+        }
+
+        /**
+         * Returns the number of lines the hunk adds. This is known even if
+         * the lines themselves weren't kept.
+         * @return Added lines
+         */
+        public int getAddedCount() {
+            return addedCount;
+        }
+
+        /**
+         * Returns the number of lines the hunk removes. This is known even
+         * if the lines themselves weren't kept.
+         * @return Removed lines
+         */
+        public int getRemovedCount() {
+            return removedCount;
+        }
+
+        /**
+         * Returns the lines of the hunk, each starting with ' ', '-' or '+'.
+         * @return Hunk lines
+         */
+        public List<String> getLines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        /**
+         * Returns the lines this hunk expects to find in the original file.
+         * @return Context and removed lines, without their prefix
+         */
+        public List<String> getOldLines() {
+            return getSide('-');
+        }
+
+        /**
+         * Returns the lines this hunk leaves in the patched file.
+         * @return Context and added lines, without their prefix
+         */
+        public List<String> getNewLines() {
+            return getSide('+');
+        }
+
+        /**
+         * Returns whether the last line of the original file has no
+         * trailing newline.
+         * @return true if the original file lacks a final newline
+         */
+        public boolean isOldMissingNewline() {
+            return oldMissingNewline;
+        }
+
+        /**
+         * Returns whether the last line of the patched file has no trailing
+         * newline.
+         * @return true if the patched file lacks a final newline
+         */
+        public boolean isNewMissingNewline() {
+            return newMissingNewline;
+        }
+
+        private Hunk reverse() {
+            final Hunk result = new Hunk(newStart, newCount, oldStart, oldCount);
+            result.addedCount = removedCount;
+            result.removedCount = addedCount;
+            result.oldMissingNewline = newMissingNewline;
+            result.newMissingNewline = oldMissingNewline;
+
+            for (String line : lines) {
+                switch (line.charAt(0)) {
+                    case '-':
+                        result.lines.add("+" + line.substring(1));
+                        break;
+
+                    case '+':
+                        result.lines.add("-" + line.substring(1));
+                        break;
+
+                    default:
+                        result.lines.add(line);
+                        break;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Hunk)) {
+                return false;
+            }
+
+            final Hunk other = (Hunk) o;
+
+            return oldStart == other.oldStart
+                    && oldCount == other.oldCount
+                    && newStart == other.newStart
+                    && newCount == other.newCount
+                    && oldMissingNewline == other.oldMissingNewline
+                    && newMissingNewline == other.newMissingNewline
+                    && lines.equals(other.lines);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(oldStart, oldCount, newStart, newCount, lines);
+        }
+
+        private List<String> getSide(final char prefix) {
+            final List<String> result = new ArrayList<>();
+
+            for (String line : lines) {
+                if (line.charAt(0) == ' ' || line.charAt(0) == prefix) {
+                    result.add(line.substring(1));
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Parses a diff.
+     * @param in Stream to read the diff from
+     * @return Changes to each file, in the order they appear in the diff
+     * @throws IOException if the diff can't be read or is malformed
+     */
+    public static List<FilePatch> parse(final InputStream in) throws IOException {
+        return parse(in, true);
+    }
+
+    /**
+     * Parses the file headers of a diff without keeping the lines of its
+     * hunks, which are counted and then discarded as they are read. The
+     * hunks of the returned patches have no lines, and can't be applied.
+     * @param in Stream to read the diff from
+     * @return Changes to each file, in the order they appear in the diff
+     * @throws IOException if the diff can't be read or is malformed
+     */
+    public static List<FilePatch> parseHeaders(final InputStream in) throws IOException {
+        return parse(in, false);
+    }
+
+    /**
+     * Parses a diff, optionally discarding the lines of each hunk once they
+     * have been read.
+     * @param in Stream to read the diff from
+     * @param keepLines Whether to keep the lines of each hunk
+     * @return Changes to each file, in the order they appear in the diff
+     */
+    private static List<FilePatch> parse(final InputStream in, final boolean keepLines) throws IOException {
+        final LineReader reader = new LineReader(in);
+        final List<FilePatch> patches = new ArrayList<>();
+        FilePatch current = null;
+        Hunk hunk = null;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("diff --git ")) {
+                current = new FilePatch();
+                current.git = true;
+                patches.add(current);
+                hunk = null;
+                parseGitHeader(current, line);
+            } else if (line.startsWith("--- ")
+                    && (current == null || !current.hunks.isEmpty() || (current.oldPath != null && !current.git))) {
+                // A "---" line after the hunks of the previous file starts a
+                // new file in a diff without git headers.
+                current = new FilePatch();
+                patches.add(current);
+                hunk = null;
+                current.oldPath = parsePath(line.substring(4));
+            } else if (line.startsWith("--- ") && current.hunks.isEmpty()) {
+                current.oldPath = parsePath(line.substring(4));
+            } else if (line.startsWith("+++ ") && current != null && current.hunks.isEmpty()) {
+                current.newPath = parsePath(line.substring(4));
+            } else if (line.startsWith("@@ ") && current != null) {
+                hunk = parseHunk(reader, line, keepLines);
+                current.hunks.add(hunk);
+            } else if (line.startsWith(NO_NEWLINE_MARKER) && hunk != null && !hunk.lines.isEmpty()) {
+                markMissingNewline(hunk);
+            } else if (current != null && current.git && current.hunks.isEmpty()) {
+                parseGitExtendedHeader(current, line);
+            } else if (line.startsWith("Binary files ") && current != null) {
+                current.binary = true;
+            }
+        }
+
+        for (FilePatch patch : patches) {
+            stripPrefixes(patch);
+        }
+
+        return patches;
+    }
+
+    /**
+     * Reads the body of a hunk, following its header.
+     * @param reader Diff reader
+     * @param header Hunk header line
+     * @param keepLines Whether to keep the lines of the hunk
+     * @return Hunk
+     */
+    private static Hunk parseHunk(final LineReader reader, final String header, final boolean keepLines)
+            throws IOException {
+        final Matcher matcher = HUNK_HEADER.matcher(header);
+
+        if (!matcher.matches()) {
+            throw new IOException("Malformed hunk header: " + header);
+        }
+
+        final Hunk hunk = new Hunk(
+                Integer.parseInt(matcher.group(1)),
+                matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2)),
+                Integer.parseInt(matcher.group(3)),
+                matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4)));
+        int oldRemaining = hunk.oldCount;
+        int newRemaining = hunk.newCount;
+
+        while (oldRemaining > 0 || newRemaining > 0) {
+            String line = reader.readLine();
+
+            if (line == null) {
+                throw new IOException("Diff ends in the middle of a hunk: " + header);
+            }
+
+            // Some tools strip the trailing space from empty context lines.
+            if (line.isEmpty() || line.equals("\r")) {
+                line = " " + line;
+            }
+
+            switch (line.charAt(0)) {
+                case ' ':
+                    oldRemaining--;
+                    newRemaining--;
+                    break;
+
+                case '-':
+                    oldRemaining--;
+                    hunk.removedCount++;
+                    break;
+
+                case '+':
+                    newRemaining--;
+                    hunk.addedCount++;
+                    break;
+
+                case '\\':
+                    if (!hunk.lines.isEmpty()) {
+                        markMissingNewline(hunk);
+                    }
+
+                    continue;
+
+                default:
+                    throw new IOException("Malformed line in hunk " + header + ": " + line);
+            }
+
+            if (oldRemaining < 0 || newRemaining < 0) {
+                throw new IOException("Hunk is longer than its header says: " + header);
+            }
+
+            if (keepLines) {
+                hunk.lines.add(line);
+            }
+        }
+
+        return hunk;
+    }
+
+    /**
+     * Records that the last line read in the hunk has no trailing newline.
+     * @param hunk Hunk being read
+     */
+    private static void markMissingNewline(final Hunk hunk) {
+        final char prefix = hunk.lines.get(hunk.lines.size() - 1).charAt(0);
+
+        if (prefix != '+') {
+            hunk.oldMissingNewline = true;
+        }
+
+        if (prefix != '-') {
+            hunk.newMissingNewline = true;
+        }
+    }
+
+    private static void parseGitHeader(final FilePatch patch, final String line) {
+        // The paths in the header are only needed for changes without a
+        // "---"/"+++" pair, such as pure renames. Unquoted, they can only be
+        // split reliably by the " b/" separator.
+        final String paths = line.substring("diff --git ".length());
+
+        if (paths.startsWith("\"")) {
+            final int end = findClosingQuote(paths);
+
+            if (end != -1 && end + 1 < paths.length()) {
+                patch.oldPath = unquote(paths.substring(1, end));
+                patch.newPath = parseHeaderPath(paths.substring(end + 1).trim());
+            }
+
+            return;
+        }
+
+        final int quoted = paths.indexOf(" \"b/");
+        final int separator = quoted != -1 ? quoted : paths.indexOf(" b/");
+
+        if (separator != -1) {
+            patch.oldPath = decodePath(paths.substring(0, separator));
+            patch.newPath = parseHeaderPath(paths.substring(separator + 1));
+        }
+    }
+
+    private static void parseGitExtendedHeader(final FilePatch patch, final String line) {
+        if (line.startsWith("rename from ") || line.startsWith("copy from ")) {
+            patch.oldPath = "a/" + parseHeaderPath(line.substring(line.indexOf(" from ") + 6));
+            patch.copy = line.startsWith("copy ");
+        } else if (line.startsWith("rename to ") || line.startsWith("copy to ")) {
+            patch.newPath = "b/" + parseHeaderPath(line.substring(line.indexOf(" to ") + 4));
+            patch.copy = line.startsWith("copy ");
+        } else if (line.startsWith("new file mode ")) {
+            patch.oldPath = null;
+            patch.newMode = line.substring("new file mode ".length()).trim();
+        } else if (line.startsWith("deleted file mode ")) {
+            patch.newPath = null;
+            patch.oldMode = line.substring("deleted file mode ".length()).trim();
+        } else if (line.startsWith("old mode ")) {
+            patch.oldMode = line.substring("old mode ".length()).trim();
+        } else if (line.startsWith("new mode ")) {
+            patch.newMode = line.substring("new mode ".length()).trim();
+        } else if (line.startsWith("GIT binary patch") || line.startsWith("Binary files ")) {
+            patch.binary = true;
+        }
+    }
+
+    /**
+     * Parses a path from a "---" or "+++" line, removing any timestamp
+     * following it.
+     * @param value Text after the "--- " or "+++ "
+     * @return Path, or null for /dev/null
+     */
+    private static String parsePath(final String value) {
+        if (value.startsWith("\"")) {
+            final int end = findClosingQuote(value);
+
+            if (end != -1) {
+                return unquote(value.substring(1, end));
+            }
+        }
+
+        final int tab = value.indexOf('\t');
+        final String path = (tab == -1 ? value : value.substring(0, tab)).trim();
+
+        return path.equals(DEV_NULL) ? null : decodePath(path);
+    }
+
+    /**
+     * Parses a path which takes up the rest of a git header line, and may
+     * be quoted.
+     * @param value Path as written in the header
+     * @return Decoded path
+     */
+    private static String parseHeaderPath(final String value) {
+        final String path = value.trim();
+
+        if (path.length() > 1 && path.startsWith("\"") && path.endsWith("\"")) {
+            return unquote(path.substring(1, path.length() - 1));
+        }
+
+        return decodePath(path);
+    }
+
+    /**
+     * Finds the quote closing a quoted path, skipping escaped quotes.
+     * @param value Text starting with the opening quote
+     * @return Position of the closing quote, or -1 if there isn't one
+     */
+    private static int findClosingQuote(final String value) {
+        for (int i = 1; i < value.length(); i++) {
+            if (value.charAt(i) == '\\') {
+                i++;
+            } else if (value.charAt(i) == '"') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Undoes git's C-style quoting of a path and decodes it as UTF-8. Bytes
+     * outside ASCII are written as three-digit octal escapes.
+     * @param quoted Path between the quotes
+     * @return Decoded path
+     */
+    private static String unquote(final String quoted) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        for (int i = 0; i < quoted.length(); i++) {
+            final char c = quoted.charAt(i);
+
+            if (c != '\\' || i + 1 == quoted.length()) {
+                bytes.write(c);
+                continue;
+            }
+
+            final char escaped = quoted.charAt(++i);
+
+            switch (escaped) {
+                case 'a':
+                    bytes.write(7);
+                    break;
+
+                case 'b':
+                    bytes.write('\b');
+                    break;
+
+                case 't':
+                    bytes.write('\t');
+                    break;
+
+                case 'n':
+                    bytes.write('\n');
+                    break;
+
+                case 'v':
+                    bytes.write(11);
+                    break;
+
+                case 'f':
+                    bytes.write('\f');
+                    break;
+
+                case 'r':
+                    bytes.write('\r');
+                    break;
+
+                default:
+                    if (isOctal(escaped)
+                            && i + 2 < quoted.length()
+                            && isOctal(quoted.charAt(i + 1))
+                            && isOctal(quoted.charAt(i + 2))) {
+                        bytes.write(Integer.parseInt(quoted.substring(i, i + 3), 8));
+                        i += 2;
+                    } else {
+                        bytes.write(escaped);
+                    }
+
+                    break;
+            }
+        }
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean isOctal(final char c) {
+        return c >= '0' && c <= '7';
+    }
+
+    /**
+     * Decodes an unquoted path, which was read byte for byte, as UTF-8.
+     * @param path Path as read from the diff
+     * @return Decoded path
+     */
+    private static String decodePath(final String path) {
+        return new String(encode(path), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Removes the "a/" and "b/" prefixes which git and some other tools add
+     * to paths.
+     * @param patch Patch to update
+     */
+    private static void stripPrefixes(final FilePatch patch) {
+        final boolean prefixed = patch.git
+                || (patch.oldPath == null || patch.oldPath.startsWith("a/"))
+                        && (patch.newPath == null || patch.newPath.startsWith("b/"));
+
+        if (prefixed) {
+            if (patch.oldPath != null && patch.oldPath.startsWith("a/")) {
+                patch.oldPath = patch.oldPath.substring(2);
+            }
+
+            if (patch.newPath != null && patch.newPath.startsWith("b/")) {
+                patch.newPath = patch.newPath.substring(2);
+            }
+        }
+    }
+
+    /**
+     * Reads lines terminated by '\n' from a stream, decoding them as
+     * ISO-8859-1 and keeping any '\r' before the newline.
+     */
+    private static final class LineReader {
+        private final InputStream in;
+        private final StringBuilder buffer = new StringBuilder();
+
+        private LineReader(final InputStream in) {
+            this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        }
+
+        private String readLine() throws IOException {
+            buffer.setLength(0);
+            int c;
+
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return buffer.toString();
+                }
+
+                buffer.append((char) c);
+            }
+
+            return buffer.length() == 0 ? null : buffer.toString();
+        }
+    }
+
+    /**
+     * Decodes file contents in the same way as diff lines.
+     * @param bytes File contents
+     * @return Decoded contents
+     */
+    public static String decode(final byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes file contents in the same way as diff lines.
+     * @param content File contents
+     * @return Encoded contents
+     */
+    public static byte[] encode(final String content) {
+        return content.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -5,16 +5,63 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.GlobalConfiguration;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.DiffCache;
 
 /**
  * Provides a global configuration for ReviewBoard servers.
+ *
+ * Server configurations are looked up on every status update, so they are
+ * kept in an immutable snapshot along with an index from normalized server
+ * URL to configuration. The snapshot is replaced whenever the configurations
+ * change, and lookups read it without taking a lock.
  */
 @Extension
 public class ReviewBoardGlobalConfiguration extends GlobalConfiguration {
-    private final Object serverConfigurationsLock = new Object();
+    private static final Logger LOGGER = Logger.getLogger(ReviewBoardGlobalConfiguration.class.getName());
+
     private List<ReviewBoardServerConfiguration> serverConfigurations = new ArrayList<>();
+    private boolean prefetchDiffs = true;
+    private boolean reportQueuedBuilds = false;
+    private boolean cancelSupersededBuilds = false;
+    private transient volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+    /**
+     * An immutable view of the server configurations, indexed by
+     * normalized server URL.
+     */
+    private static final class Snapshot {
+        private final List<ReviewBoardServerConfiguration> serverConfigurations;
+        private final Map<String, ReviewBoardServerConfiguration> serverConfigurationsByURL = new HashMap<>();
+
+        private Snapshot(final List<ReviewBoardServerConfiguration> serverConfigurations) {
+            this.serverConfigurations = Collections.unmodifiableList(new ArrayList<>(serverConfigurations));
+
+            for (ReviewBoardServerConfiguration config : this.serverConfigurations) {
+                final String key = normalizeURL(config.getReviewBoardURL());
+
+                if (key == null) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            "Ignoring Review Board server configuration with invalid URL ''{0}''",
+                            config.getReviewBoardURL());
+                } else {
+                    // As with a linear scan, the first matching configuration
+                    // wins.
+                    serverConfigurationsByURL.putIfAbsent(key, config);
+                }
+            }
+        }
+    }
 
     /**
      * Construct the configuration from prior saved entries.
@@ -28,28 +75,41 @@ public class ReviewBoardGlobalConfiguration extends GlobalConfiguration {
      * @param serverConfigurations List of Review Board server configurations
      */
     public ReviewBoardGlobalConfiguration(final List<ReviewBoardServerConfiguration> serverConfigurations) {
-        synchronized (serverConfigurationsLock) {
-            this.serverConfigurations = serverConfigurations;
+        this.serverConfigurations = new ArrayList<>(serverConfigurations);
+        this.snapshot = new Snapshot(serverConfigurations);
+    }
+
+    /**
+     * Load the saved entries and rebuild the lookup index from them.
+     */
+    @Override
+    public synchronized void load() {
+        super.load();
+
+        if (serverConfigurations == null) {
+            serverConfigurations = new ArrayList<>();
         }
+
+        snapshot = new Snapshot(serverConfigurations);
     }
 
     /**
      * Set the server configurations list then save the entries.
      * @param serverConfigurations List of Review Board server configurations
      */
-    public void setServerConfigurations(final List<ReviewBoardServerConfiguration> serverConfigurations) {
-        synchronized (serverConfigurationsLock) {
-            this.serverConfigurations = serverConfigurations;
-            save();
-        }
+    public synchronized void setServerConfigurations(final List<ReviewBoardServerConfiguration> serverConfigurations) {
+        this.serverConfigurations = new ArrayList<>(serverConfigurations);
+        this.snapshot = new Snapshot(serverConfigurations);
+        save();
     }
 
     /**
-     * Fetch the server configurations.
+     * Fetch the server configurations. The returned list can't be modified;
+     * use setServerConfigurations() to change it.
      * @return Review Board server configurations
      */
     public List<ReviewBoardServerConfiguration> getServerConfigurations() {
-        return serverConfigurations;
+        return snapshot.serverConfigurations;
     }
 
     /**
@@ -59,18 +119,129 @@ public class ReviewBoardGlobalConfiguration extends GlobalConfiguration {
      * @return server configuration or null
      */
     public ReviewBoardServerConfiguration getServerConfiguration(final URL serverURL) {
-        synchronized (serverConfigurationsLock) {
-            for (ReviewBoardServerConfiguration config : serverConfigurations) {
-                try {
-                    if (new URI(config.getReviewBoardURL()).equals(serverURL.toURI())) {
-                        return config;
-                    }
-                } catch (URISyntaxException e) {
-                    e.printStackTrace();
-                }
-            }
+        final String key = normalizeURL(serverURL.toExternalForm());
+
+        return key == null ? null : snapshot.serverConfigurationsByURL.get(key);
+    }
+
+    /**
+     * Returns whether diffs are downloaded as soon as a build enters the
+     * queue.
+     * @return true if diffs are prefetched for queued builds
+     */
+    public boolean isPrefetchDiffs() {
+        return prefetchDiffs;
+    }
+
+    /**
+     * Set whether diffs are prefetched for queued builds, then save the
+     * entries.
+     * @param prefetchDiffs true to prefetch diffs for queued builds
+     */
+    @DataBoundSetter
+    public synchronized void setPrefetchDiffs(final boolean prefetchDiffs) {
+        this.prefetchDiffs = prefetchDiffs;
+        save();
+    }
+
+    /**
+     * Returns whether Review Board is told when a build is waiting in the
+     * queue, and when it is cancelled before it starts.
+     * @return true if queued builds are reported
+     */
+    public boolean isReportQueuedBuilds() {
+        return reportQueuedBuilds;
+    }
+
+    /**
+     * Set whether queued builds are reported to Review Board, then save the
+     * entries.
+     * @param reportQueuedBuilds true to report queued builds
+     */
+    @DataBoundSetter
+    public synchronized void setReportQueuedBuilds(final boolean reportQueuedBuilds) {
+        this.reportQueuedBuilds = reportQueuedBuilds;
+        save();
+    }
+
+    /**
+     * Returns whether queued and running builds of a review request are
+     * aborted when a build of a newer diff revision is queued.
+     * @return true if superseded builds are cancelled
+     */
+    public boolean isCancelSupersededBuilds() {
+        return cancelSupersededBuilds;
+    }
+
+    /**
+     * Set whether superseded builds are cancelled, then save the entries.
+     * @param cancelSupersededBuilds true to cancel superseded builds
+     */
+    @DataBoundSetter
+    public synchronized void setCancelSupersededBuilds(final boolean cancelSupersededBuilds) {
+        this.cancelSupersededBuilds = cancelSupersededBuilds;
+        save();
+    }
+
+    /**
+     * Returns a summary of how often diffs were found in the diff cache, for
+     * display on the configuration page.
+     * @return Diff cache statistics
+     */
+    public String getDiffCacheStatistics() {
+        final DiffCache cache = DiffCache.get();
+
+        return Messages.ReviewBoardGlobalConfiguration_DiffCacheStatistics(
+                cache.getHits(), cache.getMisses(), Math.round(cache.getHitRate() * 100));
+    }
+
+    /**
+     * Normalizes a server URL so that equivalent spellings of the same URL
+     * compare equal. The scheme and host are lowercased, default ports are
+     * dropped and trailing slashes are removed from the path.
+     * @param url Server URL
+     * @return Normalized URL, or null if the URL is invalid
+     */
+    public static String normalizeURL(final String url) {
+        if (url == null) {
+            return null;
+        }
+
+        final URI uri;
+
+        try {
+            uri = new URI(url.trim());
+        } catch (final URISyntaxException e) {
+            return null;
+        }
+
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return null;
+        }
+
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        final StringBuilder result = new StringBuilder(scheme)
+                .append("://")
+                .append(uri.getHost().toLowerCase(Locale.ROOT));
+
+        final int port = uri.getPort();
+
+        if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+            result.append(':').append(port);
+        }
+
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        result.append(path);
+
+        if (uri.getRawQuery() != null) {
+            result.append('?').append(uri.getRawQuery());
         }
 
-        return null;
+        return result.toString();
     }
 }
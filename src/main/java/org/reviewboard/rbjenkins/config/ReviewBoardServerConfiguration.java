@@ -2,10 +2,13 @@ package org.reviewboard.rbjenkins.config;
 
 import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import hudson.Extension;
+import hudson.XmlFile;
 import hudson.model.*;
+import hudson.model.listeners.SaveableListener;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -13,18 +16,47 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.ReviewBoardClient;
 
 /**
  * Stores configuration details for a Review Board server.
  */
 public class ReviewBoardServerConfiguration extends AbstractDescribableImpl<ReviewBoardServerConfiguration> {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
     private final String reviewBoardURL;
     private final String credentialsId;
+    private Integer maxRetries;
+    private transient volatile ReviewBoardClient client;
+    private transient volatile CachedToken cachedToken;
+
+    private static final long TOKEN_CACHE_TTL = SystemProperties.getLong(
+            ReviewBoardServerConfiguration.class.getName() + ".tokenCacheTTL", TimeUnit.MINUTES.toMillis(5));
+    private static final AtomicLong credentialsGeneration = new AtomicLong();
+
+    /**
+     * A cached API token lookup.
+     */
+    private static final class CachedToken {
+        private final String token;
+        private final long generation;
+        private final long expiresAt;
+
+        private CachedToken(final String token, final long generation, final long expiresAt) {
+            this.token = token;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
 
     /**
      * Constructs the server configuration with the given name, Review Board
@@ -55,11 +87,72 @@ public class ReviewBoardServerConfiguration extends AbstractDescribableImpl<Revi
         return credentialsId;
     }
 
+    /**
+     * Returns the number of times a request is retried when the server is
+     * unavailable.
+     * @return Maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries == null ? DEFAULT_MAX_RETRIES : maxRetries;
+    }
+
+    /**
+     * Sets the number of times a request is retried when the server is
+     * unavailable.
+     * @param maxRetries Maximum number of retries
+     */
+    @DataBoundSetter
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Returns a description of whether the server is currently reachable,
+     * based on the state of the client's circuit breaker. This is shown on
+     * the global configuration page.
+     * @return Server status
+     */
+    public String getServerStatus() {
+        switch (getClient().getCircuitBreaker().getState()) {
+            case OPEN:
+                return Messages.ReviewBoardServerConfiguration_Status_Unavailable();
+
+            case HALF_OPEN:
+                return Messages.ReviewBoardServerConfiguration_Status_Probing();
+
+            default:
+                return Messages.ReviewBoardServerConfiguration_Status_Available();
+        }
+    }
+
     /**
      * Fetch the Review Board API token from the credential provider.
      * @return The API token, or "UNKNOWN" if not found.
      */
     public String getReviewBoardAPIToken() {
+        final String token = findReviewBoardAPIToken();
+
+        return token == null ? "UNKNOWN" : token;
+    }
+
+    /**
+     * Fetch the Review Board API token from the credential provider.
+     *
+     * Looking up credentials can be expensive on controllers with many of
+     * them, so the result, including a missing credential, is cached. The
+     * cache is cleared whenever credentials are saved, and otherwise expires
+     * after a short time.
+     * @return The API token, or null if not found.
+     */
+    public String findReviewBoardAPIToken() {
+        final long generation = credentialsGeneration.get();
+        final long now = System.currentTimeMillis();
+        final CachedToken cached = cachedToken;
+
+        if (cached != null && cached.generation == generation && now < cached.expiresAt) {
+            return cached.token;
+        }
+
         final List<StringCredentials> credentials = CredentialsMatchers.filter(
                 CredentialsProvider.lookupCredentials(
                         StringCredentials.class,
@@ -68,11 +161,41 @@ public class ReviewBoardServerConfiguration extends AbstractDescribableImpl<Revi
                         URIRequirementBuilder.fromUri(reviewBoardURL).build()),
                 CredentialsMatchers.withId(credentialsId));
 
-        if (!credentials.isEmpty()) {
-            return credentials.get(0).getSecret().getPlainText();
-        } else {
-            return "UNKNOWN";
+        final String token =
+                credentials.isEmpty() ? null : credentials.get(0).getSecret().getPlainText();
+        cachedToken = new CachedToken(token, generation, now + TOKEN_CACHE_TTL);
+
+        return token;
+    }
+
+    /**
+     * Clears the cached API tokens of all server configurations.
+     */
+    public static void invalidateTokenCache() {
+        credentialsGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the API client for this server, creating it on first use. The
+     * client is shared by every caller so that connections to the server are
+     * pooled and reused.
+     * @return Review Board API client
+     */
+    public ReviewBoardClient getClient() {
+        ReviewBoardClient result = client;
+
+        if (result == null) {
+            synchronized (this) {
+                result = client;
+
+                if (result == null) {
+                    result = new ReviewBoardClient(this);
+                    client = result;
+                }
+            }
         }
+
+        return result;
     }
 
     /**
@@ -104,6 +227,15 @@ public class ReviewBoardServerConfiguration extends AbstractDescribableImpl<Revi
             }
         }
 
+        /**
+         * Validates the given maximum number of retries.
+         * @param value Maximum number of retries
+         * @return FormValidation status
+         */
+        public FormValidation doCheckMaxRetries(final @QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         /**
          * Validates the given Review Board URL specified in the form.
          * @param value Review Board URL
@@ -142,4 +274,19 @@ public class ReviewBoardServerConfiguration extends AbstractDescribableImpl<Revi
                             CredentialsMatchers.always());
         }
     }
+
+    /**
+     * Clears the cached API tokens whenever credentials may have changed.
+     * System credentials are saved by SystemCredentialsProvider, and folder
+     * credentials are saved along with their folder.
+     */
+    @Extension
+    public static final class CredentialsChangeListener extends SaveableListener {
+        @Override
+        public void onChange(final Saveable o, final XmlFile file) {
+            if (o instanceof SystemCredentialsProvider || o instanceof ItemGroup) {
+                invalidateTokenCache();
+            }
+        }
+    }
 }
@@ -0,0 +1,310 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import jenkins.MasterToSlaveFileCallable;
+import org.reviewboard.rbjenkins.common.DiffStats;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.UnifiedDiff;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+
+/**
+ * Records which diff revision of a review request has been applied to a
+ * workspace, so that later builds in the same workspace can avoid applying
+ * it again.
+ *
+ * The record is kept in the workspace's temporary directory. Along with the
+ * review request and diff revision, it holds the checksum of the diff, the
+ * commit the workspace was checked out at, and a SHA-256 hash of every file
+ * the diff touched, taken just after the diff was applied. The hashes are
+ * used to check that nothing, such as an SCM checkout, has changed those
+ * files since. The manifest of changed files is kept too, so that a build
+ * which finds the diff already applied doesn't need to read it again.
+ */
+final class AppliedPatch {
+    static final String FILENAME = "reviewboard-applied-patch.properties";
+
+    private static final String FILE_PREFIX = "file.";
+    private static final String MISSING = "-";
+
+    private final String server;
+    private final int reviewId;
+    private final int revision;
+    private final String diffChecksum;
+    private final String baseCommit;
+    private final Map<String, String> fileHashes;
+    private final String manifest;
+
+    private AppliedPatch(
+            final String server,
+            final int reviewId,
+            final int revision,
+            final String diffChecksum,
+            final String baseCommit,
+            final Map<String, String> fileHashes,
+            final String manifest) {
+        this.server = server;
+        this.reviewId = reviewId;
+        this.revision = revision;
+        this.diffChecksum = diffChecksum;
+        this.baseCommit = baseCommit;
+        this.fileHashes = fileHashes;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Records a diff which has just been applied to the workspace.
+     * @param reviewRequest Applied review request and diff revision
+     * @param diffChecksum Checksum of the diff, or null if unknown
+     * @param baseCommit Commit the workspace was checked out at, or null
+     * @param workspace Workspace the diff was applied to
+     * @param patchFile The diff, on the node
+     * @param stats Summary of the diff
+     * @return Applied patch record
+     */
+    static AppliedPatch create(
+            final ReviewRequest reviewRequest,
+            final String diffChecksum,
+            final String baseCommit,
+            final FilePath workspace,
+            final FilePath patchFile,
+            final DiffStats stats)
+            throws IOException, InterruptedException {
+        return new AppliedPatch(
+                reviewRequest.getNormalizedServerURL(),
+                reviewRequest.getReviewId(),
+                reviewRequest.getRevision(),
+                diffChecksum == null ? "" : diffChecksum,
+                baseCommit == null ? "" : baseCommit,
+                workspace.act(new HashFiles(patchFile.getRemote(), null)),
+                stats.toManifest());
+    }
+
+    /**
+     * Reads the record of the patch applied to a workspace.
+     * @param marker Record file
+     * @return Applied patch record, or null if there isn't a valid one
+     */
+    static AppliedPatch read(final FilePath marker) throws IOException, InterruptedException {
+        if (!marker.exists()) {
+            return null;
+        }
+
+        final Properties properties = new Properties();
+        properties.load(new StringReader(marker.readToString()));
+
+        final Map<String, String> fileHashes = new TreeMap<>();
+
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(FILE_PREFIX)) {
+                fileHashes.put(name.substring(FILE_PREFIX.length()), properties.getProperty(name));
+            }
+        }
+
+        try {
+            // Records written before server URLs were normalized are
+            // normalized here, so they still match.
+            final String server = new URL(properties.getProperty("server", "")).toExternalForm();
+            final String normalizedServer = ReviewBoardGlobalConfiguration.normalizeURL(server);
+
+            return new AppliedPatch(
+                    normalizedServer == null ? server : normalizedServer,
+                    Integer.parseInt(properties.getProperty("reviewId", "-1")),
+                    Integer.parseInt(properties.getProperty("revision", "-1")),
+                    properties.getProperty("diffChecksum", ""),
+                    properties.getProperty("baseCommit", ""),
+                    fileHashes,
+                    properties.getProperty("manifest", ""));
+        } catch (final NumberFormatException | MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the record to the workspace's record file.
+     * @param marker Record file
+     */
+    void write(final FilePath marker) throws IOException, InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty("server", server);
+        properties.setProperty("reviewId", Integer.toString(reviewId));
+        properties.setProperty("revision", Integer.toString(revision));
+        properties.setProperty("diffChecksum", diffChecksum);
+        properties.setProperty("baseCommit", baseCommit);
+        properties.setProperty("manifest", manifest);
+
+        for (Map.Entry<String, String> entry : fileHashes.entrySet()) {
+            properties.setProperty(FILE_PREFIX + entry.getKey(), entry.getValue());
+        }
+
+        final StringWriter writer = new StringWriter();
+        properties.store(writer, null);
+        marker.write(writer.toString(), "UTF-8");
+    }
+
+    /**
+     * Returns whether this is a diff revision of the given review request.
+     * @param reviewRequest Review request
+     * @return true if the server and review request match
+     */
+    boolean isRevisionOf(final ReviewRequest reviewRequest) {
+        return reviewId == reviewRequest.getReviewId()
+                && revision > 0
+                && server.equals(reviewRequest.getNormalizedServerURL());
+    }
+
+    /**
+     * Returns whether this records the given diff revision applied on top
+     * of the same commit, in which case the workspace may still hold it.
+     * @param reviewRequest Review request and diff revision
+     * @param currentBaseCommit Commit the workspace is checked out at, or
+     *        null if unknown
+     * @return true if the workspace should be checked with
+     *         {@link #isApplied}
+     */
+    boolean mayBeApplied(final ReviewRequest reviewRequest, final String currentBaseCommit) {
+        return isRevisionOf(reviewRequest)
+                && revision == reviewRequest.getRevision()
+                && !baseCommit.isEmpty()
+                && baseCommit.equals(currentBaseCommit)
+                && !fileHashes.isEmpty();
+    }
+
+    /**
+     * Returns whether the given diff revision is still applied to the
+     * workspace, unchanged, on top of the same commit.
+     * @param reviewRequest Review request and diff revision
+     * @param currentDiffChecksum Checksum of the diff, or null if unknown
+     * @param currentBaseCommit Commit the workspace is checked out at, or
+     *        null if unknown
+     * @param workspace Workspace to check
+     * @return true if applying the diff again can be skipped
+     */
+    boolean isApplied(
+            final ReviewRequest reviewRequest,
+            final String currentDiffChecksum,
+            final String currentBaseCommit,
+            final FilePath workspace)
+            throws IOException, InterruptedException {
+        if (!mayBeApplied(reviewRequest, currentBaseCommit)
+                || currentDiffChecksum != null && !diffChecksum.equals(currentDiffChecksum)) {
+            return false;
+        }
+
+        return fileHashes.equals(workspace.act(new HashFiles(null, new ArrayList<>(fileHashes.keySet()))));
+    }
+
+    /**
+     * Returns the review request and diff revision this records.
+     * @param statusUpdateId Status update ID to use
+     * @return Review request
+     */
+    ReviewRequest toReviewRequest(final int statusUpdateId) throws MalformedURLException {
+        return new ReviewRequest(reviewId, revision, statusUpdateId, new URL(server));
+    }
+
+    int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns the summary of the applied diff.
+     * @return Summary of the diff, or null if it wasn't recorded
+     */
+    DiffStats getDiffStats() {
+        if (manifest.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return DiffStats.fromManifest(manifest);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hashes files in a workspace, either those touched by a diff or those
+     * given by path.
+     */
+    private static final class HashFiles extends MasterToSlaveFileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String patchFile;
+        private final List<String> paths;
+
+        private HashFiles(final String patchFile, final List<String> paths) {
+            this.patchFile = patchFile;
+            this.paths = paths;
+        }
+
+        @Override
+        public Map<String, String> invoke(final File workspace, final VirtualChannel channel) throws IOException {
+            final List<String> files = new ArrayList<>();
+
+            if (patchFile != null) {
+                try (InputStream in = Files.newInputStream(new File(patchFile).toPath())) {
+                    for (UnifiedDiff.FilePatch patch : UnifiedDiff.parse(in)) {
+                        files.add(patch.getPath());
+
+                        if (patch.isRename()) {
+                            files.add(patch.getOldPath());
+                        }
+                    }
+                }
+            } else {
+                files.addAll(paths);
+            }
+
+            final Path root = workspace.toPath().toAbsolutePath().normalize();
+            final Map<String, String> result = new TreeMap<>();
+
+            for (String file : files) {
+                final Path path = root.resolve(file).normalize();
+
+                result.put(file, path.startsWith(root) ? hash(path) : MISSING);
+            }
+
+            return result;
+        }
+
+        private static String hash(final Path path) throws IOException {
+            if (!Files.isRegularFile(path)) {
+                return MISSING;
+            }
+
+            final MessageDigest digest;
+
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not available", e);
+            }
+
+            try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+}
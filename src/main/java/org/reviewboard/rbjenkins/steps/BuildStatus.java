@@ -0,0 +1,81 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.CauseOfInterruption;
+import jenkins.model.InterruptedBuildAction;
+import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+
+/**
+ * The state and description reported to Review Board for the result of a
+ * build.
+ * @param state Status update state
+ * @param description Status update description
+ */
+record BuildStatus(ReviewRequest.StatusUpdateState state, String description) {
+    /**
+     * Returns the status to report for a build result.
+     *
+     * A build stopped by the setup step's path filters is reported as a
+     * success, and a build aborted because a newer diff revision was queued
+     * is reported as superseded.
+     * @param result Build result, or null if unknown
+     * @param causes Causes of the build being interrupted
+     * @return Status to report
+     */
+    static BuildStatus of(final Result result, final List<CauseOfInterruption> causes) {
+        if (result == Result.SUCCESS) {
+            return new BuildStatus(ReviewRequest.StatusUpdateState.SUCCESS_STATE, Messages.ReviewBoard_Job_Success());
+        } else if (result == Result.ABORTED) {
+            final SupersededCause superseded = find(causes, SupersededCause.class);
+
+            return new BuildStatus(
+                    ReviewRequest.StatusUpdateState.ERROR_STATE,
+                    superseded != null ? superseded.getShortDescription() : Messages.ReviewBoard_Job_Aborted());
+        } else if (result == Result.NOT_BUILT) {
+            final SkippedCause skipped = find(causes, SkippedCause.class);
+
+            return skipped != null
+                    ? new BuildStatus(ReviewRequest.StatusUpdateState.SUCCESS_STATE, skipped.getShortDescription())
+                    : new BuildStatus(ReviewRequest.StatusUpdateState.ERROR_STATE, Messages.ReviewBoard_Job_NotBuilt());
+        } else if (result == Result.UNSTABLE) {
+            return new BuildStatus(ReviewRequest.StatusUpdateState.FAILURE_STATE, Messages.ReviewBoard_Job_Unstable());
+        }
+
+        return new BuildStatus(ReviewRequest.StatusUpdateState.FAILURE_STATE, Messages.ReviewBoard_Job_Failure());
+    }
+
+    /**
+     * Returns the causes recorded for a build being interrupted.
+     * @param run The active Jenkins build
+     * @return Causes of interruption, which may be added to
+     */
+    static List<CauseOfInterruption> getCausesOfInterruption(final Run<?, ?> run) {
+        final List<CauseOfInterruption> causes = new ArrayList<>();
+
+        for (InterruptedBuildAction action : run.getActions(InterruptedBuildAction.class)) {
+            causes.addAll(action.getCauses());
+        }
+
+        return causes;
+    }
+
+    /**
+     * Returns the first cause of the given type.
+     * @param causes Causes of interruption
+     * @param type Type of cause
+     * @return Cause, or null
+     */
+    private static <T extends CauseOfInterruption> T find(final List<CauseOfInterruption> causes, final Class<T> type) {
+        for (CauseOfInterruption cause : causes) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+        }
+
+        return null;
+    }
+}
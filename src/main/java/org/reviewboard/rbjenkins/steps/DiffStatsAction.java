@@ -0,0 +1,85 @@
+package org.reviewboard.rbjenkins.steps;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.util.List;
+import org.reviewboard.rbjenkins.common.DiffStats;
+
+/**
+ * Exposes the files changed by the applied diff, and how many lines it adds
+ * and removes, to later build steps as environment variables.
+ *
+ * The list of changed files is only included in the environment for diffs
+ * of up to MAX_LISTED_FILES files, so that very large diffs can't exceed the
+ * limits on the size of a process's environment. The manifest written next
+ * to the workspace always lists every file.
+ */
+public class DiffStatsAction extends InvisibleAction implements EnvironmentContributingAction {
+    static final String CHANGED_FILES = "REVIEWBOARD_CHANGED_FILES";
+    static final String CHANGED_FILES_COUNT = "REVIEWBOARD_CHANGED_FILES_COUNT";
+    static final String CHANGED_FILES_MANIFEST = "REVIEWBOARD_CHANGED_FILES_MANIFEST";
+    static final String LINES_ADDED = "REVIEWBOARD_LINES_ADDED";
+    static final String LINES_REMOVED = "REVIEWBOARD_LINES_REMOVED";
+    static final int MAX_LISTED_FILES = 1000;
+
+    private final int fileCount;
+    private final int linesAdded;
+    private final int linesRemoved;
+    private final String changedFiles;
+    private final String manifest;
+
+    /**
+     * Construct the action for the given diff.
+     * @param stats Summary of the diff
+     * @param manifest Path of the manifest on the node
+     */
+    public DiffStatsAction(final DiffStats stats, final String manifest) {
+        final List<String> paths = stats.getPaths();
+
+        this.fileCount = stats.getFiles().size();
+        this.linesAdded = stats.getLinesAdded();
+        this.linesRemoved = stats.getLinesRemoved();
+        this.changedFiles = paths.size() <= MAX_LISTED_FILES ? String.join("\n", paths) : null;
+        this.manifest = manifest;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getLinesAdded() {
+        return linesAdded;
+    }
+
+    public int getLinesRemoved() {
+        return linesRemoved;
+    }
+
+    /**
+     * Returns the changed paths, one per line, including the old paths of
+     * renamed files.
+     * @return Changed paths, or null if there were too many to list
+     */
+    public String getChangedFiles() {
+        return changedFiles;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    @Override
+    public void buildEnvironment(@NonNull final Run<?, ?> run, @NonNull final EnvVars env) {
+        env.put(CHANGED_FILES_COUNT, Integer.toString(fileCount));
+        env.put(LINES_ADDED, Integer.toString(linesAdded));
+        env.put(LINES_REMOVED, Integer.toString(linesRemoved));
+        env.put(CHANGED_FILES_MANIFEST, manifest);
+
+        if (changedFiles != null) {
+            env.put(CHANGED_FILES, changedFiles);
+        }
+    }
+}
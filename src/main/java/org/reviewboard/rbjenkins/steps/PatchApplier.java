@@ -0,0 +1,761 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jenkins.MasterToSlaveFileCallable;
+import org.reviewboard.rbjenkins.common.UnifiedDiff;
+
+/**
+ * Applies a unified diff to a workspace, running on the node which holds the
+ * workspace.
+ *
+ * This is done in two phases. First, the patched contents of every file are
+ * worked out and written to a staging directory beside the diff, without
+ * changing the workspace. If any hunk doesn't apply, the workspace is left
+ * untouched and the failures are reported. Otherwise, the staged files are
+ * moved into place, so only the contents of the files currently being
+ * patched are held in memory. The first phase handles separate files in
+ * parallel on a fork-join pool, which makes a large difference for diffs
+ * touching many files.
+ *
+ * The second phase runs in order, removing files before writing any, so a
+ * file renamed away can be replaced by another. Each file it replaces or
+ * removes is first moved aside, and if a move fails, the files already
+ * written are put back, leaving the workspace as it was.
+ *
+ * As with patch, a hunk whose context has moved because of other changes is
+ * applied at the nearest position where its context matches.
+ */
+public class PatchApplier extends MasterToSlaveFileCallable<PatchApplier.Result> {
+    private static final long serialVersionUID = 1L;
+    private static final String EXECUTABLE_MODE = "100755";
+
+    private final String patchFile;
+    private final String previousPatchFile;
+    private final boolean dryRun;
+
+    /**
+     * Construct the applier.
+     * @param patchFile Path to the diff on the node
+     * @param dryRun If true, only check whether the diff applies
+     */
+    public PatchApplier(final String patchFile, final boolean dryRun) {
+        this(patchFile, null, dryRun);
+    }
+
+    /**
+     * Construct the applier for a workspace which may already have an
+     * earlier diff applied to it.
+     *
+     * If a previous diff is given, only the difference between the two
+     * diffs is applied. Files changed in the same way by both diffs are
+     * checked but left alone, the changes to other files made by the
+     * previous diff are reverted, and the changes from the new diff are
+     * applied in their place.
+     * @param patchFile Path to the diff on the node
+     * @param previousPatchFile Path to the diff already applied, or null
+     * @param dryRun If true, only check whether the diff applies
+     */
+    public PatchApplier(final String patchFile, final String previousPatchFile, final boolean dryRun) {
+        this.patchFile = patchFile;
+        this.previousPatchFile = previousPatchFile;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * The outcome of applying a diff.
+     */
+    public static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+        private final List<String> errors;
+
+        private Result(final List<String> files, final List<String> errors) {
+            this.files = files;
+            this.errors = errors;
+        }
+
+        /**
+         * Returns the files which were patched, or would be in a dry run.
+         * @return Paths relative to the workspace
+         */
+        public List<String> getFiles() {
+            return Collections.unmodifiableList(files);
+        }
+
+        /**
+         * Returns a description of each part of the diff which didn't apply.
+         * @return Error messages
+         */
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        public boolean isSuccessful() {
+            return errors.isEmpty();
+        }
+    }
+
+    /**
+     * Thrown when part of a diff can't be applied.
+     */
+    static final class PatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        PatchException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The lines of a file, and whether the last line ends with a newline.
+     */
+    static final class FileContent {
+        private final List<String> lines;
+        private final boolean endsWithNewline;
+
+        FileContent(final List<String> lines, final boolean endsWithNewline) {
+            this.lines = lines;
+            this.endsWithNewline = endsWithNewline;
+        }
+
+        static FileContent parse(final String text) {
+            if (text.isEmpty()) {
+                return new FileContent(new ArrayList<>(), true);
+            }
+
+            final List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n", -1)));
+            final boolean endsWithNewline = text.endsWith("\n");
+
+            if (endsWithNewline) {
+                lines.remove(lines.size() - 1);
+            }
+
+            return new FileContent(lines, endsWithNewline);
+        }
+
+        List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * Writes the contents to a file, encoding each line byte for byte.
+         * @param path File to write
+         * @throws IOException if the file can't be written
+         */
+        void write(final Path path) throws IOException {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+                for (int i = 0; i < lines.size(); i++) {
+                    if (i > 0) {
+                        out.write('\n');
+                    }
+
+                    out.write(UnifiedDiff.encode(lines.get(i)));
+                }
+
+                if (endsWithNewline && !lines.isEmpty()) {
+                    out.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * The result of patching one file: the staged file holding its new
+     * contents, or null if it is deleted.
+     */
+    private static final class Change {
+        private final Path path;
+        private final Path staged;
+
+        private Change(final Path path, final Path staged) {
+            this.path = path;
+            this.staged = staged;
+        }
+    }
+
+    /**
+     * A step of writing a change, and how to undo it: either the file
+     * previously at a path, moved aside to a backup, or a new file moved
+     * into place.
+     */
+    private static final class Written {
+        private final Path path;
+        private final Path backup;
+        private final boolean created;
+
+        private Written(final Path path, final Path backup, final boolean created) {
+            this.path = path;
+            this.backup = backup;
+            this.created = created;
+        }
+    }
+
+    /**
+     * The result of working out the changes to one file: either the changes
+     * to write, or an error.
+     */
+    private static final class Outcome {
+        private final List<Change> changes;
+        private final String error;
+
+        private Outcome(final List<Change> changes, final String error) {
+            this.changes = changes;
+            this.error = error;
+        }
+    }
+
+    @Override
+    public Result invoke(final File workspace, final VirtualChannel channel) throws IOException, InterruptedException {
+        final List<UnifiedDiff.FilePatch> patches;
+
+        try (InputStream in = Files.newInputStream(new File(patchFile).toPath())) {
+            patches = UnifiedDiff.parse(in);
+        }
+
+        final List<UnifiedDiff.FilePatch> previousPatches;
+
+        if (previousPatchFile == null) {
+            previousPatches = null;
+        } else {
+            try (InputStream in = Files.newInputStream(new File(previousPatchFile).toPath())) {
+                previousPatches = UnifiedDiff.parse(in);
+            }
+        }
+
+        final Path staging = dryRun
+                ? null
+                : Files.createTempDirectory(new File(patchFile).toPath().toAbsolutePath().getParent(), "patched");
+
+        try {
+            return previousPatches == null
+                    ? apply(workspace.toPath(), staging, patches, List.of())
+                    : applyInterdiff(workspace.toPath(), staging, previousPatches, patches);
+        } finally {
+            if (staging != null) {
+                Util.deleteRecursive(staging.toFile());
+            }
+        }
+    }
+
+    /**
+     * Replaces the changes made by one diff with those made by another,
+     * touching only the files where the two differ.
+     * @param root Directory the previous diff was applied in
+     * @param staging Directory to stage the patched files in, or null to
+     *        only check whether the patches apply
+     * @param previousPatches File patches already applied
+     * @param patches File patches to apply instead
+     * @return Outcome of applying the patches
+     */
+    static Result applyInterdiff(
+            final Path root,
+            final Path staging,
+            final List<UnifiedDiff.FilePatch> previousPatches,
+            final List<UnifiedDiff.FilePatch> patches)
+            throws IOException, InterruptedException {
+        final Map<String, UnifiedDiff.FilePatch> previousByPath = new LinkedHashMap<>();
+        final Set<String> paths = new HashSet<>();
+        boolean comparable = true;
+
+        for (UnifiedDiff.FilePatch patch : previousPatches) {
+            previousByPath.put(patch.getPath(), patch);
+        }
+
+        // Renames and copies touch two paths, and a file patched more than
+        // once can't be matched to a single patch in the other diff, so these
+        // can only be handled by applying the whole diff.
+        for (UnifiedDiff.FilePatch patch : patches) {
+            comparable &= !patch.isRename() && !patch.isCopy() && !patch.isBinary() && paths.add(patch.getPath());
+        }
+
+        for (UnifiedDiff.FilePatch patch : previousPatches) {
+            comparable &= !patch.isRename() && !patch.isCopy() && !patch.isBinary();
+        }
+
+        if (!comparable || previousByPath.size() != previousPatches.size()) {
+            return new Result(
+                    List.of(), List.of("The diffs rename or copy files, patch binary files or patch a file twice"));
+        }
+
+        final List<UnifiedDiff.FilePatch> toApply = new ArrayList<>();
+        final List<UnifiedDiff.FilePatch> toVerify = new ArrayList<>();
+
+        for (UnifiedDiff.FilePatch patch : patches) {
+            if (patch.equals(previousByPath.get(patch.getPath()))) {
+                previousByPath.remove(patch.getPath());
+                toVerify.add(patch);
+            }
+        }
+
+        // Revert the previous changes to each file before applying the new
+        // ones, which are grouped after them by path.
+        for (UnifiedDiff.FilePatch patch : previousByPath.values()) {
+            toApply.add(patch.reverse());
+        }
+
+        for (UnifiedDiff.FilePatch patch : patches) {
+            if (!toVerify.contains(patch)) {
+                toApply.add(patch);
+            }
+        }
+
+        return apply(root, staging, toApply, toVerify);
+    }
+
+    /**
+     * Applies parsed file patches to a directory.
+     * @param root Directory to apply the patches in
+     * @param staging Directory to stage the patched files in, or null to
+     *        only check whether the patches apply
+     * @param patches File patches
+     * @param alreadyApplied File patches which should already have been
+     *        applied. These are checked, but not written.
+     * @return Outcome of applying the patches
+     */
+    static Result apply(
+            final Path root,
+            final Path staging,
+            final List<UnifiedDiff.FilePatch> patches,
+            final List<UnifiedDiff.FilePatch> alreadyApplied)
+            throws IOException, InterruptedException {
+        // Patches to the same file must be applied in order, one after the
+        // other, so group them by file. Separate files are independent.
+        final Map<String, List<UnifiedDiff.FilePatch>> patchesByPath = new LinkedHashMap<>();
+        final Set<String> removed = new HashSet<>();
+
+        for (UnifiedDiff.FilePatch patch : patches) {
+            patchesByPath
+                    .computeIfAbsent(patch.getPath(), path -> new ArrayList<>())
+                    .add(patch);
+
+            if (patch.isDeletedFile()) {
+                removed.add(patch.getPath());
+            } else if (patch.isRename()) {
+                removed.add(patch.getOldPath());
+            }
+        }
+
+        final List<List<UnifiedDiff.FilePatch>> groups = new ArrayList<>(patchesByPath.values());
+        final int tasks = groups.size() + alreadyApplied.size();
+        final ForkJoinPool pool =
+                new ForkJoinPool(Math.max(1, Math.min(tasks, Runtime.getRuntime().availableProcessors())));
+
+        try {
+            final List<Outcome> outcomes = pool.submit(() -> Stream.concat(
+                                    IntStream.range(0, groups.size())
+                                            .parallel()
+                                            .mapToObj(i -> patchFile(
+                                                    root,
+                                                    staging == null ? null : staging.resolve(Integer.toString(i)),
+                                                    groups.get(i),
+                                                    removed)),
+                                    alreadyApplied.parallelStream().map(patch -> verifyFile(root, patch)))
+                            .toList())
+                    .get();
+
+            final List<String> files = new ArrayList<>(patchesByPath.keySet());
+            final List<String> errors = new ArrayList<>();
+            final List<Change> changes = new ArrayList<>();
+
+            for (Outcome outcome : outcomes) {
+                if (outcome.error != null) {
+                    errors.add(outcome.error);
+                } else {
+                    changes.addAll(outcome.changes);
+                }
+            }
+
+            if (!errors.isEmpty() || staging == null) {
+                return new Result(files, errors);
+            }
+
+            write(staging, changes);
+
+            return new Result(files, errors);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException("Unable to apply patch: " + cause.getMessage(), cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Works out the changes made by the patches to one file, without
+     * changing the workspace.
+     * @param root Directory the patches apply to
+     * @param staged File to write the patched contents to, or null in a
+     *        dry run
+     * @param patches Patches to the file, in order
+     * @param removed Paths which the diff deletes or renames away
+     * @return Changes to write, or an error
+     */
+    private static Outcome patchFile(
+            final Path root,
+            final Path staged,
+            final List<UnifiedDiff.FilePatch> patches,
+            final Set<String> removed) {
+        try {
+            return new Outcome(computeChanges(root, staged, patches, removed), null);
+        } catch (final PatchException e) {
+            return new Outcome(null, e.getMessage());
+        } catch (final IOException e) {
+            return new Outcome(
+                    null, String.format("Unable to patch %s: %s", patches.get(0).getPath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Checks that a file patch has already been applied, by checking that
+     * it can be reverted.
+     * @param root Directory the patch was applied in
+     * @param patch File patch
+     * @return An outcome with no changes, or an error
+     */
+    private static Outcome verifyFile(final Path root, final UnifiedDiff.FilePatch patch) {
+        try {
+            final Path target = resolve(root, patch.getPath());
+
+            if (patch.isDeletedFile()) {
+                if (Files.exists(target)) {
+                    throw new PatchException(String.format("%s: file should have been deleted", patch.getPath()));
+                }
+            } else {
+                if (!Files.isRegularFile(target)) {
+                    throw new PatchException(String.format("%s: file not found", patch.getPath()));
+                }
+
+                final FileContent reverted = applyHunks(
+                        FileContent.parse(UnifiedDiff.decode(Files.readAllBytes(target))), patch.reverse());
+
+                if (patch.isNewFile() && !reverted.lines.isEmpty()) {
+                    throw new PatchException(
+                            String.format("%s: file has contents not in the patch", patch.getPath()));
+                }
+            }
+
+            return new Outcome(List.of(), null);
+        } catch (final PatchException e) {
+            return new Outcome(null, e.getMessage());
+        } catch (final IOException e) {
+            return new Outcome(null, String.format("Unable to read %s: %s", patch.getPath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Works out the changes made by the patches to one file, staging its
+     * patched contents without changing the workspace.
+     * @param root Directory the patches apply to
+     * @param staged File to write the patched contents to, or null in a
+     *        dry run
+     * @param patches Patches to the file, in order
+     * @param removed Paths which the diff deletes or renames away, and so
+     *        may be replaced by a new, copied or renamed file
+     * @return Changes to write
+     */
+    private static List<Change> computeChanges(
+            final Path root, final Path staged, final List<UnifiedDiff.FilePatch> patches, final Set<String> removed)
+            throws IOException, PatchException {
+        final List<Change> changes = new ArrayList<>();
+        FileContent content = null;
+        Path original = null;
+        String mode = null;
+
+        for (UnifiedDiff.FilePatch patch : patches) {
+            if (patch.isBinary()) {
+                throw new PatchException(String.format(
+                        "%s: binary patches are not supported. Use RBTools to apply this patch.", patch.getPath()));
+            }
+
+            final Path target = resolve(root, patch.getPath());
+
+            if (content == null) {
+                if ((patch.isNewFile() || patch.isCopy() || patch.isRename())
+                        && Files.exists(target)
+                        && !removed.contains(patch.getPath())) {
+                    throw new PatchException(String.format("%s: file already exists", patch.getPath()));
+                }
+
+                if (patch.isNewFile()) {
+                    content = FileContent.parse("");
+                } else {
+                    original = resolve(root, patch.getOldPath());
+
+                    if (!Files.isRegularFile(original)) {
+                        throw new PatchException(String.format("%s: file not found", patch.getOldPath()));
+                    }
+
+                    content = FileContent.parse(UnifiedDiff.decode(Files.readAllBytes(original)));
+                }
+            }
+
+            content = applyHunks(content, patch);
+
+            if (patch.getNewMode() != null) {
+                mode = patch.getNewMode();
+            }
+
+            // The source of a copy is left in place.
+            if (patch.isRename()) {
+                changes.add(new Change(resolve(root, patch.getOldPath()), null));
+            }
+
+            if (patch.isDeletedFile() && !content.lines.isEmpty()) {
+                throw new PatchException(
+                        String.format("%s: file to delete has contents not in the patch", patch.getPath()));
+            }
+        }
+
+        final UnifiedDiff.FilePatch last = patches.get(patches.size() - 1);
+
+        if (last.isDeletedFile()) {
+            changes.add(new Change(resolve(root, last.getPath()), null));
+        } else if (staged != null) {
+            content.write(staged);
+
+            if (original != null) {
+                copyPermissions(original, staged);
+            }
+
+            if (mode != null) {
+                setExecutable(staged, mode.equals(EXECUTABLE_MODE));
+            }
+
+            changes.add(new Change(resolve(root, last.getPath()), staged));
+        }
+
+        return changes;
+    }
+
+    /**
+     * Gives a staged file the permissions of the file it was patched from,
+     * which would otherwise be lost when it is moved into place.
+     * @param original File the patched contents are based on
+     * @param staged Staged file
+     */
+    private static void copyPermissions(final Path original, final Path staged) throws IOException {
+        if (Files.getFileStore(staged).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(staged, Files.getPosixFilePermissions(original));
+        } else if (Files.isExecutable(original)) {
+            staged.toFile().setExecutable(true);
+        }
+    }
+
+    /**
+     * Sets or clears the executable bit of a staged file, following its
+     * mode in the diff. As with git, a file is made executable by everyone
+     * who can read it.
+     * @param staged Staged file
+     * @param executable Whether the file should be executable
+     */
+    private static void setExecutable(final Path staged, final boolean executable) throws IOException {
+        if (!Files.getFileStore(staged).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            staged.toFile().setExecutable(executable);
+            return;
+        }
+
+        final Set<PosixFilePermission> permissions = new HashSet<>(Files.getPosixFilePermissions(staged));
+
+        setExecutable(permissions, PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE, executable);
+        setExecutable(permissions, PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE, executable);
+        setExecutable(permissions, PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE, executable);
+        Files.setPosixFilePermissions(staged, permissions);
+    }
+
+    private static void setExecutable(
+            final Set<PosixFilePermission> permissions,
+            final PosixFilePermission read,
+            final PosixFilePermission execute,
+            final boolean executable) {
+        if (executable && permissions.contains(read)) {
+            permissions.add(execute);
+        } else {
+            permissions.remove(execute);
+        }
+    }
+
+    /**
+     * Applies the hunks of a file patch to the contents of the file.
+     * @param original Original contents
+     * @param patch File patch
+     * @return Patched contents
+     */
+    static FileContent applyHunks(final FileContent original, final UnifiedDiff.FilePatch patch)
+            throws PatchException {
+        final List<String> lines = original.lines;
+        final List<String> result = new ArrayList<>(lines.size());
+        boolean endsWithNewline = original.endsWithNewline;
+        int cursor = 0;
+        int offset = 0;
+        int hunkNumber = 0;
+
+        for (UnifiedDiff.Hunk hunk : patch.getHunks()) {
+            hunkNumber++;
+
+            // Hunks which only add lines give the line they follow, rather
+            // than the first line they replace.
+            final List<String> oldLines = hunk.getOldLines();
+            final int headerPosition = hunk.getOldCount() == 0 ? hunk.getOldStart() : hunk.getOldStart() - 1;
+            final int position = findHunk(lines, oldLines, cursor, headerPosition + offset);
+
+            if (position == -1) {
+                throw new PatchException(String.format(
+                        "%s: hunk #%d at line %d does not apply", patch.getPath(), hunkNumber, hunk.getOldStart()));
+            }
+
+            result.addAll(lines.subList(cursor, position));
+            result.addAll(hunk.getNewLines());
+            cursor = position + oldLines.size();
+            offset = position - headerPosition;
+
+            if (cursor == lines.size()) {
+                if (hunk.isNewMissingNewline()) {
+                    endsWithNewline = false;
+                } else if (hunk.isOldMissingNewline() || lines.isEmpty()) {
+                    endsWithNewline = true;
+                }
+            }
+        }
+
+        result.addAll(lines.subList(cursor, lines.size()));
+
+        return new FileContent(result, endsWithNewline);
+    }
+
+    /**
+     * Finds where a hunk's original lines appear in the file, starting at
+     * the expected position and moving outwards.
+     * @param lines File lines
+     * @param oldLines Lines the hunk expects
+     * @param start First position the hunk may apply at
+     * @param expected Position given by the hunk header
+     * @return Position of the hunk, or -1 if its lines aren't found
+     */
+    private static int findHunk(
+            final List<String> lines, final List<String> oldLines, final int start, final int expected) {
+        final int last = lines.size() - oldLines.size();
+
+        if (last < start) {
+            return -1;
+        }
+
+        final int clamped = Math.max(start, Math.min(expected, last));
+
+        for (int distance = 0; clamped - distance >= start || clamped + distance <= last; distance++) {
+            if (clamped + distance <= last && matches(lines, oldLines, clamped + distance)) {
+                return clamped + distance;
+            }
+
+            if (distance > 0 && clamped - distance >= start && matches(lines, oldLines, clamped - distance)) {
+                return clamped - distance;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean matches(final List<String> lines, final List<String> oldLines, final int position) {
+        return lines.subList(position, position + oldLines.size()).equals(oldLines);
+    }
+
+    /**
+     * Resolves a path from the diff within the workspace, refusing any path
+     * which would escape it.
+     * @param root Workspace directory
+     * @param path Path from the diff
+     * @return Resolved path
+     */
+    private static Path resolve(final Path root, final String path) throws PatchException {
+        final Path resolved = root.resolve(path).normalize();
+
+        if (!resolved.startsWith(root.normalize()) || Path.of(path).isAbsolute()) {
+            throw new PatchException(String.format("%s: path is outside the workspace", path));
+        }
+
+        return resolved;
+    }
+
+    /**
+     * Writes the changes to the workspace, removing files before writing
+     * any. If a change can't be written, the changes already written are
+     * undone.
+     * @param staging Staging directory, which also holds the files moved
+     *        aside
+     * @param changes Changes to write
+     * @throws IOException if a change can't be written
+     */
+    private static void write(final Path staging, final List<Change> changes) throws IOException {
+        final List<Change> ordered = new ArrayList<>(changes.size());
+        final Deque<Written> written = new ArrayDeque<>();
+
+        changes.stream().filter(change -> change.staged == null).forEach(ordered::add);
+        changes.stream().filter(change -> change.staged != null).forEach(ordered::add);
+
+        try {
+            for (int i = 0; i < ordered.size(); i++) {
+                final Change change = ordered.get(i);
+                Path backup = null;
+
+                if (Files.exists(change.path, LinkOption.NOFOLLOW_LINKS)) {
+                    backup = staging.resolve("backup-" + i);
+                    Files.move(change.path, backup);
+                }
+
+                written.push(new Written(change.path, backup, false));
+
+                if (change.staged != null) {
+                    Files.createDirectories(change.path.getParent());
+                    Files.move(change.staged, change.path);
+                    written.push(new Written(change.path, null, true));
+                }
+            }
+        } catch (final IOException e) {
+            while (!written.isEmpty()) {
+                final Written undo = written.pop();
+
+                try {
+                    if (undo.created) {
+                        Files.deleteIfExists(undo.path);
+                    }
+
+                    if (undo.backup != null) {
+                        Files.move(undo.backup, undo.path);
+                    }
+                } catch (final IOException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+            }
+
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.reviewboard.rbjenkins.steps;
+
+import org.reviewboard.rbjenkins.Messages;
+
+/**
+ * The ways in which the setup step can install RBTools into a node's
+ * virtualenv.
+ */
+public enum RBToolsInstaller {
+    /**
+     * Creates the virtualenv with python3 and installs RBTools from the
+     * package index using pip.
+     */
+    PIP {
+        @Override
+        public String getDisplayName() {
+            return Messages.RBToolsInstaller_Pip();
+        }
+    },
+
+    /**
+     * Creates the virtualenv and installs RBTools using uv, which is much
+     * faster than pip. Falls back to pip if uv isn't available on the node.
+     */
+    UV {
+        @Override
+        public String getDisplayName() {
+            return Messages.RBToolsInstaller_Uv();
+        }
+    },
+
+    /**
+     * Installs RBTools without network access from a wheelhouse copied from
+     * the controller, using the pinned hashes in its requirements.txt.
+     */
+    WHEELHOUSE {
+        @Override
+        public String getDisplayName() {
+            return Messages.RBToolsInstaller_Wheelhouse();
+        }
+    };
+
+    /**
+     * Returns the name of the installer, as shown in the Jenkins GUI.
+     * @return Display name
+     */
+    public abstract String getDisplayName();
+}
@@ -0,0 +1,145 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Remembers whether rbt executables are available on each node, so that
+ * builds don't need to start a Python interpreter to check every time.
+ *
+ * Results for an executable given by path are tied to a fingerprint of the
+ * file, made from its modification time and size, and are checked again if
+ * the file changes. Results for an executable found on the PATH can't be
+ * fingerprinted, so they expire after a while instead. All results for a
+ * node are forgotten when it reconnects.
+ */
+@Extension
+public class RBToolsProbeCache {
+    private static final long PATH_PROBE_TTL = SystemProperties.getLong(
+            RBToolsProbeCache.class.getName() + ".pathProbeTTL", TimeUnit.MINUTES.toMillis(10));
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * A cached probe result.
+     */
+    private static final class Entry {
+        private final boolean available;
+        private final String fingerprint;
+        private final long expiresAt;
+
+        private Entry(final boolean available, final String fingerprint, final long expiresAt) {
+            this.available = available;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Returns the probe cache for this Jenkins instance.
+     * @return Probe cache
+     */
+    public static RBToolsProbeCache get() {
+        return ExtensionList.lookupSingleton(RBToolsProbeCache.class);
+    }
+
+    /**
+     * Returns the fingerprint of an rbt executable on a node.
+     * @param workspace Workspace on the node
+     * @param rbtExecutable Path to or name of the rbt executable
+     * @return Fingerprint, or null if the executable is looked up on the
+     *         PATH and can't be fingerprinted
+     */
+    public String fingerprint(final FilePath workspace, final String rbtExecutable)
+            throws IOException, InterruptedException {
+        if (!rbtExecutable.contains("/") && !rbtExecutable.contains("\\")) {
+            return null;
+        }
+
+        return new FilePath(workspace.getChannel(), rbtExecutable).act(new Fingerprint());
+    }
+
+    /**
+     * Returns the cached probe result for an rbt executable.
+     * @param key Cache key, identifying the node, executable and PATH
+     * @param fingerprint Current fingerprint of the executable, or null
+     * @return Whether the executable is available, or null if not cached
+     */
+    public Boolean lookup(final String key, final String fingerprint) {
+        final Entry entry = entries.get(key);
+
+        if (entry == null
+                || !Objects.equals(entry.fingerprint, fingerprint)
+                || System.currentTimeMillis() >= entry.expiresAt) {
+            return null;
+        }
+
+        return entry.available;
+    }
+
+    /**
+     * Stores the probe result for an rbt executable.
+     * @param key Cache key, identifying the node, executable and PATH
+     * @param fingerprint Current fingerprint of the executable, or null
+     * @param available Whether the executable is available
+     */
+    public void store(final String key, final String fingerprint, final boolean available) {
+        final long expiresAt = fingerprint == null ? System.currentTimeMillis() + PATH_PROBE_TTL : Long.MAX_VALUE;
+        entries.put(key, new Entry(available, fingerprint, expiresAt));
+    }
+
+    /**
+     * Returns the cache key for an rbt executable on a node.
+     * @param computer Node's computer
+     * @param rbtExecutable Path to or name of the rbt executable
+     * @param path PATH the executable is looked up in
+     * @return Cache key
+     */
+    public static String key(final Computer computer, final String rbtExecutable, final String path) {
+        return computer.getName() + "\n" + rbtExecutable + "\n" + path;
+    }
+
+    /**
+     * Forgets all probe results for a node.
+     * @param computer Node's computer
+     */
+    public void invalidate(final Computer computer) {
+        entries.keySet().removeIf(key -> key.startsWith(computer.getName() + "\n"));
+    }
+
+    /**
+     * Computes the fingerprint of a file on the agent.
+     */
+    private static final class Fingerprint extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String invoke(final File f, final VirtualChannel channel) {
+            return f.isFile() ? f.lastModified() + ":" + f.length() : "missing";
+        }
+    }
+
+    /**
+     * Forgets probe results for nodes when they reconnect, since their
+     * environment may have changed.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(final Computer c, final TaskListener listener) {
+            get().invalidate(c);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.AbortException;
+import hudson.model.Run;
+import java.io.Serializable;
+import java.net.URL;
+import org.reviewboard.rbjenkins.common.ReviewBoardException;
+import org.reviewboard.rbjenkins.common.ReviewBoardUtils;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.ReviewRequestAction;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+/**
+ * The review request a Pipeline is building and the configuration of its
+ * Review Board server, resolved once and shared by the Review Board steps
+ * inside a withReviewBoard block.
+ *
+ * The server configuration isn't saved with the Pipeline. It is looked up
+ * again, once, if the Pipeline resumes after a restart.
+ */
+public class ReviewBoardContext implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int reviewId;
+    private final int revision;
+    private final int statusUpdateId;
+    private final URL serverURL;
+    private transient ReviewBoardServerConfiguration serverConfig;
+
+    private ReviewBoardContext(final ReviewRequest reviewRequest) {
+        this.reviewId = reviewRequest.getReviewId();
+        this.revision = reviewRequest.getRevision();
+        this.statusUpdateId = reviewRequest.getStatusUpdateId();
+        this.serverURL = reviewRequest.getServerURL();
+    }
+
+    /**
+     * Resolves the review request from a build's parameters, along with the
+     * configuration of its server.
+     * @param run Current build
+     * @return Resolved context
+     * @throws AbortException if the parameters are missing or invalid, or
+     *         the server isn't configured
+     */
+    public static ReviewBoardContext resolve(final Run<?, ?> run) throws AbortException {
+        final ReviewRequestAction reviewRequestAction = ReviewRequestAction.get(run);
+
+        if (reviewRequestAction.getError() != null) {
+            throw new AbortException(reviewRequestAction.getError());
+        }
+
+        final ReviewRequest reviewRequest = reviewRequestAction.getReviewRequest();
+
+        if (reviewRequest.getReviewId() == -1
+                || reviewRequest.getStatusUpdateId() == -1
+                || reviewRequest.getServerURL() == null) {
+            throw new AbortException("REVIEWBOARD_REVIEW_ID, or REVIEWBOARD_STATUS_UPDATE_ID, or "
+                    + "REVIEWBOARD_SERVER not provided in parameters");
+        }
+
+        final ReviewBoardContext context = new ReviewBoardContext(reviewRequest);
+        context.getServerConfiguration();
+
+        return context;
+    }
+
+    /**
+     * Returns the review request being built.
+     * @return Review request
+     */
+    public ReviewRequest getReviewRequest() {
+        return new ReviewRequest(reviewId, revision, statusUpdateId, serverURL);
+    }
+
+    /**
+     * Returns the configuration of the review request's server.
+     * @return Server configuration
+     * @throws AbortException if the server is no longer configured
+     */
+    public ReviewBoardServerConfiguration getServerConfiguration() throws AbortException {
+        if (serverConfig == null) {
+            try {
+                serverConfig = ReviewBoardUtils.getServerConfiguration(serverURL);
+            } catch (final ReviewBoardException e) {
+                throw new AbortException(e.getMessage());
+            }
+        }
+
+        return serverConfig;
+    }
+}
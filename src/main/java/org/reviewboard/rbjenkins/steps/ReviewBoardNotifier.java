@@ -11,7 +11,7 @@ import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.util.concurrent.CompletableFuture;
 import jenkins.model.GlobalConfiguration;
 import jenkins.tasks.SimpleBuildStep;
 import org.jenkinsci.Symbol;
@@ -21,6 +21,9 @@ import org.reviewboard.rbjenkins.Messages;
 import org.reviewboard.rbjenkins.common.ReviewBoardException;
 import org.reviewboard.rbjenkins.common.ReviewBoardUtils;
 import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.ReviewRequestAction;
+import org.reviewboard.rbjenkins.common.StatusUpdate;
+import org.reviewboard.rbjenkins.common.StatusUpdateDispatcher;
 import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
 
 /**
@@ -50,15 +53,15 @@ public class ReviewBoardNotifier extends Notifier implements SimpleBuildStep {
             @NonNull Launcher launcher,
             @NonNull TaskListener listener)
             throws InterruptedException, IOException {
-        final ReviewRequest reviewRequest;
+        final ReviewRequestAction reviewRequestAction = ReviewRequestAction.get(run);
 
-        try {
-            reviewRequest = ReviewBoardUtils.parseReviewRequestFromParameters(run.getActions(ParametersAction.class));
-        } catch (MalformedURLException e) {
-            listener.error("URL provided in REVIEWBOARD_SERVER is not a " + "valid URL.");
+        if (reviewRequestAction.getError() != null) {
+            listener.error(reviewRequestAction.getError());
             return;
         }
 
+        final ReviewRequest reviewRequest = reviewRequestAction.getReviewRequest();
+
         // Check that we've successfully received all parameters.
         if (reviewRequest.getReviewId() == -1
                 || reviewRequest.getStatusUpdateId() == -1
@@ -68,32 +71,20 @@ public class ReviewBoardNotifier extends Notifier implements SimpleBuildStep {
             return;
         }
 
-        final Result result = run.getResult();
-        final ReviewRequest.StatusUpdateState state;
-        final String description;
-
-        if (result == Result.SUCCESS) {
-            state = ReviewRequest.StatusUpdateState.SUCCESS_STATE;
-            description = Messages.ReviewBoard_Job_Success();
-        } else {
-            if (result == Result.ABORTED) {
-                state = ReviewRequest.StatusUpdateState.ERROR_STATE;
-                description = Messages.ReviewBoard_Job_Aborted();
-            } else if (result == Result.NOT_BUILT) {
-                state = ReviewRequest.StatusUpdateState.ERROR_STATE;
-                description = Messages.ReviewBoard_Job_NotBuilt();
-            } else if (result == Result.UNSTABLE) {
-                state = ReviewRequest.StatusUpdateState.FAILURE_STATE;
-                description = Messages.ReviewBoard_Job_Unstable();
-            } else {
-                state = ReviewRequest.StatusUpdateState.FAILURE_STATE;
-                description = Messages.ReviewBoard_Job_Failure();
-            }
-        }
+        final BuildStatus status = BuildStatus.of(run.getResult(), BuildStatus.getCausesOfInterruption(run));
 
-        // Notify review board of the build result
+        // Notify review board of the build result. It is sent in the
+        // background, so a failure is only reported here if it happens
+        // before the build finishes. It is always logged on the controller.
         try {
-            updateStatusUpdate(reviewRequest, state, description);
+            final CompletableFuture<Void> sent =
+                    updateStatusUpdate(reviewRequest, status.state(), status.description());
+            listener.getLogger().println("Queued the result of the build to be sent to Review Board");
+            sent.whenComplete((ignored, error) -> {
+                if (error != null && run.isLogUpdated()) {
+                    listener.error("Unable to notify Review Board of the result of the build: " + error.getMessage());
+                }
+            });
         } catch (final ReviewBoardException e) {
             listener.error("Unable to notify Review Board of the result of " + "the build: " + e.getMessage());
         }
@@ -101,10 +92,23 @@ public class ReviewBoardNotifier extends Notifier implements SimpleBuildStep {
         return;
     }
 
-    public void updateStatusUpdate(
+    /**
+     * Queues the status update to be sent to Review Board in the background,
+     * so that the build does not wait for Review Board to respond.
+     * @param reviewRequest Review request
+     * @param state Status update state
+     * @param description Status update description
+     * @return Future which completes once Review Board has accepted the
+     *         update
+     */
+    public CompletableFuture<Void> updateStatusUpdate(
             final ReviewRequest reviewRequest, final ReviewRequest.StatusUpdateState state, final String description)
             throws IOException, ReviewBoardException {
-        ReviewBoardUtils.updateStatusUpdate(reviewRequest, state, description, null, null);
+        // Look up the server now so that configuration problems are still
+        // reported in the build log.
+        ReviewBoardUtils.getServerConfiguration(reviewRequest.getServerURL());
+
+        return StatusUpdateDispatcher.get().submit(new StatusUpdate(reviewRequest, state, description, null, null));
     }
 
     /**
@@ -0,0 +1,324 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.queue.QueueListener;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.DiffCache;
+import org.reviewboard.rbjenkins.common.ReviewBoardException;
+import org.reviewboard.rbjenkins.common.ReviewBoardUtils;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.ReviewRequestAction;
+import org.reviewboard.rbjenkins.common.StatusUpdate;
+import org.reviewboard.rbjenkins.common.StatusUpdateDispatcher;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+/**
+ * Starts work for a review request build as soon as it enters the queue,
+ * rather than once it has an executor.
+ *
+ * The diff is downloaded into the diff cache in the background, so that the
+ * setup step finds it there when the build starts. This can be turned off
+ * in the global configuration. If enabled there, Review Board is also told
+ * that the build is waiting in the queue, and that it was cancelled if it
+ * leaves the queue without running.
+ *
+ * If enabled in the global configuration, queued and running builds of the
+ * same job for older diff revisions of the review request are also aborted,
+ * and reported to Review Board as superseded.
+ *
+ * Queue listeners are called while the queue is locked, so all of this is
+ * done on a background thread.
+ */
+@Extension
+public class ReviewBoardQueueListener extends QueueListener {
+    private static final Logger LOGGER = Logger.getLogger(ReviewBoardQueueListener.class.getName());
+
+    /**
+     * IDs of queued items cancelled because they were superseded, which are
+     * reported as superseded rather than as cancelled when they leave the
+     * queue.
+     */
+    private static final Set<Long> SUPERSEDED_ITEMS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Handles a review request build entering the queue.
+     * @param item Queued item
+     */
+    @Override
+    public void onEnterWaiting(final Queue.WaitingItem item) {
+        Computer.threadPoolForRemoting.submit(() -> handleQueued(item));
+    }
+
+    /**
+     * Handles a review request build leaving the queue. If it was cancelled
+     * after being reported as queued, Review Board is told, since otherwise
+     * the review request would stay pending.
+     * @param item Item which left the queue
+     */
+    @Override
+    public void onLeft(final Queue.LeftItem item) {
+        if (SUPERSEDED_ITEMS.remove(item.getId()) || !item.isCancelled()) {
+            return;
+        }
+
+        Computer.threadPoolForRemoting.submit(() -> {
+            final ReviewBoardGlobalConfiguration globalConfig =
+                    GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+
+            if (globalConfig == null || !globalConfig.isReportQueuedBuilds()) {
+                return;
+            }
+
+            final ReviewRequest reviewRequest = parseReviewRequest(item.getActions(ParametersAction.class));
+
+            if (reviewRequest != null && globalConfig.getServerConfiguration(reviewRequest.getServerURL()) != null) {
+                StatusUpdateDispatcher.get()
+                        .submit(new StatusUpdate(
+                                reviewRequest,
+                                ReviewRequest.StatusUpdateState.ERROR_STATE,
+                                Messages.ReviewBoard_Job_Cancelled(),
+                                null,
+                                null));
+            }
+        });
+    }
+
+    /**
+     * Does the work for a review request build which entered the queue.
+     * @param item Queued item
+     */
+    private static void handleQueued(final Queue.WaitingItem item) {
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+
+        if (globalConfig == null
+                || !(globalConfig.isPrefetchDiffs()
+                        || globalConfig.isReportQueuedBuilds()
+                        || globalConfig.isCancelSupersededBuilds())) {
+            return;
+        }
+
+        final ReviewRequest reviewRequest = parseReviewRequest(item.getActions(ParametersAction.class));
+
+        if (reviewRequest == null) {
+            return;
+        }
+
+        final ReviewBoardServerConfiguration serverConfig =
+                globalConfig.getServerConfiguration(reviewRequest.getServerURL());
+
+        if (serverConfig == null) {
+            return;
+        }
+
+        if (globalConfig.isCancelSupersededBuilds()) {
+            cancelSupersededBuilds(item, reviewRequest, serverConfig, globalConfig);
+        }
+
+        // The build may have started, and reported itself as running, while
+        // this was waiting for a thread.
+        if (globalConfig.isReportQueuedBuilds() && Queue.getInstance().getItem(item.getId()) != null) {
+            reportQueued(item, reviewRequest);
+        }
+
+        if (globalConfig.isPrefetchDiffs()) {
+            prefetchDiff(reviewRequest, serverConfig);
+        }
+    }
+
+    /**
+     * Tells Review Board that a build is waiting in the queue.
+     * @param item Queued item
+     * @param reviewRequest Review request being built
+     */
+    private static void reportQueued(final Queue.WaitingItem item, final ReviewRequest reviewRequest) {
+        final String rootURL = Jenkins.get().getRootUrl();
+
+        StatusUpdateDispatcher.get()
+                .submit(new StatusUpdate(
+                        reviewRequest,
+                        ReviewRequest.StatusUpdateState.PENDING_STATE,
+                        "waiting in queue",
+                        rootURL == null ? null : rootURL + item.task.getUrl(),
+                        rootURL == null ? null : "See job"));
+    }
+
+    /**
+     * Downloads the diff of a queued build into the diff cache.
+     * @param reviewRequest Review request being built
+     * @param serverConfig Review Board server configuration
+     */
+    private static void prefetchDiff(
+            final ReviewRequest reviewRequest, final ReviewBoardServerConfiguration serverConfig) {
+        try {
+            DiffCache.get().fetch(serverConfig, reviewRequest);
+        } catch (final IOException | ReviewBoardException e) {
+            // The setup step downloads the diff again, and reports any
+            // error, once the build starts.
+            LOGGER.log(
+                    Level.FINE,
+                    String.format(
+                            "Unable to prefetch diff revision %d of review request %d",
+                            reviewRequest.getRevision(), reviewRequest.getReviewId()),
+                    e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Aborts queued and running builds of the same job for older diff
+     * revisions of the review request.
+     * @param item Queued item for the newer diff revision
+     * @param reviewRequest Review request being built
+     * @param serverConfig Review Board server configuration
+     * @param globalConfig Global configuration
+     */
+    private static void cancelSupersededBuilds(
+            final Queue.WaitingItem item,
+            final ReviewRequest reviewRequest,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewBoardGlobalConfiguration globalConfig) {
+        final Queue queue = Queue.getInstance();
+
+        for (Queue.Item other : queue.getItems(item.task)) {
+            if (other == item) {
+                continue;
+            }
+
+            final ReviewRequest older = getSuperseded(
+                    parseReviewRequest(other.getActions(ParametersAction.class)),
+                    reviewRequest,
+                    serverConfig,
+                    globalConfig);
+
+            if (older == null) {
+                continue;
+            }
+
+            SUPERSEDED_ITEMS.add(other.getId());
+
+            if (queue.cancel(other)) {
+                LOGGER.log(Level.FINE, "Cancelled queued build {0}, superseded by {1}", new Object[] {
+                    older, reviewRequest
+                });
+                reportSuperseded(older, reviewRequest, null);
+            } else {
+                SUPERSEDED_ITEMS.remove(other.getId());
+            }
+        }
+
+        for (Computer computer : Jenkins.get().getComputers()) {
+            for (Executor executor : computer.getAllExecutors()) {
+                if (!(executor.getCurrentExecutable() instanceof Run<?, ?> run) || run.getParent() != item.task) {
+                    continue;
+                }
+
+                final ReviewRequestAction action = ReviewRequestAction.get(run);
+                final ReviewRequest older = action.getError() == null
+                        ? getSuperseded(action.getReviewRequest(), reviewRequest, serverConfig, globalConfig)
+                        : null;
+
+                if (older != null) {
+                    LOGGER.log(Level.FINE, "Aborting build {0}, superseded by {1}", new Object[] {
+                        run, reviewRequest
+                    });
+                    executor.interrupt(Result.ABORTED, new SupersededCause(reviewRequest.getRevision()));
+                    reportSuperseded(older, reviewRequest, run.getAbsoluteUrl());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the review request of another build if it is for an older diff
+     * revision of the same review request on the same server.
+     * @param other Review request of the other build, or null
+     * @param reviewRequest Newer review request
+     * @param serverConfig Server configuration of the newer review request
+     * @param globalConfig Global configuration
+     * @return Older review request, or null
+     */
+    private static ReviewRequest getSuperseded(
+            final ReviewRequest other,
+            final ReviewRequest reviewRequest,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewBoardGlobalConfiguration globalConfig) {
+        if (other == null
+                || !isComplete(other)
+                || other.getReviewId() != reviewRequest.getReviewId()
+                || other.getRevision() >= reviewRequest.getRevision()
+                || globalConfig.getServerConfiguration(other.getServerURL()) != serverConfig) {
+            return null;
+        }
+
+        return other;
+    }
+
+    /**
+     * Tells Review Board that a build was superseded. Review Board has no
+     * state for this, so it is reported as an error with a description
+     * naming the newer diff revision, rather than as a failed build.
+     * @param older Review request of the superseded build
+     * @param newer Review request which superseded it
+     * @param url URL of the superseded build, or null if it never started
+     */
+    private static void reportSuperseded(final ReviewRequest older, final ReviewRequest newer, final String url) {
+        StatusUpdateDispatcher.get()
+                .submit(new StatusUpdate(
+                        older,
+                        ReviewRequest.StatusUpdateState.ERROR_STATE,
+                        Messages.ReviewBoard_Job_Superseded(Integer.toString(newer.getRevision())),
+                        url,
+                        url == null ? null : "See build"));
+    }
+
+    /**
+     * Parses the review request from a build's parameters.
+     * @param actions Parameters of the build
+     * @return Review request, or null if the parameters are missing or
+     *         invalid
+     */
+    private static ReviewRequest parseReviewRequest(final List<ParametersAction> actions) {
+        final ReviewRequest reviewRequest;
+
+        try {
+            reviewRequest = ReviewBoardUtils.parseReviewRequestFromParameters(actions);
+        } catch (final MalformedURLException | NumberFormatException e) {
+            // The setup step reports invalid parameters once the build
+            // starts.
+            return null;
+        }
+
+        return isComplete(reviewRequest) ? reviewRequest : null;
+    }
+
+    /**
+     * Returns whether a review request has all of the parameters a build
+     * needs.
+     * @param reviewRequest Review request
+     * @return true if no parameters are missing
+     */
+    private static boolean isComplete(final ReviewRequest reviewRequest) {
+        return reviewRequest.getReviewId() != -1
+                && reviewRequest.getRevision() != -1
+                && reviewRequest.getStatusUpdateId() != -1
+                && reviewRequest.getServerURL() != null;
+    }
+}
@@ -5,35 +5,76 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
+import hudson.Util;
 import hudson.model.*;
+import hudson.slaves.WorkspaceList;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 import jenkins.model.GlobalConfiguration;
+import jenkins.model.InterruptedBuildAction;
+import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.DiffCache;
+import org.reviewboard.rbjenkins.common.DiffStats;
 import org.reviewboard.rbjenkins.common.ReviewBoardException;
 import org.reviewboard.rbjenkins.common.ReviewBoardUtils;
 import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.ReviewRequestAction;
+import org.reviewboard.rbjenkins.common.StatusUpdate;
+import org.reviewboard.rbjenkins.common.StatusUpdateDispatcher;
 import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
 import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
 
 /**
- * Creates a build step in Jenkins which will install and use rbtools to apply
- * the patch from Review Board for the given review request.
+ * Creates a build step in Jenkins which will apply the patch from Review Board
+ * for the given review request. The patch is fetched directly from the Review
+ * Board API, or optionally with rbtools, which this step can install.
  */
 public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
     private static final String VENV_DIR = ".rbtools-venv";
+    private static final String CACHE_DIR = "caches/rbtools";
+    private static final String PATCH_FILE = "patch.diff";
+    private static final String MANIFEST_FILE = "reviewboard-changed-files.txt";
+    private static final String WHEELHOUSE_DIR = "rbtools-wheelhouses";
+    private static final String WHEELHOUSE_REQUIREMENTS = "requirements.txt";
+    private static final ConcurrentHashMap<String, ReentrantLock> INSTALL_LOCKS = new ConcurrentHashMap<>();
+
+    // The characters allowed in a PEP 440 version. The version is used in
+    // the path of the RBTools cache, so it must not start with a dot.
+    private static final Pattern RBTOOLS_VERSION = Pattern.compile("[A-Za-z0-9][A-Za-z0-9.+!-]*");
+
+    // A full SHA-1 or SHA-256 Git commit ID.
+    private static final Pattern GIT_COMMIT_ID = Pattern.compile("[0-9a-f]{40}|[0-9a-f]{64}");
 
     private boolean downloadOnly = false;
     private boolean installRBTools = true;
+    private Boolean useRBTools = Boolean.TRUE;
+    private String rbtoolsVersion;
+    private RBToolsInstaller installer;
+    private String wheelhouse;
+    private String includes;
+    private String excludes;
 
     /**
      * Constructs the setup step.
@@ -44,6 +85,25 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
         this.installRBTools = installRBTools;
     }
 
+    /**
+     * Keeps configurations saved before the useRBTools option was added
+     * using rbt patch, since the patch applier can't handle every
+     * repository type rbt patch supports. An invalid RBTools version, which
+     * can only come from editing the configuration by hand, is dropped.
+     * @return This step
+     */
+    protected Object readResolve() {
+        if (useRBTools == null) {
+            useRBTools = Boolean.TRUE;
+        }
+
+        if (rbtoolsVersion != null && !RBTOOLS_VERSION.matcher(rbtoolsVersion).matches()) {
+            rbtoolsVersion = null;
+        }
+
+        return this;
+    }
+
     public boolean getDownloadOnly() {
         return downloadOnly;
     }
@@ -52,10 +112,117 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
         return installRBTools;
     }
 
+    public boolean getUseRBTools() {
+        return useRBTools;
+    }
+
+    /**
+     * Sets whether to download and apply the patch using rbt patch rather
+     * than fetching and applying it directly. This is slower, but supports
+     * binary patches and repositories with their own patch formats.
+     *
+     * Steps created in code use rbt patch unless this is turned off, as
+     * they did before the option existed. New steps created in the
+     * configuration form default to applying the patch directly.
+     * @param useRBTools Whether to use rbt patch
+     */
+    @DataBoundSetter
+    public void setUseRBTools(final boolean useRBTools) {
+        this.useRBTools = useRBTools;
+    }
+
+    public String getRbtoolsVersion() {
+        return rbtoolsVersion;
+    }
+
+    /**
+     * Sets the version of RBTools to install. If not set, the latest version
+     * is installed.
+     * @param rbtoolsVersion RBTools version, or null for the latest
+     * @throws IllegalArgumentException if the version contains characters
+     *         not allowed in a Python package version
+     */
+    @DataBoundSetter
+    public void setRbtoolsVersion(final String rbtoolsVersion) {
+        final String version = Util.fixEmptyAndTrim(rbtoolsVersion);
+
+        if (version != null && !RBTOOLS_VERSION.matcher(version).matches()) {
+            throw new IllegalArgumentException(Messages.ReviewBoard_Error_InvalidRBToolsVersion());
+        }
+
+        this.rbtoolsVersion = version;
+    }
+
+    public RBToolsInstaller getInstaller() {
+        return installer == null ? RBToolsInstaller.PIP : installer;
+    }
+
+    /**
+     * Sets how RBTools is installed when it isn't already available.
+     * @param installer RBTools installer, or null to install using pip
+     */
+    @DataBoundSetter
+    public void setInstaller(final RBToolsInstaller installer) {
+        this.installer = installer == RBToolsInstaller.PIP ? null : installer;
+    }
+
+    public String getWheelhouse() {
+        return wheelhouse;
+    }
+
+    /**
+     * Sets the wheelhouse to install RBTools from when using the wheelhouse
+     * installer. This is the name of a directory, .zip or .tar.gz archive in
+     * the rbtools-wheelhouses directory of the Jenkins home directory.
+     * @param wheelhouse Wheelhouse name, or null
+     */
+    @DataBoundSetter
+    public void setWheelhouse(final String wheelhouse) {
+        this.wheelhouse = Util.fixEmptyAndTrim(wheelhouse);
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Sets the Ant-style patterns, separated by commas or newlines, of the
+     * files a diff must change for the build to run. If not set, any change
+     * is built.
+     * @param includes Patterns, or null
+     */
+    @DataBoundSetter
+    public void setIncludes(final String includes) {
+        this.includes = Util.fixEmptyAndTrim(includes);
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * Sets the Ant-style patterns, separated by commas or newlines, of the
+     * files whose changes are ignored when deciding whether to run the build.
+     * @param excludes Patterns, or null
+     */
+    @DataBoundSetter
+    public void setExcludes(final String excludes) {
+        this.excludes = Util.fixEmptyAndTrim(excludes);
+    }
+
     /**
      * This function is called as part of a build when the setup step has been
-     * added. This will install rbtools and then use it to apply the patch
-     * for the given review request, as specified in the build parameters.
+     * added. This will download and apply the patch for the given review
+     * request, as specified in the build parameters, either directly or
+     * using rbtools.
+     *
+     * If path filters are set and the diff doesn't change any matching
+     * files, the build is stopped with a result of NOT_BUILT and reported to
+     * Review Board as skipped.
+     *
+     * Once the patch is applied, the files it changes are listed in a
+     * manifest next to the workspace and summarized in environment variables
+     * for later build steps.
      * @param run Current build
      * @param workspace Active workspace
      * @param launcher Process launcher
@@ -65,16 +232,16 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
     public void perform(
             final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener)
             throws InterruptedException, IOException {
-        final ReviewRequest reviewRequest;
+        final ReviewRequestAction reviewRequestAction = ReviewRequestAction.get(run);
 
-        try {
-            reviewRequest = ReviewBoardUtils.parseReviewRequestFromParameters(run.getActions(ParametersAction.class));
-        } catch (MalformedURLException e) {
-            listener.error("URL provided in REVIEWBOARD_SERVER is not a valid URL.");
+        if (reviewRequestAction.getError() != null) {
+            listener.error(reviewRequestAction.getError());
             run.setResult(Result.FAILURE);
             return;
         }
 
+        final ReviewRequest reviewRequest = reviewRequestAction.getReviewRequest();
+
         // Check that we've successfully received all required parameters.
         if (reviewRequest.getReviewId() == -1
                 || reviewRequest.getRevision() == -1
@@ -87,52 +254,650 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
             return;
         }
 
-        final ReviewBoardGlobalConfiguration globalConfig =
-                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
-        if (globalConfig == null) {
-            listener.error("No Review Board server configurations found.");
+        final ReviewBoardServerConfiguration serverConfig;
+
+        try {
+            serverConfig = ReviewBoardUtils.getServerConfiguration(reviewRequest.getServerURL());
+        } catch (final ReviewBoardException e) {
+            listener.error(e.getMessage());
             run.setResult(Result.FAILURE);
             return;
         }
 
-        final ReviewBoardServerConfiguration serverConfig =
-                globalConfig.getServerConfiguration(reviewRequest.getServerURL());
-        if (serverConfig == null) {
-            listener.error(String.format(
-                    "No Review Board server configuration found " + "for server URL '%s'.",
-                    reviewRequest.getServerURL().toString()));
-            run.setResult(Result.FAILURE);
-            return;
+        DiffStats stats = null;
+
+        if (includes != null || excludes != null) {
+            try {
+                stats = readDiffStats(serverConfig, reviewRequest);
+            } catch (final ReviewBoardException e) {
+                listener.error("Unable to download the patch from Review Board: " + e.getMessage());
+                run.setResult(Result.FAILURE);
+                return;
+            }
+
+            if (!hasRelevantChanges(stats, listener)) {
+                skipBuild(run, reviewRequest, listener);
+                return;
+            }
         }
 
+        // Update the review request with the link to the build. This doesn't
+        // depend on the patch, so it is sent first and delivered by the
+        // dispatcher in the background while the patch is applied. It may
+        // also be coalesced with the final result if the build finishes
+        // quickly.
+        StatusUpdateDispatcher.get()
+                .submit(new StatusUpdate(
+                        reviewRequest,
+                        ReviewRequest.StatusUpdateState.PENDING_STATE,
+                        "build running",
+                        run.getAbsoluteUrl(),
+                        "See build"));
+
         final EnvVars env = run.getEnvironment(listener);
+        final StageTimings timings = new StageTimings();
+        boolean applied;
+
+        try {
+            applied = useRBTools
+                    ? applyPatchWithRBTools(workspace, launcher, env, listener, serverConfig, reviewRequest, timings)
+                    : applyPatch(workspace, launcher, env, listener, serverConfig, reviewRequest, stats, timings);
+
+            // RBTools downloads the diff itself, so only record the changed
+            // files if the diff was already read for the path filters,
+            // rather than downloading it a second time.
+            if (applied && (!useRBTools || stats != null)) {
+                try (StageTimings.Stage stage = timings.start("record changed files")) {
+                    // The summary is kept with the record of the applied
+                    // patch, so it is there even if applying was skipped.
+                    if (stats == null && !useRBTools && !downloadOnly) {
+                        stats = readAppliedDiffStats(workspace, reviewRequest);
+                    }
+
+                    applied = recordChangedFiles(run, workspace, listener, serverConfig, reviewRequest, stats);
+                }
+            }
+        } finally {
+            timings.print(listener);
+        }
+
+        if (!applied) {
+            run.setResult(Result.FAILURE);
+        }
+    }
+
+    /**
+     * Reads the summary of the files changed by the diff. Only the file
+     * headers are read from the cached diff, so this is cheap even for large
+     * diffs, and the diff is then already cached for applying it.
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @return Summary of the diff
+     */
+    private static DiffStats readDiffStats(
+            final ReviewBoardServerConfiguration serverConfig, final ReviewRequest reviewRequest)
+            throws IOException, InterruptedException, ReviewBoardException {
+        try (InputStream in = DiffCache.get().open(serverConfig, reviewRequest)) {
+            return DiffStats.read(in);
+        }
+    }
+
+    /**
+     * Returns the summary of the diff kept with the record of the patch
+     * applied to the workspace.
+     * @param workspace Active workspace
+     * @param reviewRequest Review request and diff revision
+     * @return Summary of the diff, or null if the record is for another diff
+     *         revision or has none
+     */
+    private static DiffStats readAppliedDiffStats(final FilePath workspace, final ReviewRequest reviewRequest)
+            throws IOException, InterruptedException {
+        final AppliedPatch applied = AppliedPatch.read(getTempDir(workspace).child(AppliedPatch.FILENAME));
+
+        return applied != null
+                        && applied.isRevisionOf(reviewRequest)
+                        && applied.getRevision() == reviewRequest.getRevision()
+                ? applied.getDiffStats()
+                : null;
+    }
+
+    /**
+     * Writes the manifest of changed files next to the workspace, and makes
+     * it and the diff's line counts available to later build steps as
+     * environment variables.
+     * @param run Current build
+     * @param workspace Active workspace
+     * @param listener Logger
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @param stats Summary of the diff, or null if it hasn't been read yet
+     * @return true if the changed files were recorded
+     */
+    private static boolean recordChangedFiles(
+            final Run<?, ?> run,
+            final FilePath workspace,
+            final TaskListener listener,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final DiffStats stats)
+            throws IOException, InterruptedException {
+        DiffStats diffStats = stats;
+
+        if (diffStats == null) {
+            try {
+                diffStats = readDiffStats(serverConfig, reviewRequest);
+            } catch (final ReviewBoardException e) {
+                listener.error("Unable to download the patch from Review Board: " + e.getMessage());
+                return false;
+            }
+        }
+
+        final FilePath manifest = getTempDir(workspace).child(MANIFEST_FILE);
+        manifest.write(diffStats.toManifest(), "UTF-8");
+        run.addOrReplaceAction(new DiffStatsAction(diffStats, manifest.getRemote()));
+
+        listener.getLogger()
+                .printf(
+                        "%d files changed, %d lines added, %d lines removed. Changed files are listed in %s%n",
+                        diffStats.getFiles().size(),
+                        diffStats.getLinesAdded(),
+                        diffStats.getLinesRemoved(),
+                        manifest.getRemote());
+
+        return true;
+    }
+
+    /**
+     * Returns whether the diff changes any files matching the path filters.
+     * @param stats Summary of the diff
+     * @param listener Logger
+     * @return true if at least one changed file matches the filters
+     */
+    private boolean hasRelevantChanges(final DiffStats stats, final TaskListener listener) {
+        final List<String> includePatterns = parsePatterns(includes);
+        final List<String> excludePatterns = parsePatterns(excludes);
+
+        for (String path : stats.getPaths()) {
+            if ((includePatterns.isEmpty() || matchesAny(includePatterns, path))
+                    && !matchesAny(excludePatterns, path)) {
+                listener.getLogger().printf("%s matches the path filters%n", path);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stops a build whose diff doesn't change any files matching the path
+     * filters, and reports it to Review Board as skipped.
+     *
+     * A freestyle build is interrupted, so that none of the following build
+     * steps run. Elsewhere, such as in a Pipeline, the step fails with the
+     * same exception an abort raises, which stops the script unless it is
+     * caught, and gives the build a result of NOT_BUILT when it reaches the
+     * top of the script.
+     * @param run Current build
+     * @param reviewRequest Review request being built
+     * @param listener Logger
+     */
+    private static void skipBuild(final Run<?, ?> run, final ReviewRequest reviewRequest, final TaskListener listener)
+            throws InterruptedException {
+        final SkippedCause cause = new SkippedCause();
+
+        listener.getLogger().println("No files matching the path filters were changed. Skipping the build.");
+        StatusUpdateDispatcher.get()
+                .submit(new StatusUpdate(
+                        reviewRequest,
+                        ReviewRequest.StatusUpdateState.SUCCESS_STATE,
+                        cause.getShortDescription(),
+                        run.getAbsoluteUrl(),
+                        "See build"));
+
+        if (!(run instanceof AbstractBuild<?, ?>)) {
+            throw new FlowInterruptedException(Result.NOT_BUILT, cause);
+        }
+
+        final Executor executor = Executor.currentExecutor();
+
+        if (executor != null && executor.getCurrentExecutable() == run) {
+            // The build records the cause and takes its result from the
+            // executor once the interruption reaches it.
+            executor.interrupt(Result.NOT_BUILT, cause);
+            Thread.interrupted();
+            throw new InterruptedException(cause.getShortDescription());
+        }
+
+        run.setResult(Result.NOT_BUILT);
+        run.addAction(new InterruptedBuildAction(List.of(cause)));
+    }
+
+    /**
+     * Splits a list of patterns separated by commas or newlines. A pattern
+     * ending in a slash matches everything under that directory.
+     * @param patterns Patterns, or null
+     * @return Patterns
+     */
+    private static List<String> parsePatterns(final String patterns) {
+        final List<String> result = new ArrayList<>();
+
+        for (String value : Util.fixNull(patterns).split("[,\\n]")) {
+            final String pattern = value.trim();
+
+            if (!pattern.isEmpty()) {
+                result.add(pattern.endsWith("/") ? pattern + "**" : pattern);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether a path in a diff matches any of the given patterns.
+     * @param patterns Ant-style patterns
+     * @param path Path relative to the repository root, separated by slashes
+     * @return true if the path matches
+     */
+    private static boolean matchesAny(final List<String> patterns, final String path) {
+        final String localPath = path.replace('/', File.separatorChar);
+
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern.replace('/', File.separatorChar), localPath)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Downloads the diff for the review request directly from the Review
+     * Board API, then either writes it to patch.diff or applies it to the
+     * workspace.
+     *
+     * The review request and diff revision applied to the workspace are
+     * recorded next to it. If a later build in the same workspace applies
+     * another revision of the same review request, only the files which
+     * differ between the two revisions are changed. If that fails, for
+     * example because the workspace has since been reset, the whole patch
+     * is applied instead.
+     *
+     * If the same diff revision is still applied on top of the same commit,
+     * and none of the files it touched have changed since, nothing is
+     * downloaded or applied.
+     *
+     * Otherwise the diffs are downloaded in the background while the
+     * workspace is prepared, and the new and previously applied revisions
+     * are downloaded at the same time.
+     * @param workspace Active workspace
+     * @param launcher Process launcher
+     * @param env Build environment
+     * @param listener Logger
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request to apply
+     * @param stats Summary of the diff, or null if it hasn't been read yet
+     * @param timings Stage timings
+     * @return true if the patch was downloaded and applied
+     */
+    private boolean applyPatch(
+            final FilePath workspace,
+            final Launcher launcher,
+            final EnvVars env,
+            final TaskListener listener,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final DiffStats stats,
+            final StageTimings timings)
+            throws IOException, InterruptedException {
+        if (downloadOnly) {
+            final FilePath patchFile = workspace.child(PATCH_FILE);
+
+            return copyDiff(
+                    downloadDiff(serverConfig, reviewRequest, timings),
+                    serverConfig,
+                    reviewRequest,
+                    patchFile,
+                    listener,
+                    timings);
+        }
+
+        // Keep the patch out of the workspace itself, so that it doesn't
+        // show up as a change in the build.
+        final FilePath tempDir = getTempDir(workspace);
+        final FilePath marker = tempDir.child(AppliedPatch.FILENAME);
+        final AppliedPatch applied = AppliedPatch.read(marker);
+        final String baseCommit = getBaseCommit(workspace, launcher, env);
+        final boolean mayBeApplied = applied != null && applied.mayBeApplied(reviewRequest, baseCommit);
+
+        // Start downloading straight away, unless the workspace may already
+        // hold this revision, in which case that is checked first so that the
+        // download can be skipped.
+        Future<?> diff = mayBeApplied ? null : downloadDiff(serverConfig, reviewRequest, timings);
+        ReviewRequest previous = null;
+        Future<?> previousDiff = null;
+
+        if (applied != null
+                && applied.isRevisionOf(reviewRequest)
+                && applied.getRevision() != reviewRequest.getRevision()) {
+            previous = applied.toReviewRequest(reviewRequest.getStatusUpdateId());
+            previousDiff = downloadDiff(serverConfig, previous, timings);
+        }
+
+        if (mayBeApplied) {
+            try (StageTimings.Stage stage = timings.start("check workspace")) {
+                if (applied.isApplied(
+                        reviewRequest, DiffCache.get().getChecksum(reviewRequest), baseCommit, workspace)) {
+                    listener.getLogger()
+                            .printf(
+                                    "Diff revision %d of review request %d is already applied to this workspace%n",
+                                    reviewRequest.getRevision(), reviewRequest.getReviewId());
+                    return true;
+                }
+            }
+
+            diff = downloadDiff(serverConfig, reviewRequest, timings);
+        }
+
+        final FilePath patchFile = tempDir.createTempFile("review", ".diff");
+
+        try {
+            if (!copyDiff(diff, serverConfig, reviewRequest, patchFile, listener, timings)) {
+                return false;
+            }
+
+            PatchApplier.Result result = null;
+
+            try (StageTimings.Stage stage = timings.start("apply patch")) {
+                if (previous != null) {
+                    result = applyInterdiff(workspace, serverConfig, previous, previousDiff, patchFile, listener);
+                }
+
+                if (result == null) {
+                    result = workspace.act(new PatchApplier(patchFile.getRemote(), false));
+                }
+            }
+
+            if (!result.isSuccessful()) {
+                listener.error("The patch could not be applied. No files were changed.");
+
+                for (String error : result.getErrors()) {
+                    listener.getLogger().println("  " + error);
+                }
+
+                return false;
+            }
+
+            listener.getLogger().printf("Patched %d files%n", result.getFiles().size());
+
+            try (StageTimings.Stage stage = timings.start("record applied patch")) {
+                final DiffStats diffStats;
+
+                try {
+                    diffStats = stats != null ? stats : readDiffStats(serverConfig, reviewRequest);
+                } catch (final ReviewBoardException e) {
+                    listener.error("Unable to download the patch from Review Board: " + e.getMessage());
+                    return false;
+                }
+
+                AppliedPatch.create(
+                                reviewRequest,
+                                DiffCache.get().getChecksum(reviewRequest),
+                                baseCommit,
+                                workspace,
+                                patchFile,
+                                diffStats)
+                        .write(marker);
+            }
+
+            return true;
+        } finally {
+            patchFile.delete();
+        }
+    }
+
+    /**
+     * Applies only the changes between the diff revision already applied to
+     * the workspace and the new one.
+     * @param workspace Active workspace
+     * @param serverConfig Review Board server configuration
+     * @param previous Review request and diff revision already applied
+     * @param previousDiff Download of the diff already applied
+     * @param patchFile New diff on the node
+     * @param listener Logger
+     * @return Outcome of applying the changes, or null if they couldn't be
+     *         applied and the whole diff should be applied instead
+     */
+    private PatchApplier.Result applyInterdiff(
+            final FilePath workspace,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest previous,
+            final Future<?> previousDiff,
+            final FilePath patchFile,
+            final TaskListener listener)
+            throws IOException, InterruptedException {
+        final FilePath previousPatchFile = patchFile.getParent().createTempFile("review", ".diff");
+
+        try {
+            final PatchApplier.Result result;
+
+            try {
+                awaitDiff(previousDiff);
+
+                try (InputStream in = DiffCache.get().open(serverConfig, previous)) {
+                    previousPatchFile.copyFrom(in);
+                }
+
+                result = workspace.act(new PatchApplier(patchFile.getRemote(), previousPatchFile.getRemote(), false));
+            } catch (final ReviewBoardException e) {
+                listener.getLogger()
+                        .println("Unable to download the previously applied diff revision. Applying the whole patch.");
+                return null;
+            }
+
+            if (!result.isSuccessful()) {
+                listener.getLogger()
+                        .printf(
+                                "Unable to apply only the changes since diff revision %d. Applying the whole patch.%n",
+                                previous.getRevision());
+                return null;
+            }
+
+            listener.getLogger()
+                    .printf("Applied only the changes since diff revision %d%n", previous.getRevision());
+
+            return result;
+        } finally {
+            previousPatchFile.delete();
+        }
+    }
+
+    /**
+     * Starts downloading the diff for a review request in the background.
+     *
+     * Diff revisions never change, so the diff is kept in a cache on the
+     * controller and shared by every build of this revision.
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @param timings Stage timings
+     * @return Download of the diff, which completes once it is cached
+     */
+    private static Future<?> downloadDiff(
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final StageTimings timings) {
+        final String name = String.format("download diff revision %d", reviewRequest.getRevision());
+
+        return Computer.threadPoolForRemoting.submit(() -> {
+            try (StageTimings.Stage stage = timings.start(name)) {
+                DiffCache.get().fetch(serverConfig, reviewRequest);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for a diff to be downloaded.
+     * @param diff Download of the diff
+     */
+    private static void awaitDiff(final Future<?> diff)
+            throws IOException, InterruptedException, ReviewBoardException {
+        try {
+            diff.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof ReviewBoardException rbException) {
+                throw rbException;
+            } else if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Copies the diff for the review request into a file on the node, once
+     * it has been downloaded. It is streamed from the controller's cache to
+     * the node, so large diffs are never held in memory.
+     * @param diff Download of the diff
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request and diff revision
+     * @param target File to write the diff to
+     * @param listener Logger
+     * @param timings Stage timings
+     * @return true if the diff was copied
+     */
+    private static boolean copyDiff(
+            final Future<?> diff,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final FilePath target,
+            final TaskListener listener,
+            final StageTimings timings)
+            throws IOException, InterruptedException {
+        try {
+            awaitDiff(diff);
+
+            try (StageTimings.Stage stage = timings.start("copy diff to node");
+                    InputStream in = DiffCache.get().open(serverConfig, reviewRequest)) {
+                target.copyFrom(in);
+            }
+        } catch (final ReviewBoardException e) {
+            listener.error("Unable to download the patch from Review Board: " + e.getMessage());
+            return false;
+        }
+
+        listener.getLogger()
+                .printf(
+                        "Fetched diff revision %d of review request %d (%d bytes)%n",
+                        reviewRequest.getRevision(), reviewRequest.getReviewId(), target.length());
+
+        return true;
+    }
+
+    /**
+     * Returns the commit the workspace was checked out at.
+     *
+     * Freestyle builds get this from the variables set by the SCM, but a
+     * Pipeline's checkout doesn't set them, so for a Git workspace this
+     * falls back to asking Git for the commit at HEAD.
+     * @param workspace Active workspace
+     * @param launcher Process launcher
+     * @param env Build environment
+     * @return Commit or revision, or null if it isn't known
+     */
+    private static String getBaseCommit(final FilePath workspace, final Launcher launcher, final EnvVars env)
+            throws IOException, InterruptedException {
+        for (String name : List.of("GIT_COMMIT", "SVN_REVISION", "MERCURIAL_REVISION")) {
+            final String value = Util.fixEmptyAndTrim(env.get(name));
+
+            if (value != null) {
+                return value;
+            }
+        }
+
+        if (!workspace.child(".git").exists()) {
+            return null;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            final int status = launcher.launch()
+                    .cmds("git", "rev-parse", "--verify", "HEAD")
+                    .pwd(workspace)
+                    .envs(env)
+                    .stdout(out)
+                    .quiet(true)
+                    .join();
+            final String commit = out.toString(StandardCharsets.UTF_8).trim();
+
+            return status == 0 && GIT_COMMIT_ID.matcher(commit).matches() ? commit : null;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the temporary directory for the workspace, creating it if
+     * needed.
+     * @param workspace Active workspace
+     * @return Temporary directory
+     */
+    private static FilePath getTempDir(final FilePath workspace) throws IOException, InterruptedException {
+        FilePath tempDir = WorkspaceList.tempDir(workspace);
+
+        if (tempDir == null) {
+            tempDir = workspace;
+        }
+
+        tempDir.mkdirs();
+
+        return tempDir;
+    }
+
+    /**
+     * Applies the patch for the review request using rbt patch, installing
+     * RBTools first if needed.
+     * @param workspace Active workspace
+     * @param launcher Process launcher
+     * @param env Build environment
+     * @param listener Logger
+     * @param serverConfig Review Board server configuration
+     * @param reviewRequest Review request to apply
+     * @param timings Stage timings
+     * @return true if the patch was applied
+     */
+    private boolean applyPatchWithRBTools(
+            final FilePath workspace,
+            final Launcher launcher,
+            final EnvVars env,
+            final TaskListener listener,
+            final ReviewBoardServerConfiguration serverConfig,
+            final ReviewRequest reviewRequest,
+            final StageTimings timings)
+            throws IOException, InterruptedException {
+        // rbt patch changes the workspace in ways that aren't tracked, so
+        // forget any patch applied by an earlier build.
+        getTempDir(workspace).child(AppliedPatch.FILENAME).delete();
 
         // Determine which rbt executable to use. If rbtools is not already
-        // available on the PATH, install it into a virtualenv in the workspace
-        // and use the rbt from there.
-        final ArrayList<List<String>> commands = new ArrayList<List<String>>();
+        // available on the PATH, use the rbt from a virtualenv shared by all
+        // jobs on this node, installing it there if needed.
         String rbtExecutable = "rbt";
 
-        if (installRBTools && !isRBToolsAvailable(launcher, workspace, env, rbtExecutable)) {
-            // Python virtualenvs use a different layout on Windows. The
-            // executables live in "Scripts" with a ".exe" suffix rather than
-            // in "bin". Use the agent's OS to pick the right paths.
-            final boolean isUnix = launcher.isUnix();
-            final String binDir = isUnix ? "bin" : "Scripts";
-            final String exeSuffix = isUnix ? "" : ".exe";
+        try (StageTimings.Stage stage = timings.start("install RBTools")) {
+            if (installRBTools && !isRBToolsAvailable(launcher, workspace, env, rbtExecutable)) {
+                rbtExecutable = installRBTools(workspace, launcher, env, listener);
 
-            final FilePath venvDir = workspace.child(VENV_DIR);
-            final String venvRbt =
-                    venvDir.child(binDir).child("rbt" + exeSuffix).getRemote();
-            rbtExecutable = venvRbt;
-
-            if (!isRBToolsAvailable(launcher, workspace, env, venvRbt)) {
-                // No existing virtualenv to reuse, so create one and install
-                // rbtools into it.
-                final String venvPip =
-                        venvDir.child(binDir).child("pip" + exeSuffix).getRemote();
-                commands.add(List.of("python3", "-m", "venv", venvDir.getRemote()));
-                commands.add(List.of(venvPip, "install", "rbtools"));
+                if (rbtExecutable == null) {
+                    return false;
+                }
             }
         }
 
@@ -151,48 +916,305 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
         rbtCommand.add(Integer.toString(reviewRequest.getRevision()));
         if (downloadOnly) {
             rbtCommand.add("--write");
-            rbtCommand.add("patch.diff");
+            rbtCommand.add(PATCH_FILE);
         }
         rbtCommand.add(Integer.toString(reviewRequest.getReviewId()));
-        commands.add(rbtCommand);
 
         // Mask the API token value so it is hidden from the console output.
         final boolean[] rbtCommandMask = new boolean[rbtCommand.size()];
         rbtCommandMask[apiTokenIndex] = true;
 
-        for (int i = 0; i < commands.size(); i++) {
-            final List<String> command = commands.get(i);
-            final Launcher.ProcStarter args = launcher.launch()
-                    .cmds(command)
-                    .stdout(listener)
-                    .pwd(workspace)
-                    .envs(env);
+        try (StageTimings.Stage stage = timings.start("rbt patch")) {
+            return runCommand(launcher, workspace, env, listener, rbtCommand, rbtCommandMask);
+        }
+    }
 
-            // The patch command is the final entry and is the only one that
-            // carries a value to mask.
-            if (i == commands.size() - 1) {
-                args.masks(rbtCommandMask);
-            }
+    /**
+     * Returns the rbt executable from the node's shared RBTools virtualenv,
+     * creating the virtualenv and installing RBTools into it if needed.
+     *
+     * The virtualenv lives in the node's cache directory and is keyed by
+     * installer and RBTools version, or by wheelhouse contents, so it is
+     * installed once per node rather than once per workspace, and changing
+     * either gives a fresh virtualenv. Installation is serialized per virtualenv so concurrent
+     * builds on the same node don't install over each other. Every build on
+     * an agent is started by this controller, so a lock held here is enough
+     * to cover all of them.
+     * @param workspace Active workspace
+     * @param launcher Process launcher
+     * @param env Build environment
+     * @param listener Logger
+     * @return Path to the rbt executable, or null if installation failed
+     */
+    private String installRBTools(
+            final FilePath workspace, final Launcher launcher, final EnvVars env, final TaskListener listener)
+            throws IOException, InterruptedException {
+        // Python virtualenvs use a different layout on Windows. The
+        // executables live in "Scripts" with a ".exe" suffix rather than
+        // in "bin". Use the agent's OS to pick the right paths.
+        final boolean isUnix = launcher.isUnix();
+        final String binDir = isUnix ? "bin" : "Scripts";
+        final String exeSuffix = isUnix ? "" : ".exe";
 
-            final Proc process = launcher.launch(args);
-            final int result = process.join();
-            if (result != 0) {
-                run.setResult(Result.FAILURE);
-                return;
+        // A wheelhouse decides which RBTools gets installed, so it's looked
+        // up first to pick the virtualenv.
+        File wheelhouseSource = null;
+
+        if (getInstaller() == RBToolsInstaller.WHEELHOUSE) {
+            wheelhouseSource = findWheelhouse(listener);
+
+            if (wheelhouseSource == null) {
+                return null;
             }
         }
 
-        // Update the review request with the link to the build.
+        final FilePath venvDir = getVenvDir(workspace, getCacheKey(wheelhouseSource));
+        final String venvRbt = venvDir.child(binDir).child("rbt" + exeSuffix).getRemote();
+
+        final Computer computer = workspace.toComputer();
+        final String lockKey = (computer == null ? "" : computer.getName()) + ":" + venvDir.getRemote();
+        final ReentrantLock lock = INSTALL_LOCKS.computeIfAbsent(lockKey, key -> new ReentrantLock());
+
+        lock.lockInterruptibly();
+
         try {
-            ReviewBoardUtils.updateStatusUpdate(
-                    reviewRequest,
-                    ReviewRequest.StatusUpdateState.PENDING_STATE,
-                    "build running",
-                    run.getAbsoluteUrl(),
-                    "See build");
-        } catch (final ReviewBoardException e) {
-            listener.error("Unable to notify Review Board of the build: " + e.getMessage());
+            if (!isRBToolsAvailable(launcher, workspace, env, venvRbt)) {
+                // No existing virtualenv to reuse, so create one and install
+                // rbtools into it.
+                final List<List<String>> commands =
+                        getInstallCommands(
+                        workspace, launcher, env, listener, venvDir, binDir, exeSuffix, wheelhouseSource);
+
+                if (commands == null) {
+                    return null;
+                }
+
+                listener.getLogger().println("Installing RBTools into " + venvDir.getRemote());
+
+                for (List<String> command : commands) {
+                    if (!runCommand(launcher, workspace, env, listener, command, null)) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return venvRbt;
+    }
+
+    /**
+     * Returns the commands which create the virtualenv and install RBTools
+     * into it, using the selected installer.
+     * @param workspace Active workspace
+     * @param launcher Process launcher
+     * @param env Build environment
+     * @param listener Logger
+     * @param venvDir Virtualenv directory
+     * @param binDir Name of the virtualenv's executables directory
+     * @param exeSuffix Suffix of executables on the node
+     * @param wheelhouseSource Wheelhouse on the controller, or null if not
+     *                         installing from one
+     * @return Commands to run, or null if the installer couldn't be set up
+     */
+    private List<List<String>> getInstallCommands(
+            final FilePath workspace,
+            final Launcher launcher,
+            final EnvVars env,
+            final TaskListener listener,
+            final FilePath venvDir,
+            final String binDir,
+            final String exeSuffix,
+            final File wheelhouseSource)
+            throws IOException, InterruptedException {
+        final String requirement = rbtoolsVersion == null ? "rbtools" : "rbtools==" + rbtoolsVersion;
+        final String venvPip = venvDir.child(binDir).child("pip" + exeSuffix).getRemote();
+        final List<String> createVenv = List.of("python3", "-m", "venv", venvDir.getRemote());
+
+        switch (getInstaller()) {
+            case UV:
+                if (probeCommand(launcher, workspace, env, "uv")) {
+                    final String venvPython = venvDir.child(binDir).child("python" + exeSuffix).getRemote();
+
+                    return List.of(
+                            List.of("uv", "venv", venvDir.getRemote()),
+                            List.of("uv", "pip", "install", "--python", venvPython, requirement));
+                }
+
+                listener.getLogger().println("uv is not available on this node. Installing RBTools using pip.");
+                break;
+
+            case WHEELHOUSE:
+                final FilePath wheelhouseDir = copyWheelhouse(wheelhouseSource, venvDir.getParent(), listener);
+
+                if (wheelhouseDir == null) {
+                    return null;
+                }
+
+                // The requirements file pins RBTools and its dependencies by
+                // hash, so pip installs exactly what the wheelhouse ships
+                // without contacting a package index.
+                return List.of(
+                        createVenv,
+                        List.of(
+                                venvPip,
+                                "install",
+                                "--no-index",
+                                "--find-links",
+                                wheelhouseDir.getRemote(),
+                                "--require-hashes",
+                                "-r",
+                                wheelhouseDir.child(WHEELHOUSE_REQUIREMENTS).getRemote()));
+
+            default:
+                break;
+        }
+
+        return List.of(createVenv, List.of(venvPip, "install", requirement));
+    }
+
+    /**
+     * Returns the configured wheelhouse on the controller.
+     *
+     * Wheelhouses are looked up in the rbtools-wheelhouses directory of the
+     * Jenkins home directory, so that jobs can't copy arbitrary files from
+     * the controller.
+     * @param listener Logger
+     * @return Wheelhouse directory or archive, or null if it is missing
+     */
+    private File findWheelhouse(final TaskListener listener) throws IOException {
+        final File wheelhousesDir = new File(Jenkins.get().getRootDir(), WHEELHOUSE_DIR).getCanonicalFile();
+        final File source = wheelhouse == null ? null : new File(wheelhousesDir, wheelhouse).getCanonicalFile();
+
+        if (source == null || !source.toPath().startsWith(wheelhousesDir.toPath()) || !source.exists()) {
+            listener.error(String.format("RBTools wheelhouse '%s' not found in %s", wheelhouse, wheelhousesDir));
+            return null;
+        }
+
+        if (source.isDirectory() && !new File(source, WHEELHOUSE_REQUIREMENTS).isFile()) {
+            listener.error(String.format(
+                    "RBTools wheelhouse '%s' must contain a %s with pinned hashes",
+                    wheelhouse, WHEELHOUSE_REQUIREMENTS));
+            return null;
+        }
+
+        return source;
+    }
+
+    /**
+     * Copies a wheelhouse from the controller to the node, unpacking it if
+     * it's an archive.
+     * @param source Wheelhouse directory or archive on the controller
+     * @param cacheDir Node cache directory to copy the wheelhouse into
+     * @param listener Logger
+     * @return Wheelhouse directory on the node, or null if it is unusable
+     */
+    private FilePath copyWheelhouse(final File source, final FilePath cacheDir, final TaskListener listener)
+            throws IOException, InterruptedException {
+        final FilePath target = cacheDir.child("wheelhouse");
+        final FilePath sourcePath = new FilePath(source);
+        final String name = source.getName().toLowerCase(Locale.ROOT);
+
+        target.deleteRecursive();
+        target.mkdirs();
+
+        if (source.isDirectory()) {
+            sourcePath.copyRecursiveTo(target);
+        } else if (name.endsWith(".zip")) {
+            sourcePath.unzip(target);
+        } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            sourcePath.untar(target, FilePath.TarCompression.GZIP);
+        } else {
+            listener.error(String.format(
+                    "RBTools wheelhouse '%s' must be a directory, .zip or .tar.gz archive", wheelhouse));
+            return null;
+        }
+
+        if (!target.child(WHEELHOUSE_REQUIREMENTS).exists()) {
+            listener.error(String.format(
+                    "RBTools wheelhouse '%s' must contain a %s with pinned hashes",
+                    wheelhouse, WHEELHOUSE_REQUIREMENTS));
+            return null;
+        }
+
+        return target;
+    }
+
+    /**
+     * Returns the name of the cache directory for the RBTools installation.
+     *
+     * pip and uv installs are keyed by installer and RBTools version. A
+     * wheelhouse ignores the RBTools version, so its installs are keyed by a
+     * digest of its requirements file, which pins every package it installs,
+     * or of the archive it's shipped in.
+     * @param wheelhouseSource Wheelhouse on the controller, or null if not
+     *                         installing from one
+     * @return Cache directory name
+     */
+    private String getCacheKey(final File wheelhouseSource) throws IOException {
+        if (wheelhouseSource == null) {
+            return getInstaller().name().toLowerCase(Locale.ROOT)
+                    + "-"
+                    + (rbtoolsVersion == null ? "latest" : rbtoolsVersion);
+        }
+
+        final File contents =
+                wheelhouseSource.isDirectory() ? new File(wheelhouseSource, WHEELHOUSE_REQUIREMENTS) : wheelhouseSource;
+
+        return "wheelhouse-" + Util.getDigestOf(contents);
+    }
+
+    /**
+     * Returns the directory for the shared RBTools virtualenv on the node
+     * that the workspace belongs to. If the node's root directory isn't
+     * known, this falls back to a virtualenv in the workspace.
+     * @param workspace Active workspace
+     * @param cacheKey Name of the cache directory for the installation
+     * @return Virtualenv directory
+     */
+    private FilePath getVenvDir(final FilePath workspace, final String cacheKey) {
+        final Computer computer = workspace.toComputer();
+        final Node node = computer == null ? null : computer.getNode();
+        final FilePath rootPath = node == null ? null : node.getRootPath();
+
+        if (rootPath == null) {
+            return workspace.child(VENV_DIR).child(cacheKey).child("venv");
         }
+
+        return rootPath.child(CACHE_DIR).child(cacheKey).child("venv");
+    }
+
+    /**
+     * Runs a command in the workspace, sending its output to the build log.
+     * @param launcher Process launcher
+     * @param workspace Active workspace
+     * @param env Build environment
+     * @param listener Logger
+     * @param command Command and arguments
+     * @param mask Arguments to hide from the build log, or null
+     * @return true if the command exited successfully
+     */
+    private boolean runCommand(
+            final Launcher launcher,
+            final FilePath workspace,
+            final EnvVars env,
+            final TaskListener listener,
+            final List<String> command,
+            final boolean[] mask)
+            throws IOException, InterruptedException {
+        final Launcher.ProcStarter args = launcher.launch()
+                .cmds(command)
+                .stdout(listener)
+                .pwd(workspace)
+                .envs(env);
+
+        if (mask != null) {
+            args.masks(mask);
+        }
+
+        final Proc process = launcher.launch(args);
+        return process.join() == 0;
     }
 
     /**
@@ -200,7 +1222,8 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
      *
      * This runs the executable with --version and checks for a successful
      * exit code. A missing executable raises an IOException, which is treated
-     * as rbtools not being available.
+     * as rbtools not being available. The result is remembered for the node,
+     * so later builds can skip starting the executable.
      * @param launcher Process launcher
      * @param workspace Active workspace
      * @param env Build environment
@@ -209,10 +1232,43 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
      */
     private boolean isRBToolsAvailable(
             final Launcher launcher, final FilePath workspace, final EnvVars env, final String rbtExecutable)
+            throws IOException, InterruptedException {
+        final Computer computer = workspace.toComputer();
+
+        if (computer == null) {
+            return probeCommand(launcher, workspace, env, rbtExecutable);
+        }
+
+        final RBToolsProbeCache cache = RBToolsProbeCache.get();
+        final String key = RBToolsProbeCache.key(computer, rbtExecutable, env.get("PATH"));
+        final String fingerprint = cache.fingerprint(workspace, rbtExecutable);
+        final Boolean cached = cache.lookup(key, fingerprint);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        final boolean available = probeCommand(launcher, workspace, env, rbtExecutable);
+        cache.store(key, fingerprint, available);
+
+        return available;
+    }
+
+    /**
+     * Runs the given executable with --version to check whether it is
+     * available.
+     * @param launcher Process launcher
+     * @param workspace Active workspace
+     * @param env Build environment
+     * @param executable Path to or name of the executable to probe
+     * @return true if the executable ran successfully
+     */
+    private boolean probeCommand(
+            final Launcher launcher, final FilePath workspace, final EnvVars env, final String executable)
             throws InterruptedException {
         try {
             final Proc process = launcher.launch()
-                    .cmds(rbtExecutable, "--version")
+                    .cmds(executable, "--version")
                     .pwd(workspace)
                     .envs(env)
                     .quiet(true)
@@ -247,6 +1303,21 @@ public class ReviewBoardSetup extends Builder implements SimpleBuildStep {
             return FormValidation.ok();
         }
 
+        /**
+         * Validates the RBTools version to install.
+         * @param value RBTools version
+         * @return FormValidation
+         */
+        public FormValidation doCheckRbtoolsVersion(final @QueryParameter String value) {
+            final String version = Util.fixEmptyAndTrim(value);
+
+            if (version != null && !RBTOOLS_VERSION.matcher(version).matches()) {
+                return FormValidation.error(Messages.ReviewBoard_Error_InvalidRBToolsVersion());
+            }
+
+            return FormValidation.ok();
+        }
+
         /**
          * Informs Jenkins of whether or not this build step is applicable to
          * the current job, which it always is.
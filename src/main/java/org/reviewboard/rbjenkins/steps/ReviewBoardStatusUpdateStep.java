@@ -0,0 +1,309 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.ReviewBoardUnavailableException;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.StatusUpdate;
+import org.reviewboard.rbjenkins.common.StatusUpdateDispatcher;
+
+/**
+ * Creates a Pipeline step which updates the status update for the review
+ * request being built, such as reviewBoardStatusUpdate state: 'done-success'.
+ *
+ * Unlike notifyReviewBoard, this doesn't need a node or an executor, so it
+ * can be used outside node blocks. The update is handed to the status update
+ * dispatcher from a background thread, since queuing it writes to the outbox
+ * and may even send it, and the step waits for Review Board to accept it
+ * without blocking the Pipeline's thread.
+ *
+ * Inside a withReviewBoard block, the review request resolved by the block
+ * is used rather than parsing the build parameters again.
+ */
+public class ReviewBoardStatusUpdateStep extends Step {
+    private final String state;
+    private String description;
+    private String url;
+    private String urlText;
+    private boolean wait = true;
+
+    /**
+     * Constructs the step.
+     * @param state Review Board's name for the new state, such as pending or
+     *        done-success
+     */
+    @DataBoundConstructor
+    public ReviewBoardStatusUpdateStep(final String state) {
+        this.state = state;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Sets the description of the status update. If not set, a description
+     * matching the state is used.
+     * @param description Description, or null
+     */
+    @DataBoundSetter
+    public void setDescription(final String description) {
+        this.description = Util.fixEmptyAndTrim(description);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Sets the URL the status update links to. If not set, it links to the
+     * build.
+     * @param url URL, or null
+     */
+    @DataBoundSetter
+    public void setUrl(final String url) {
+        this.url = Util.fixEmptyAndTrim(url);
+    }
+
+    public String getUrlText() {
+        return urlText;
+    }
+
+    /**
+     * Sets the text of the status update's link.
+     * @param urlText Link text, or null for "See build"
+     */
+    @DataBoundSetter
+    public void setUrlText(final String urlText) {
+        this.urlText = Util.fixEmptyAndTrim(urlText);
+    }
+
+    public boolean isWait() {
+        return wait;
+    }
+
+    /**
+     * Sets whether the step waits for Review Board to accept the update.
+     * Otherwise it finishes as soon as the update is queued.
+     * @param wait Whether to wait for the update to be sent
+     */
+    @DataBoundSetter
+    public void setWait(final boolean wait) {
+        this.wait = wait;
+    }
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        final ReviewRequest.StatusUpdateState parsedState = parseState(state);
+
+        return new Execution(
+                context,
+                parsedState,
+                description == null ? getDefaultDescription(parsedState) : description,
+                url,
+                urlText,
+                wait);
+    }
+
+    /**
+     * Parses a state from Review Board's name for it.
+     * @param state State name, such as done-success
+     * @return State
+     */
+    private static ReviewRequest.StatusUpdateState parseState(final String state) throws AbortException {
+        for (ReviewRequest.StatusUpdateState value : ReviewRequest.StatusUpdateState.values()) {
+            if (value.toString().equals(state)) {
+                return value;
+            }
+        }
+
+        throw new AbortException("Unknown Review Board status update state: " + state);
+    }
+
+    /**
+     * Returns the description used by the other build steps for a state.
+     * @param state Status update state
+     * @return Description
+     */
+    private static String getDefaultDescription(final ReviewRequest.StatusUpdateState state) {
+        switch (state) {
+            case SUCCESS_STATE:
+                return Messages.ReviewBoard_Job_Success();
+
+            case FAILURE_STATE:
+                return Messages.ReviewBoard_Job_Failure();
+
+            case TIMED_OUT_STATE:
+                return Messages.ReviewBoard_Job_TimedOut();
+
+            case ERROR_STATE:
+                return Messages.ReviewBoard_Job_NotBuilt();
+
+            default:
+                return "build running";
+        }
+    }
+
+    /**
+     * Sends the status update without holding a thread while Review Board
+     * responds.
+     */
+    private static class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+
+        private final ReviewRequest.StatusUpdateState state;
+        private final String description;
+        private final String url;
+        private final String urlText;
+        private final boolean wait;
+
+        Execution(
+                final StepContext context,
+                final ReviewRequest.StatusUpdateState state,
+                final String description,
+                final String url,
+                final String urlText,
+                final boolean wait) {
+            super(context);
+            this.state = state;
+            this.description = description;
+            this.url = url;
+            this.urlText = urlText;
+            this.wait = wait;
+        }
+
+        /**
+         * Queues the status update in the background, then finishes once
+         * Review Board has accepted it, or once it is queued if not waiting.
+         * Failing to send the update is logged rather than failing the
+         * build, as with the notifier.
+         * @return false, as the step always finishes in the background
+         */
+        @Override
+        public boolean start() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final TaskListener listener = getContext().get(TaskListener.class);
+            ReviewBoardContext reviewBoard = getContext().get(ReviewBoardContext.class);
+
+            // Inside withReviewBoard, the review request has already been
+            // resolved.
+            if (reviewBoard == null) {
+                reviewBoard = ReviewBoardContext.resolve(run);
+            }
+
+            final StatusUpdate update = new StatusUpdate(
+                    reviewBoard.getReviewRequest(),
+                    state,
+                    description,
+                    url == null ? run.getAbsoluteUrl() : url,
+                    urlText == null ? "See build" : urlText);
+
+            // This runs on the Pipeline's thread, which shouldn't wait for
+            // the outbox to be written.
+            Computer.threadPoolForRemoting.submit(() -> send(update, listener));
+
+            return false;
+        }
+
+        /**
+         * Queues the status update and finishes the step once it has been
+         * accepted, or straight away if not waiting.
+         * @param update Status update to send
+         * @param listener Logger
+         */
+        private void send(final StatusUpdate update, final TaskListener listener) {
+            try {
+                if (!wait) {
+                    StatusUpdateDispatcher.get().submit(update);
+                    getContext().onSuccess(null);
+                    return;
+                }
+
+                StatusUpdateDispatcher.get().submit(update).whenComplete((result, error) -> {
+                    final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+                    if (cause instanceof ReviewBoardUnavailableException) {
+                        listener.getLogger()
+                                .println("Review Board is unavailable. The status update will be sent once it "
+                                        + "responds again.");
+                    } else if (cause != null) {
+                        listener.error("Unable to update the status update on Review Board: " + cause.getMessage());
+                    }
+
+                    getContext().onSuccess(null);
+                });
+            } catch (final RuntimeException e) {
+                getContext().onFailure(e);
+            }
+        }
+
+        /**
+         * Finishes the step after Jenkins restarts. Updates which weren't
+         * sent are kept in the outbox and retried, so there is nothing to
+         * wait for.
+         */
+        @Override
+        public void onResume() {
+            getContext().onSuccess(null);
+        }
+    }
+
+    /**
+     * Provides the description of the status update step and the choices
+     * for its configuration form.
+     */
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, TaskListener.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "reviewBoardStatusUpdate";
+        }
+
+        /**
+         * Returns the display name for this step, as shown in the snippet
+         * generator.
+         * @return Status update step display name
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.ReviewBoardStatusUpdateStep_DescriptorImpl_DisplayName();
+        }
+
+        /**
+         * Lists the states a status update can be set to.
+         * @return States
+         */
+        public ListBoxModel doFillStateItems() {
+            final ListBoxModel items = new ListBoxModel();
+
+            for (ReviewRequest.StatusUpdateState value : ReviewRequest.StatusUpdateState.values()) {
+                items.add(value.toString());
+            }
+
+            return items;
+        }
+    }
+}
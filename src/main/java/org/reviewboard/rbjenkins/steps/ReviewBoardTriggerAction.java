@@ -0,0 +1,275 @@
+package org.reviewboard.rbjenkins.steps;
+
+import static org.reviewboard.rbjenkins.common.ReviewBoardUtils.REVIEWBOARD_DIFF_REVISION;
+import static org.reviewboard.rbjenkins.common.ReviewBoardUtils.REVIEWBOARD_REVIEW_ID;
+import static org.reviewboard.rbjenkins.common.ReviewBoardUtils.REVIEWBOARD_SERVER;
+import static org.reviewboard.rbjenkins.common.ReviewBoardUtils.REVIEWBOARD_STATUS_UPDATE_ID;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.SimpleParameterDefinition;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.csrf.CrumbExclusion;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.POST;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+/**
+ * Provides an endpoint which Review Board can use to trigger builds, at
+ * /reviewboard/build.
+ *
+ * Requests are authenticated with the API token configured for the Review
+ * Board server, sent as "Authorization: token &lt;token&gt;", rather than
+ * with a Jenkins user. The REVIEWBOARD_* parameters are validated before the
+ * job is queued. As with any build queued with the same parameters as one
+ * already waiting, a request for a review request, diff revision and status
+ * update which is already queued is folded into the queued build instead of
+ * queuing another, so repeated deliveries of the same request never reach
+ * an executor.
+ */
+@Extension
+public class ReviewBoardTriggerAction implements UnprotectedRootAction {
+    static final String URL_NAME = "reviewboard";
+
+    private static final String TOKEN_PREFIX = "token ";
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    /**
+     * Queues a build of a job for a review request.
+     * @param req Request, with the job's full name in "job" and the
+     *        REVIEWBOARD_* parameters
+     * @param rsp Response
+     */
+    @POST
+    public void doBuild(final StaplerRequest2 req, final StaplerResponse2 rsp) throws IOException {
+        final String jobName = Util.fixEmptyAndTrim(req.getParameter("job"));
+        final int reviewId = parseId(req.getParameter(REVIEWBOARD_REVIEW_ID));
+        final int revision = parseId(req.getParameter(REVIEWBOARD_DIFF_REVISION));
+        final int statusUpdateId = parseId(req.getParameter(REVIEWBOARD_STATUS_UPDATE_ID));
+        URL serverURL;
+
+        try {
+            serverURL = new URL(Util.fixNull(req.getParameter(REVIEWBOARD_SERVER)));
+        } catch (final MalformedURLException e) {
+            serverURL = null;
+        }
+
+        if (jobName == null || reviewId == -1 || revision == -1 || statusUpdateId == -1 || serverURL == null) {
+            respond(
+                    rsp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    "job, REVIEWBOARD_REVIEW_ID, REVIEWBOARD_DIFF_REVISION, REVIEWBOARD_STATUS_UPDATE_ID and "
+                            + "REVIEWBOARD_SERVER must be provided and valid");
+            return;
+        }
+
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+        final ReviewBoardServerConfiguration serverConfig =
+                globalConfig == null ? null : globalConfig.getServerConfiguration(serverURL);
+        final String token = serverConfig == null ? null : serverConfig.findReviewBoardAPIToken();
+
+        if (token == null || !isAuthorized(req.getHeader("Authorization"), token)) {
+            respond(rsp, HttpServletResponse.SC_FORBIDDEN, "Unknown Review Board server or invalid API token");
+            return;
+        }
+
+        final Job<?, ?> job;
+
+        try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+            job = Jenkins.get().getItemByFullName(jobName, Job.class);
+        }
+
+        if (!(job instanceof ParameterizedJobMixIn.ParameterizedJob<?, ?> parameterizedJob) || !job.isBuildable()) {
+            respond(
+                    rsp,
+                    HttpServletResponse.SC_NOT_FOUND,
+                    String.format("Job %s not found or can't be built", jobName));
+            return;
+        }
+
+        final Map<String, String> values = new HashMap<>();
+        values.put(REVIEWBOARD_SERVER, serverURL.toExternalForm());
+        values.put(REVIEWBOARD_REVIEW_ID, Integer.toString(reviewId));
+        values.put(REVIEWBOARD_DIFF_REVISION, Integer.toString(revision));
+        values.put(REVIEWBOARD_STATUS_UPDATE_ID, Integer.toString(statusUpdateId));
+
+        final List<ParameterValue> parameters = getParameterValues(job, values);
+
+        if (parameters == null) {
+            respond(
+                    rsp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    String.format("Job %s must define the REVIEWBOARD_* parameters as string parameters", jobName));
+            return;
+        }
+
+        final Queue.ScheduleResult result = Queue.getInstance()
+                .schedule2(
+                        parameterizedJob,
+                        parameterizedJob.getQuietPeriod(),
+                        List.of(
+                                new CauseAction(new Cause.RemoteCause(
+                                        req.getRemoteAddr(),
+                                        String.format(
+                                                "Review Board review request %d, diff revision %d",
+                                                reviewId, revision))),
+                                new ParametersAction(parameters)));
+
+        if (result.isRefused()) {
+            respond(rsp, HttpServletResponse.SC_CONFLICT, "The build could not be queued");
+            return;
+        }
+
+        final String rootURL = Jenkins.get().getRootUrl();
+
+        if (rootURL != null) {
+            rsp.setHeader("Location", rootURL + result.getItem().getUrl());
+        }
+
+        if (result.isCreated()) {
+            respond(rsp, HttpServletResponse.SC_CREATED, "Build queued");
+        } else {
+            respond(rsp, HttpServletResponse.SC_OK, "Build already queued");
+        }
+    }
+
+    /**
+     * Returns the values for all of a job's parameters, using the given
+     * values for the REVIEWBOARD_* parameters and the defaults for the rest.
+     * @param job Job to build
+     * @param values Values of the REVIEWBOARD_* parameters
+     * @return Parameter values, or null if the job doesn't define all of the
+     *         REVIEWBOARD_* parameters as simple parameters
+     */
+    private static List<ParameterValue> getParameterValues(final Job<?, ?> job, final Map<String, String> values) {
+        final ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+
+        if (property == null) {
+            return null;
+        }
+
+        final List<ParameterValue> parameters = new ArrayList<>();
+        int found = 0;
+
+        for (ParameterDefinition definition : property.getParameterDefinitions()) {
+            final String value = values.get(definition.getName());
+
+            if (value == null) {
+                final ParameterValue defaultValue = definition.getDefaultParameterValue();
+
+                if (defaultValue != null) {
+                    parameters.add(defaultValue);
+                }
+            } else if (definition instanceof SimpleParameterDefinition simpleDefinition) {
+                parameters.add(simpleDefinition.createValue(value));
+                found++;
+            } else {
+                return null;
+            }
+        }
+
+        return found == values.size() ? parameters : null;
+    }
+
+    /**
+     * Returns whether the request's Authorization header holds the server's
+     * API token. The comparison takes the same time however much of the
+     * token matches.
+     * @param header Authorization header, or null
+     * @param token Configured API token
+     * @return true if the request is authorized
+     */
+    private static boolean isAuthorized(final String header, final String token) {
+        if (header == null || !header.regionMatches(true, 0, TOKEN_PREFIX, 0, TOKEN_PREFIX.length())) {
+            return false;
+        }
+
+        return MessageDigest.isEqual(
+                header.substring(TOKEN_PREFIX.length()).trim().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a positive ID from a request parameter.
+     * @param value Parameter value, or null
+     * @return ID, or -1 if missing or invalid
+     */
+    private static int parseId(final String value) {
+        try {
+            final int id = Integer.parseInt(Util.fixNull(value).trim());
+
+            return id > 0 ? id : -1;
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void respond(final StaplerResponse2 rsp, final int status, final String message)
+            throws IOException {
+        rsp.setStatus(status);
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.getWriter().println(message);
+    }
+
+    /**
+     * Lets Review Board call the endpoint without a crumb. Requests are
+     * authenticated with the API token instead.
+     */
+    @Extension
+    public static class CrumbExclusionImpl extends CrumbExclusion {
+        @Override
+        public boolean process(
+                final HttpServletRequest req, final HttpServletResponse resp, final FilterChain chain)
+                throws IOException, ServletException {
+            if (("/" + URL_NAME + "/build").equals(req.getPathInfo())) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.reviewboard.rbjenkins.steps;
+
+import jenkins.model.CauseOfInterruption;
+import org.reviewboard.rbjenkins.Messages;
+
+/**
+ * Records that a build was stopped because the diff didn't change any files
+ * matching the setup step's path filters.
+ */
+public class SkippedCause extends CauseOfInterruption {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Returns the description shown in the build log and sent to Review
+     * Board.
+     * @return Description of the cause
+     */
+    @Override
+    public String getShortDescription() {
+        return Messages.ReviewBoard_Job_Skipped();
+    }
+}
@@ -0,0 +1,75 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each stage of setting up a build takes, so that the
+ * timings can be printed to the build log.
+ *
+ * Stages may run at the same time on different threads. Each is printed
+ * with the time it started, relative to the start of setup, so that the
+ * stages which overlapped and those on the critical path can be told apart.
+ */
+final class StageTimings {
+    private final long start = System.nanoTime();
+    private final List<Timing> timings = new ArrayList<>();
+
+    /**
+     * Starts timing a stage. The stage ends when the returned object is
+     * closed.
+     * @param name Stage name
+     * @return Running stage
+     */
+    Stage start(final String name) {
+        return new Stage(name, System.nanoTime());
+    }
+
+    /**
+     * Prints the recorded stages to the build log, in the order they
+     * finished.
+     * @param listener Logger
+     */
+    synchronized void print(final TaskListener listener) {
+        listener.getLogger().println("Review Board setup timings:");
+
+        for (Timing timing : timings) {
+            listener.getLogger()
+                    .printf(
+                            "  %-24s started at %6d ms, took %6d ms%n",
+                            timing.name(), toMillis(timing.start() - start), toMillis(timing.duration()));
+        }
+
+        listener.getLogger().printf("  %-24s%23stook %6d ms%n", "total", "", toMillis(System.nanoTime() - start));
+    }
+
+    private synchronized void record(final String name, final long stageStart, final long duration) {
+        timings.add(new Timing(name, stageStart, duration));
+    }
+
+    private static long toMillis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private record Timing(String name, long start, long duration) {}
+
+    /**
+     * A stage which is being timed.
+     */
+    final class Stage implements AutoCloseable {
+        private final String name;
+        private final long stageStart;
+
+        private Stage(final String name, final long stageStart) {
+            this.name = name;
+            this.stageStart = stageStart;
+        }
+
+        @Override
+        public void close() {
+            record(name, stageStart, System.nanoTime() - stageStart);
+        }
+    }
+}
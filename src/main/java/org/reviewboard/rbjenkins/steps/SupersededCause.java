@@ -0,0 +1,40 @@
+package org.reviewboard.rbjenkins.steps;
+
+import jenkins.model.CauseOfInterruption;
+import org.reviewboard.rbjenkins.Messages;
+
+/**
+ * Records that a build was aborted because a newer diff revision of the
+ * same review request was queued.
+ */
+public class SupersededCause extends CauseOfInterruption {
+    private static final long serialVersionUID = 1L;
+
+    private final int revision;
+
+    /**
+     * Construct the cause for the given newer diff revision.
+     * @param revision Diff revision which superseded the build
+     */
+    public SupersededCause(final int revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Returns the diff revision which superseded the build.
+     * @return Diff revision
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns the description shown in the build log and sent to Review
+     * Board.
+     * @return Description of the cause
+     */
+    @Override
+    public String getShortDescription() {
+        return Messages.ReviewBoard_Job_Superseded(Integer.toString(revision));
+    }
+}
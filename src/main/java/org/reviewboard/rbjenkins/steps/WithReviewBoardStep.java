@@ -0,0 +1,190 @@
+package org.reviewboard.rbjenkins.steps;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.CauseOfInterruption;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.reviewboard.rbjenkins.Messages;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.common.StatusUpdate;
+import org.reviewboard.rbjenkins.common.StatusUpdateDispatcher;
+
+/**
+ * Creates a Pipeline block step which reports the block to Review Board,
+ * such as withReviewBoard { ... }.
+ *
+ * The review request is resolved from the build parameters once, along with
+ * its server's configuration and API token, and made available to the
+ * Review Board steps inside the block. The status update is set to pending
+ * when the block starts, and to the outcome of the block when it finishes,
+ * including when it fails or is aborted. Like every other status update,
+ * these are sent through the server's shared client in the background.
+ */
+public class WithReviewBoardStep extends Step {
+    private static final Logger LOGGER = Logger.getLogger(WithReviewBoardStep.class.getName());
+
+    /**
+     * Constructs the step.
+     */
+    @DataBoundConstructor
+    public WithReviewBoardStep() {}
+
+    @Override
+    public StepExecution start(final StepContext context) throws Exception {
+        return new Execution(context);
+    }
+
+    /**
+     * Reports the status of a build to Review Board.
+     * @param reviewBoard Review request being built
+     * @param run Current build
+     * @param state Status update state
+     * @param description Status update description
+     */
+    private static void report(
+            final ReviewBoardContext reviewBoard,
+            final Run<?, ?> run,
+            final ReviewRequest.StatusUpdateState state,
+            final String description) {
+        StatusUpdateDispatcher.get()
+                .submit(new StatusUpdate(
+                        reviewBoard.getReviewRequest(), state, description, run.getAbsoluteUrl(), "See build"));
+    }
+
+    /**
+     * Resolves the review request and runs the block.
+     */
+    private static class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+
+        Execution(final StepContext context) {
+            super(context);
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            final Run<?, ?> run = getContext().get(Run.class);
+            final ReviewBoardContext reviewBoard = ReviewBoardContext.resolve(run);
+
+            if (reviewBoard.getServerConfiguration().findReviewBoardAPIToken() == null) {
+                throw new AbortException(String.format(
+                        "No Review Board API token found for %s. Check the credentials in the server configuration.",
+                        reviewBoard.getServerConfiguration().getReviewBoardURL()));
+            }
+
+            report(reviewBoard, run, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running");
+
+            getContext()
+                    .newBodyInvoker()
+                    .withContext(reviewBoard)
+                    .withCallback(new Callback(reviewBoard))
+                    .start();
+
+            return false;
+        }
+    }
+
+    /**
+     * Reports the outcome of the block once it finishes.
+     */
+    private static class Callback extends BodyExecutionCallback {
+        private static final long serialVersionUID = 1L;
+
+        private final ReviewBoardContext reviewBoard;
+
+        Callback(final ReviewBoardContext reviewBoard) {
+            this.reviewBoard = reviewBoard;
+        }
+
+        @Override
+        public void onSuccess(final StepContext context, final Object result) {
+            try {
+                finish(context, null);
+            } finally {
+                context.onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onFailure(final StepContext context, final Throwable t) {
+            try {
+                finish(context, t);
+            } finally {
+                context.onFailure(t);
+            }
+        }
+
+        /**
+         * Reports the outcome of the block, combining the build's result so
+         * far, which steps such as junit may have set, with how the block
+         * ended. Any error reporting it is logged, so that the step still
+         * finishes.
+         * @param context Step context
+         * @param t Error the block failed with, or null if it succeeded
+         */
+        private void finish(final StepContext context, final Throwable t) {
+            try {
+                final Run<?, ?> run = context.get(Run.class);
+                final List<CauseOfInterruption> causes = BuildStatus.getCausesOfInterruption(run);
+                Result result = run.getResult() == null ? Result.SUCCESS : run.getResult();
+
+                if (t instanceof FlowInterruptedException interrupted) {
+                    result = result.combine(interrupted.getResult());
+                    causes.addAll(interrupted.getCauses());
+                } else if (t != null) {
+                    result = result.combine(Result.FAILURE);
+                }
+
+                final BuildStatus status = BuildStatus.of(result, causes);
+                report(reviewBoard, run, status.state(), status.description());
+            } catch (final IOException | InterruptedException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Unable to report the result of the withReviewBoard block", e);
+            }
+        }
+    }
+
+    /**
+     * Provides the description of the block step.
+     */
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, TaskListener.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "withReviewBoard";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        /**
+         * Returns the display name for this step, as shown in the snippet
+         * generator.
+         * @return Block step display name
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.WithReviewBoardStep_DescriptorImpl_DisplayName();
+        }
+    }
+}
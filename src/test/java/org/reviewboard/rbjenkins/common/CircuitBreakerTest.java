@@ -0,0 +1,56 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+    @Test
+    public void testOpensAfterThreshold() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+
+        breaker.recordFailure(0);
+        breaker.recordFailure(0);
+        assertTrue(breaker.allowRequest(0));
+
+        breaker.recordFailure(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(500));
+    }
+
+    @Test
+    public void testProbeAfterOpenPeriod() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0);
+
+        // Only a single probe is allowed through.
+        assertTrue(breaker.allowRequest(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(1000));
+
+        // A failed probe opens the breaker for another period.
+        breaker.recordFailure(1000);
+        assertFalse(breaker.allowRequest(1500));
+        assertTrue(breaker.allowRequest(2000));
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(2000));
+    }
+
+    @Test
+    public void testAbandonedProbe() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0);
+
+        assertTrue(breaker.allowRequest(1000));
+        assertFalse(breaker.allowRequest(1000));
+
+        // A probe which ends without a response lets another one through.
+        breaker.recordAbandoned();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest(1000));
+    }
+}
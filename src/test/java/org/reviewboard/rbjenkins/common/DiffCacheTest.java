@@ -0,0 +1,147 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.Secret;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class DiffCacheTest {
+    private static final String REVIEWBOARD_CREDENTIALS = "credentials_id";
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private ReviewBoardServerConfiguration serverConfig;
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        // Serve a diff made from the review request ID and diff revision in
+        // the path.
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/review-requests/", exchange -> {
+            downloads.incrementAndGet();
+
+            final byte[] body = ("diff for " + exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        serverConfig = new ReviewBoardServerConfiguration(
+                String.format("http://127.0.0.1:%d/", server.getAddress().getPort()), REVIEWBOARD_CREDENTIALS);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private ReviewRequest reviewRequest(final int revision) throws Exception {
+        return new ReviewRequest(1, revision, 2, new URL(serverConfig.getReviewBoardURL()));
+    }
+
+    private Path cachedPath(final int revision) throws Exception {
+        return tempDir.resolve(DiffCache.getKey(reviewRequest(revision)) + ".diff");
+    }
+
+    private String read(final DiffCache cache, final int revision) throws Exception {
+        try (InputStream in = cache.open(serverConfig, reviewRequest(revision))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        final DiffCache cache = new DiffCache(tempDir, 1024 * 1024);
+
+        assertEquals("diff for /api/review-requests/1/diffs/3/", read(cache, 3));
+        assertEquals("diff for /api/review-requests/1/diffs/3/", read(cache, 3));
+        assertEquals(1, downloads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate());
+    }
+
+    @Test
+    public void testCacheSharedByEquivalentServerURLs() throws Exception {
+        final DiffCache cache = new DiffCache(tempDir, 1024 * 1024);
+        final String url = String.format("HTTP://127.0.0.1:%d", server.getAddress().getPort());
+
+        cache.fetch(serverConfig, reviewRequest(3));
+        cache.fetch(serverConfig, new ReviewRequest(1, 3, 2, new URL(url)));
+
+        assertEquals(1, downloads.get());
+        assertEquals(DiffCache.getKey(reviewRequest(3)), DiffCache.getKey(new ReviewRequest(1, 3, 2, new URL(url))));
+    }
+
+    @Test
+    public void testDamagedDiffDownloadedAgain() throws Exception {
+        final DiffCache cache = new DiffCache(tempDir, 1024 * 1024);
+
+        cache.fetch(serverConfig, reviewRequest(3));
+        Files.writeString(cachedPath(3), "damaged");
+
+        assertEquals("diff for /api/review-requests/1/diffs/3/", read(cache, 3));
+        assertEquals(2, downloads.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        // Room for two diffs, but not three.
+        final DiffCache cache = new DiffCache(tempDir, 100);
+
+        cache.fetch(serverConfig, reviewRequest(1));
+        Files.setLastModifiedTime(cachedPath(1), FileTime.fromMillis(1000));
+        cache.fetch(serverConfig, reviewRequest(2));
+        Files.setLastModifiedTime(cachedPath(2), FileTime.fromMillis(2000));
+        cache.fetch(serverConfig, reviewRequest(3));
+
+        assertFalse(Files.exists(cachedPath(1)));
+        assertTrue(Files.exists(cachedPath(2)));
+        assertTrue(Files.exists(cachedPath(3)));
+    }
+
+    @Test
+    public void testOpenDiffSurvivesEviction() throws Exception {
+        // Room for one diff.
+        final DiffCache cache = new DiffCache(tempDir, 50);
+
+        try (InputStream in = cache.open(serverConfig, reviewRequest(1))) {
+            Files.setLastModifiedTime(cachedPath(1), FileTime.fromMillis(1000));
+            cache.fetch(serverConfig, reviewRequest(2));
+
+            assertEquals(
+                    "diff for /api/review-requests/1/diffs/1/", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
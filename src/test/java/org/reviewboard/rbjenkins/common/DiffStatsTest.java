@@ -0,0 +1,77 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class DiffStatsTest {
+    private static final String DIFF = "diff --git a/src/Old.java b/src/New.java\n"
+            + "similarity index 90%\n"
+            + "rename from src/Old.java\n"
+            + "rename to src/New.java\n"
+            + "--- a/src/Old.java\n"
+            + "+++ b/src/New.java\n"
+            + "@@ -1 +1 @@\n"
+            + "-class Old {}\n"
+            + "+class New {}\n"
+            + "diff --git a/docs/guide.md b/docs/guide.md\n"
+            + "deleted file mode 100644\n"
+            + "--- a/docs/guide.md\n"
+            + "+++ /dev/null\n"
+            + "@@ -1,2 +0,0 @@\n"
+            + "-# Guide\n"
+            + "-+++ not a header\n"
+            + "diff --git a/docs/été.md b/docs/été.md\n"
+            + "new file mode 100644\n"
+            + "--- /dev/null\n"
+            + "+++ b/docs/été.md\n"
+            + "@@ -0,0 +1 @@\n"
+            + "+# Summer\n"
+            + "diff --git a/logo.png b/logo.png\n"
+            + "Binary files a/logo.png and b/logo.png differ\n";
+
+    private static DiffStats read(final String diff) throws IOException {
+        return DiffStats.read(new ByteArrayInputStream(diff.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        final DiffStats stats = read(DIFF);
+
+        assertEquals(
+                List.of("src/Old.java", "src/New.java", "docs/guide.md", "docs/été.md", "logo.png"),
+                stats.getPaths());
+        assertEquals(4, stats.getFiles().size());
+        assertEquals(2, stats.getLinesAdded());
+        assertEquals(3, stats.getLinesRemoved());
+    }
+
+    @Test
+    public void testToManifest() throws IOException {
+        assertEquals(
+                "R\t1\t1\tsrc/New.java\tsrc/Old.java\n"
+                        + "D\t0\t2\tdocs/guide.md\n"
+                        + "A\t1\t0\tdocs/été.md\n"
+                        + "M\t-\t-\tlogo.png\n",
+                read(DIFF).toManifest());
+    }
+
+    @Test
+    public void testFromManifest() throws IOException {
+        final DiffStats stats = read(DIFF);
+
+        assertEquals(stats.getFiles(), DiffStats.fromManifest(stats.toManifest()).getFiles());
+    }
+
+    @Test
+    public void testEmptyDiff() throws IOException {
+        final DiffStats stats = read("");
+
+        assertEquals(List.of(), stats.getPaths());
+        assertEquals("", stats.toManifest());
+    }
+}
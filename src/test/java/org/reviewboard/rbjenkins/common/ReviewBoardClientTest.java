@@ -0,0 +1,180 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.Secret;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.zip.GZIPOutputStream;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class ReviewBoardClientTest {
+    private static final String REVIEWBOARD_CREDENTIALS = "credentials_id";
+
+    private static final String DIFF = "--- a/README\n+++ b/README\n@@ -1 +1 @@\n-Hello\n+Hello, world\n";
+
+    private HttpServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private final Deque<Integer> responseCodes = new ConcurrentLinkedDeque<>();
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            assertEquals("token token", exchange.getRequestHeaders().getFirst("Authorization"));
+
+            try (InputStream in = exchange.getRequestBody()) {
+                requests.add(exchange.getRequestMethod() + " "
+                        + exchange.getRequestURI().getPath() + " "
+                        + new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            final Integer responseCode = responseCodes.poll();
+            exchange.sendResponseHeaders(responseCode == null ? 200 : responseCode, -1);
+            exchange.close();
+        });
+        server.createContext("/rb/api/review-requests/1/diffs/2/", exchange -> {
+            final byte[] diff = DIFF.getBytes(StandardCharsets.UTF_8);
+
+            // Compress the diff only if the client asks for it.
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+
+                try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                    out.write(diff);
+                }
+            } else {
+                exchange.sendResponseHeaders(200, diff.length);
+                exchange.getResponseBody().write(diff);
+            }
+
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private ReviewBoardClient createClient() {
+        final String url = String.format("http://127.0.0.1:%d/rb/", server.getAddress().getPort());
+        final ReviewBoardServerConfiguration serverConfig = new ReviewBoardServerConfiguration(url, REVIEWBOARD_CREDENTIALS);
+        serverConfig.setMaxRetries(2);
+        return serverConfig.getClient();
+    }
+
+    @Test
+    public void testUpdateStatusUpdate() throws Exception {
+        final ReviewBoardClient client = createClient();
+
+        client.updateStatusUpdate(
+                1, 2, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running", "http://jenkins/", "See build");
+        client.updateStatusUpdate(1, 2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "done", null, null);
+
+        assertEquals(2, requests.size());
+        assertEquals(
+                "PUT /rb/api/review-requests/1/status-updates/2/ "
+                        + "state=pending&description=build+running"
+                        + "&url=http%3A%2F%2Fjenkins%2F&url_text=See+build",
+                requests.get(0));
+        assertEquals(
+                "PUT /rb/api/review-requests/1/status-updates/2/ state=done-success&description=done", requests.get(1));
+    }
+
+    @Test
+    public void testUpdateStatusUpdateNotFound() {
+        responseCodes.add(404);
+        final ReviewBoardClient client = createClient();
+
+        assertThrows(
+                ReviewBoardException.class,
+                () -> client.updateStatusUpdate(
+                        1, 2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "done", null, null));
+
+        // Client errors are not retried.
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testRetryOnServerError() throws Exception {
+        responseCodes.add(503);
+        responseCodes.add(502);
+        final ReviewBoardClient client = createClient();
+
+        client.updateStatusUpdate(1, 2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "done", null, null);
+
+        assertEquals(3, requests.size());
+        assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testRetriesExhausted() {
+        responseCodes.add(500);
+        responseCodes.add(500);
+        responseCodes.add(500);
+        final ReviewBoardClient client = createClient();
+
+        assertThrows(
+                ReviewBoardUnavailableException.class,
+                () -> client.updateStatusUpdate(
+                        1, 2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "done", null, null));
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void testOpenDiff() throws Exception {
+        final ReviewBoardClient client = createClient();
+
+        try (InputStream in = client.openDiff(1, 2)) {
+            assertEquals(DIFF, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOpenDiffNotFound() {
+        responseCodes.add(404);
+        final ReviewBoardClient client = createClient();
+
+        assertThrows(ReviewBoardException.class, () -> client.openDiff(1, 3));
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testMissingCredentials() {
+        final String url = String.format("http://127.0.0.1:%d/rb/", server.getAddress().getPort());
+        final ReviewBoardClient client =
+                new ReviewBoardServerConfiguration(url, "missing").getClient();
+
+        // A missing token fails without contacting the server.
+        assertThrows(
+                ReviewBoardException.class,
+                () -> client.updateStatusUpdate(
+                        1, 2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "done", null, null));
+        assertEquals(0, requests.size());
+    }
+}
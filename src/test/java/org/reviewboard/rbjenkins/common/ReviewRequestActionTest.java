@@ -0,0 +1,74 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+public class ReviewRequestActionTest {
+    private JenkinsRule jenkins;
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) {
+        this.jenkins = rule;
+    }
+
+    @Test
+    public void testAttachedToBuild() throws Exception {
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", "http://localhost/"),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", "1"),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", "3"),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", "2")));
+
+        final FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+        final ReviewRequestAction action = build.getAction(ReviewRequestAction.class);
+
+        assertNotNull(action);
+        assertNull(action.getError());
+        assertEquals(1, action.getReviewRequest().getReviewId());
+        assertEquals(3, action.getReviewRequest().getRevision());
+        assertEquals(2, action.getReviewRequest().getStatusUpdateId());
+        assertEquals("http://localhost/", action.getReviewRequest().getServerURL().toString());
+        assertSame(action, ReviewRequestAction.get(build));
+    }
+
+    @Test
+    public void testNotAttachedWithoutParameters() throws Exception {
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        final FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+        assertNull(build.getAction(ReviewRequestAction.class));
+
+        final ReviewRequestAction action = ReviewRequestAction.get(build);
+        assertNull(action.getError());
+        assertEquals(-1, action.getReviewRequest().getReviewId());
+        assertNull(action.getReviewRequest().getServerURL());
+        assertSame(action, build.getAction(ReviewRequestAction.class));
+    }
+
+    @Test
+    public void testInvalidParameters() throws Exception {
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", "http://localhost/"),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", "one")));
+
+        final FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+        final ReviewRequestAction action = build.getAction(ReviewRequestAction.class);
+
+        assertNotNull(action);
+        assertNull(action.getReviewRequest());
+        assertTrue(action.getError().startsWith("REVIEWBOARD_REVIEW_ID, REVIEWBOARD_DIFF_REVISION and "
+                + "REVIEWBOARD_STATUS_UPDATE_ID must be numbers"));
+    }
+}
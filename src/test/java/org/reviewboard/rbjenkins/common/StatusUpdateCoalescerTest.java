@@ -0,0 +1,143 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+public class StatusUpdateCoalescerTest {
+    private static final String REVIEWBOARD_URL = "http://localhost";
+
+    private static ReviewRequest reviewRequest() throws Exception {
+        return new ReviewRequest(1, 3, 2, new URL(REVIEWBOARD_URL));
+    }
+
+    private static StatusUpdate update(final ReviewRequest.StatusUpdateState state, final String description)
+            throws Exception {
+        return update(state, description, System.currentTimeMillis());
+    }
+
+    private static StatusUpdate update(
+            final ReviewRequest.StatusUpdateState state, final String description, final long created)
+            throws Exception {
+        return new StatusUpdate(reviewRequest(), state, description, null, null, created);
+    }
+
+    @Test
+    public void testNewestUpdateWins() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+        final CompletableFuture<Void> first = new CompletableFuture<>();
+        final CompletableFuture<Void> second = new CompletableFuture<>();
+
+        assertTrue(coalescer.offer(update(ReviewRequest.StatusUpdateState.PENDING_STATE, "build running"), first));
+        assertFalse(coalescer.offer(update(ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"), second));
+
+        final StatusUpdateCoalescer.Slot slot = coalescer.take(reviewRequest());
+        assertEquals(ReviewRequest.StatusUpdateState.SUCCESS_STATE, slot.getUpdate().getState());
+        assertNull(coalescer.take(reviewRequest()));
+
+        assertFalse(coalescer.finish(slot, true));
+        slot.complete(null);
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void testReplacementKeepsLink() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+
+        coalescer.offer(
+                new StatusUpdate(
+                        reviewRequest(),
+                        ReviewRequest.StatusUpdateState.PENDING_STATE,
+                        "build running",
+                        "http://jenkins/job/1/",
+                        "See build"),
+                new CompletableFuture<>());
+        coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"), new CompletableFuture<>());
+
+        final StatusUpdate update = coalescer.take(reviewRequest()).getUpdate();
+        assertEquals(ReviewRequest.StatusUpdateState.SUCCESS_STATE, update.getState());
+        assertEquals("http://jenkins/job/1/", update.getUrl());
+        assertEquals("See build", update.getUrlText());
+    }
+
+    @Test
+    public void testPendingDoesNotReplaceTerminal() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+        final StatusUpdate terminal = update(ReviewRequest.StatusUpdateState.FAILURE_STATE, "build failed");
+
+        // Pending updates made no later than the terminal one belong to the
+        // same build, and have only arrived late.
+        coalescer.offer(terminal, new CompletableFuture<>());
+        coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.PENDING_STATE, "build running", terminal.getCreated()),
+                new CompletableFuture<>());
+
+        final StatusUpdateCoalescer.Slot slot = coalescer.take(reviewRequest());
+        assertEquals(ReviewRequest.StatusUpdateState.FAILURE_STATE, slot.getUpdate().getState());
+
+        // A pending update arriving while the terminal one is being sent is
+        // dropped outright.
+        final CompletableFuture<Void> late = new CompletableFuture<>();
+        assertFalse(coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.PENDING_STATE, "build running", terminal.getCreated()), late));
+        assertTrue(late.isDone());
+        assertFalse(coalescer.finish(slot, true));
+    }
+
+    @Test
+    public void testPendingFromNewerRunReplacesTerminal() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+        final StatusUpdate terminal = new StatusUpdate(
+                reviewRequest(),
+                ReviewRequest.StatusUpdateState.FAILURE_STATE,
+                "build failed",
+                "http://jenkins/job/1/",
+                "See build",
+                System.currentTimeMillis() - 1000);
+
+        coalescer.offer(terminal, new CompletableFuture<>());
+        coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.PENDING_STATE, "waiting in queue"), new CompletableFuture<>());
+
+        // The link to the earlier build isn't carried over.
+        final StatusUpdate update = coalescer.take(reviewRequest()).getUpdate();
+        assertEquals(ReviewRequest.StatusUpdateState.PENDING_STATE, update.getState());
+        assertNull(update.getUrl());
+    }
+
+    @Test
+    public void testUpdateQueuedWhileSending() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+
+        coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.PENDING_STATE, "build running"), new CompletableFuture<>());
+        final StatusUpdateCoalescer.Slot slot = coalescer.take(reviewRequest());
+
+        assertFalse(coalescer.offer(
+                update(ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"), new CompletableFuture<>()));
+        assertTrue(coalescer.finish(slot, true));
+        assertEquals(
+                ReviewRequest.StatusUpdateState.SUCCESS_STATE,
+                coalescer.take(reviewRequest()).getUpdate().getState());
+    }
+
+    @Test
+    public void testAlreadySent() throws Exception {
+        final StatusUpdateCoalescer coalescer = new StatusUpdateCoalescer();
+        final StatusUpdate update = update(ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded");
+
+        coalescer.offer(update, new CompletableFuture<>());
+        assertFalse(coalescer.isAlreadySent(update));
+        coalescer.finish(coalescer.take(reviewRequest()), true);
+
+        assertTrue(coalescer.isAlreadySent(update(ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded")));
+        assertFalse(coalescer.isAlreadySent(update(ReviewRequest.StatusUpdateState.FAILURE_STATE, "build failed")));
+    }
+}
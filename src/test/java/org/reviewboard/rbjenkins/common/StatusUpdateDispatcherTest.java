@@ -0,0 +1,147 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.Secret;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class StatusUpdateDispatcherTest {
+    private static final String REVIEWBOARD_CREDENTIALS = "api_token";
+
+    private HttpServer server;
+    private String url;
+    private final List<String> statusUpdates = new CopyOnWriteArrayList<>();
+    private final CountDownLatch firstRequest = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/review-requests/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            statusUpdates.add(path
+                    + " "
+                    + URLDecoder.decode(
+                            new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8),
+                            StandardCharsets.UTF_8));
+
+            // Hold the first request until the test has queued more updates.
+            firstRequest.countDown();
+
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.sendResponseHeaders(path.contains("/status-updates/3/") ? 403 : 200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        url = String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+        GlobalConfiguration.all()
+                .get(ReviewBoardGlobalConfiguration.class)
+                .setServerConfigurations(List.of(new ReviewBoardServerConfiguration(url, REVIEWBOARD_CREDENTIALS)));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
+    }
+
+    private StatusUpdate update(
+            final int statusUpdateId, final ReviewRequest.StatusUpdateState state, final String description)
+            throws Exception {
+        return new StatusUpdate(new ReviewRequest(1, 3, statusUpdateId, new URL(url)), state, description, null, null);
+    }
+
+    @Test
+    public void testUpdatesCoalesced() throws Exception {
+        final StatusUpdateDispatcher dispatcher = StatusUpdateDispatcher.get();
+
+        final CompletableFuture<Void> first =
+                dispatcher.submit(update(2, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running"));
+        firstRequest.await(30, TimeUnit.SECONDS);
+
+        // These arrive while the first is being sent, so only the newest of
+        // them is sent once it finishes.
+        final CompletableFuture<Void> second =
+                dispatcher.submit(update(2, ReviewRequest.StatusUpdateState.PENDING_STATE, "tests running"));
+        final CompletableFuture<Void> third =
+                dispatcher.submit(update(2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"));
+        release.countDown();
+
+        CompletableFuture.allOf(first, second, third).get(30, TimeUnit.SECONDS);
+
+        assertEquals(
+                List.of(
+                        "/api/review-requests/1/status-updates/2/ state=pending&description=build running",
+                        "/api/review-requests/1/status-updates/2/ state=done-success&description=build succeeded"),
+                statusUpdates);
+
+        // Nothing is left in the outbox to retry.
+        assertEquals(0, dispatcher.retryPending());
+    }
+
+    @Test
+    public void testRejectedUpdateCompletesExceptionally() throws Exception {
+        final StatusUpdateDispatcher dispatcher = StatusUpdateDispatcher.get();
+        release.countDown();
+
+        final CompletableFuture<Void> future =
+                dispatcher.submit(update(3, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"));
+
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+        assertInstanceOf(ReviewBoardException.class, e.getCause());
+
+        // Retrying won't help, so the update is dropped from the outbox.
+        assertEquals(0, dispatcher.retryPending());
+    }
+
+    @Test
+    public void testUpdateAfterShutdownNotSent() throws Exception {
+        final StatusUpdateDispatcher dispatcher = StatusUpdateDispatcher.get();
+        dispatcher.shutdown();
+
+        final CompletableFuture<Void> future =
+                dispatcher.submit(update(2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded"));
+
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        assertTrue(statusUpdates.isEmpty());
+    }
+}
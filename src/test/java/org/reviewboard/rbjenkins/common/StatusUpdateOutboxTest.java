@@ -0,0 +1,137 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StatusUpdateOutboxTest {
+    private static final String REVIEWBOARD_URL = "http://localhost";
+
+    @TempDir
+    Path tempDir;
+
+    private static StatusUpdate update(
+            final int statusUpdateId, final ReviewRequest.StatusUpdateState state, final String description)
+            throws Exception {
+        return update(statusUpdateId, state, description, System.currentTimeMillis());
+    }
+
+    private static StatusUpdate update(
+            final int statusUpdateId,
+            final ReviewRequest.StatusUpdateState state,
+            final String description,
+            final long created)
+            throws Exception {
+        return new StatusUpdate(
+                new ReviewRequest(1, 3, statusUpdateId, new URL(REVIEWBOARD_URL)),
+                state,
+                description,
+                "http://jenkins/job/1/",
+                null,
+                created);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        final Path journal = tempDir.resolve("outbox.journal");
+        final StatusUpdate first = update(1, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running");
+        final StatusUpdate second = update(2, ReviewRequest.StatusUpdateState.PENDING_STATE, "build\trunning\n");
+        final StatusUpdate third = update(2, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded");
+
+        final StatusUpdateOutbox outbox = new StatusUpdateOutbox(journal);
+        outbox.add(first);
+        outbox.add(second);
+        outbox.add(third);
+        outbox.remove(first);
+        outbox.close();
+
+        final StatusUpdateOutbox reopened = new StatusUpdateOutbox(journal);
+        final List<StatusUpdate> pending = reopened.getPending();
+        reopened.close();
+
+        assertEquals(1, pending.size());
+        assertEquals(third.getReviewRequest(), pending.get(0).getReviewRequest());
+        assertEquals(ReviewRequest.StatusUpdateState.SUCCESS_STATE, pending.get(0).getState());
+        assertEquals("build succeeded", pending.get(0).getDescription());
+        assertEquals("http://jenkins/job/1/", pending.get(0).getUrl());
+        assertNull(pending.get(0).getUrlText());
+        assertEquals(third.getCreated(), pending.get(0).getCreated());
+    }
+
+    @Test
+    public void testPendingDoesNotReplaceTerminal() throws Exception {
+        final StatusUpdateOutbox outbox = new StatusUpdateOutbox(tempDir.resolve("outbox.journal"));
+        final StatusUpdate terminal = update(1, ReviewRequest.StatusUpdateState.FAILURE_STATE, "build failed");
+
+        outbox.add(terminal);
+        outbox.add(update(1, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running", terminal.getCreated()));
+
+        assertEquals(List.of(terminal), outbox.getPending());
+        outbox.close();
+    }
+
+    @Test
+    public void testPendingFromNewerRunReplacesTerminal() throws Exception {
+        final StatusUpdateOutbox outbox = new StatusUpdateOutbox(tempDir.resolve("outbox.journal"));
+        final StatusUpdate terminal = update(
+                1, ReviewRequest.StatusUpdateState.FAILURE_STATE, "build failed", System.currentTimeMillis() - 1000);
+        final StatusUpdate pending = update(1, ReviewRequest.StatusUpdateState.PENDING_STATE, "build running");
+
+        outbox.add(terminal);
+        outbox.add(pending);
+
+        assertEquals(List.of(pending), outbox.getPending());
+        outbox.close();
+    }
+
+    @Test
+    public void testOldUpdatesDropped() throws Exception {
+        final Path journal = tempDir.resolve("outbox.journal");
+        final StatusUpdate current = update(1, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded");
+
+        final StatusUpdateOutbox outbox = new StatusUpdateOutbox(journal);
+        outbox.add(update(
+                2,
+                ReviewRequest.StatusUpdateState.FAILURE_STATE,
+                "build failed",
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+        outbox.add(current);
+
+        assertEquals(List.of(current), outbox.getPending());
+        outbox.close();
+
+        final StatusUpdateOutbox reopened = new StatusUpdateOutbox(journal);
+        assertEquals(1, reopened.getPending().size());
+        reopened.close();
+    }
+
+    @Test
+    public void testPartialRecordSkipped() throws Exception {
+        final Path journal = tempDir.resolve("outbox.journal");
+        final StatusUpdate update = update(1, ReviewRequest.StatusUpdateState.SUCCESS_STATE, "build succeeded");
+
+        final StatusUpdateOutbox outbox = new StatusUpdateOutbox(journal);
+        outbox.add(update);
+        outbox.close();
+
+        Files.write(journal, "A\t2\thttp".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        final StatusUpdateOutbox reopened = new StatusUpdateOutbox(journal);
+        reopened.remove(reopened.getPending().get(0));
+        reopened.close();
+
+        final StatusUpdateOutbox last = new StatusUpdateOutbox(journal);
+        assertTrue(last.getPending().isEmpty());
+        last.close();
+    }
+}
@@ -0,0 +1,171 @@
+package org.reviewboard.rbjenkins.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class UnifiedDiffTest {
+    private static List<UnifiedDiff.FilePatch> parse(final String diff) throws IOException {
+        return UnifiedDiff.parse(new ByteArrayInputStream(diff.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testParseGitDiff() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("diff --git a/src/Main.java b/src/Main.java\n"
+                + "index 1234567..89abcde 100644\n"
+                + "--- a/src/Main.java\n"
+                + "+++ b/src/Main.java\n"
+                + "@@ -1,3 +1,3 @@\n"
+                + " class Main {\n"
+                + "-    int x;\n"
+                + "+    int y;\n"
+                + " }\n"
+                + "diff --git a/NEWS b/NEWS\n"
+                + "new file mode 100644\n"
+                + "--- /dev/null\n"
+                + "+++ b/NEWS\n"
+                + "@@ -0,0 +1 @@\n"
+                + "+News\n"
+                + "\\ No newline at end of file\n"
+                + "diff --git a/old.txt b/new.txt\n"
+                + "similarity index 100%\n"
+                + "rename from old.txt\n"
+                + "rename to new.txt\n");
+
+        assertEquals(3, patches.size());
+
+        final UnifiedDiff.FilePatch modified = patches.get(0);
+        assertEquals("src/Main.java", modified.getOldPath());
+        assertEquals("src/Main.java", modified.getNewPath());
+        assertEquals(1, modified.getHunks().size());
+        assertEquals(List.of("class Main {", "    int x;", "}"), modified.getHunks().get(0).getOldLines());
+        assertEquals(List.of("class Main {", "    int y;", "}"), modified.getHunks().get(0).getNewLines());
+
+        final UnifiedDiff.FilePatch added = patches.get(1);
+        assertTrue(added.isNewFile());
+        assertEquals("NEWS", added.getPath());
+        assertTrue(added.getHunks().get(0).isNewMissingNewline());
+        assertFalse(added.getHunks().get(0).isOldMissingNewline());
+
+        final UnifiedDiff.FilePatch renamed = patches.get(2);
+        assertTrue(renamed.isRename());
+        assertEquals("old.txt", renamed.getOldPath());
+        assertEquals("new.txt", renamed.getNewPath());
+        assertTrue(renamed.getHunks().isEmpty());
+    }
+
+    @Test
+    public void testParseCopy() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("diff --git a/old.txt b/new.txt\n"
+                + "similarity index 100%\n"
+                + "copy from old.txt\n"
+                + "copy to new.txt\n");
+
+        assertEquals(1, patches.size());
+
+        final UnifiedDiff.FilePatch copied = patches.get(0);
+        assertTrue(copied.isCopy());
+        assertFalse(copied.isRename());
+        assertEquals("old.txt", copied.getOldPath());
+        assertEquals("new.txt", copied.getNewPath());
+    }
+
+    @Test
+    public void testParseQuotedPaths() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("diff --git \"a/caf\\303\\251.txt\" \"b/tab\\there.txt\"\n"
+                + "similarity index 100%\n"
+                + "rename from \"caf\\303\\251.txt\"\n"
+                + "rename to \"tab\\there.txt\"\n"
+                + "diff --git a/naïve.txt b/naïve.txt\n"
+                + "--- a/naïve.txt\n"
+                + "+++ b/naïve.txt\n"
+                + "@@ -1 +1 @@\n"
+                + "-a\n"
+                + "+b\n");
+
+        assertEquals(2, patches.size());
+        assertTrue(patches.get(0).isRename());
+        assertEquals("café.txt", patches.get(0).getOldPath());
+        assertEquals("tab\there.txt", patches.get(0).getNewPath());
+        assertEquals("naïve.txt", patches.get(1).getPath());
+    }
+
+    @Test
+    public void testParseModes() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("diff --git a/run.sh b/run.sh\n"
+                + "old mode 100644\n"
+                + "new mode 100755\n"
+                + "diff --git a/build.sh b/build.sh\n"
+                + "new file mode 100755\n"
+                + "--- /dev/null\n"
+                + "+++ b/build.sh\n"
+                + "@@ -0,0 +1 @@\n"
+                + "+make\n");
+
+        assertEquals(2, patches.size());
+        assertEquals("run.sh", patches.get(0).getPath());
+        assertEquals("100644", patches.get(0).getOldMode());
+        assertEquals("100755", patches.get(0).getNewMode());
+        assertEquals("100644", patches.get(0).reverse().getNewMode());
+        assertTrue(patches.get(1).isNewFile());
+        assertNull(patches.get(1).getOldMode());
+        assertEquals("100755", patches.get(1).getNewMode());
+    }
+
+    @Test
+    public void testParsePlainDiff() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("Index: trunk/a.c\n"
+                + "===================================================================\n"
+                + "--- trunk/a.c\t(revision 1)\n"
+                + "+++ trunk/a.c\t(working copy)\n"
+                + "@@ -1 +1 @@\n"
+                + "-a\n"
+                + "+b\n"
+                + "--- trunk/b.c\t(revision 1)\n"
+                + "+++ /dev/null\n"
+                + "@@ -1 +0,0 @@\n"
+                + "-b\n");
+
+        assertEquals(2, patches.size());
+        assertEquals("trunk/a.c", patches.get(0).getPath());
+        assertTrue(patches.get(1).isDeletedFile());
+        assertNull(patches.get(1).getNewPath());
+        assertEquals("trunk/b.c", patches.get(1).getPath());
+    }
+
+    @Test
+    public void testParseBinary() throws Exception {
+        final List<UnifiedDiff.FilePatch> patches = parse("diff --git a/logo.png b/logo.png\n"
+                + "index 1234567..89abcde 100644\n"
+                + "GIT binary patch\n"
+                + "literal 4\n"
+                + "LcmZQz00001\n");
+
+        assertEquals(1, patches.size());
+        assertTrue(patches.get(0).isBinary());
+    }
+
+    @Test
+    public void testParseHeadersCountsLines() throws IOException {
+        final List<UnifiedDiff.FilePatch> patches = UnifiedDiff.parseHeaders(new ByteArrayInputStream(
+                ("--- a/x\n+++ b/x\n@@ -1,3 +1,2 @@\n a\n-b\n-c\n+d\n").getBytes(StandardCharsets.UTF_8)));
+
+        final UnifiedDiff.Hunk hunk = patches.get(0).getHunks().get(0);
+        assertEquals(1, hunk.getAddedCount());
+        assertEquals(2, hunk.getRemovedCount());
+        assertTrue(hunk.getLines().isEmpty());
+    }
+
+    @Test
+    public void testParseTruncatedHunk() {
+        assertThrows(IOException.class, () -> parse("--- a/x\n+++ b/x\n@@ -1,2 +1,2 @@\n a\n"));
+    }
+}
@@ -50,4 +50,28 @@ public class ReviewBoardGlobalConfigurationTest {
 
         assertNull(server);
     }
+
+    @Test
+    public void testNormalizedServerURL() throws Exception {
+        List<ReviewBoardServerConfiguration> serverConfigs = new ArrayList<>();
+        serverConfigs.add(new ReviewBoardServerConfiguration("https://Reviews.Example.com/rb/", REVIEWBOARD_CREDENTIALS));
+
+        ReviewBoardGlobalConfiguration config = new ReviewBoardGlobalConfiguration(serverConfigs);
+
+        assertNotNull(config.getServerConfiguration(new URL("https://reviews.example.com/rb")));
+        assertNotNull(config.getServerConfiguration(new URL("HTTPS://reviews.example.com:443/rb//")));
+        assertNull(config.getServerConfiguration(new URL("http://reviews.example.com/rb")));
+        assertNull(config.getServerConfiguration(new URL("https://reviews.example.com:8443/rb")));
+    }
+
+    @Test
+    public void testInvalidServerURLIgnored() throws Exception {
+        List<ReviewBoardServerConfiguration> serverConfigs = new ArrayList<>();
+        serverConfigs.add(new ReviewBoardServerConfiguration("not a url", REVIEWBOARD_CREDENTIALS));
+        serverConfigs.add(new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS));
+
+        ReviewBoardGlobalConfiguration config = new ReviewBoardGlobalConfiguration(serverConfigs);
+
+        assertNotNull(config.getServerConfiguration(new URL(REVIEWBOARD_URL)));
+    }
 }
@@ -2,10 +2,12 @@ package org.reviewboard.rbjenkins.config;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import hudson.util.Secret;
+import java.util.List;
 import jenkins.model.GlobalConfiguration;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
@@ -27,10 +29,7 @@ public class ReviewBoardServerConfigurationTest {
     @AfterEach
     public void resetTest() {
         // Ensure that each test has a clean global config
-        GlobalConfiguration.all()
-                .get(ReviewBoardGlobalConfiguration.class)
-                .getServerConfigurations()
-                .clear();
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
         SystemCredentialsProvider.getInstance().getCredentials().clear();
     }
 
@@ -42,7 +41,7 @@ public class ReviewBoardServerConfigurationTest {
         ReviewBoardServerConfiguration serverConfig =
                 new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS);
 
-        globalConfig.getServerConfigurations().add(serverConfig);
+        globalConfig.setServerConfigurations(List.of(serverConfig));
 
         assertNotEquals(serverConfig.getReviewBoardAPIToken(), REVIEWBOARD_API_TOKEN);
     }
@@ -63,8 +62,30 @@ public class ReviewBoardServerConfigurationTest {
         ReviewBoardServerConfiguration serverConfig =
                 new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS);
 
-        globalConfig.getServerConfigurations().add(serverConfig);
+        globalConfig.setServerConfigurations(List.of(serverConfig));
 
         assertEquals(serverConfig.getReviewBoardAPIToken(), REVIEWBOARD_API_TOKEN);
     }
+
+    @Test
+    public void testCredentialsCacheInvalidated() throws Exception {
+        ReviewBoardServerConfiguration serverConfig =
+                new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS);
+
+        // The missing credential is cached.
+        assertNull(serverConfig.findReviewBoardAPIToken());
+
+        StringCredentials credentials = new StringCredentialsImpl(
+                CredentialsScope.SYSTEM,
+                REVIEWBOARD_CREDENTIALS,
+                "Description",
+                Secret.fromString(REVIEWBOARD_API_TOKEN));
+
+        SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+        assertNull(serverConfig.findReviewBoardAPIToken());
+
+        // Saving the credentials clears the cache.
+        SystemCredentialsProvider.getInstance().save();
+        assertEquals(REVIEWBOARD_API_TOKEN, serverConfig.findReviewBoardAPIToken());
+    }
 }
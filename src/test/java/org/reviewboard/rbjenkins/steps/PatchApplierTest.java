@@ -0,0 +1,391 @@
+package org.reviewboard.rbjenkins.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PatchApplierTest {
+    @TempDir
+    Path workspace;
+
+    @TempDir
+    Path tempDir;
+
+    private static final String PREVIOUS_DIFF = "--- a/a.txt\n+++ b/a.txt\n@@ -1 +1 @@\n-a\n+A\n"
+            + "--- a/b.txt\n+++ b/b.txt\n@@ -1 +1 @@\n-b\n+B\n"
+            + "--- /dev/null\n+++ b/c.txt\n@@ -0,0 +1 @@\n+c\n";
+
+    private static final String NEW_DIFF = "--- a/a.txt\n+++ b/a.txt\n@@ -1 +1 @@\n-a\n+A\n"
+            + "--- a/b.txt\n+++ b/b.txt\n@@ -1 +1 @@\n-b\n+BB\n"
+            + "--- /dev/null\n+++ b/d.txt\n@@ -0,0 +1 @@\n+d\n";
+
+    private PatchApplier.Result apply(final String diff, final boolean dryRun) throws Exception {
+        final Path patchFile = tempDir.resolve("patch.diff");
+        Files.writeString(patchFile, diff, StandardCharsets.UTF_8);
+
+        return new PatchApplier(patchFile.toString(), dryRun).invoke(workspace.toFile(), null);
+    }
+
+    private PatchApplier.Result applyInterdiff(final String previousDiff, final String diff) throws Exception {
+        final Path previousPatchFile = tempDir.resolve("previous.diff");
+        final Path patchFile = tempDir.resolve("patch.diff");
+        Files.writeString(previousPatchFile, previousDiff, StandardCharsets.UTF_8);
+        Files.writeString(patchFile, diff, StandardCharsets.UTF_8);
+
+        return new PatchApplier(patchFile.toString(), previousPatchFile.toString(), false)
+                .invoke(workspace.toFile(), null);
+    }
+
+    private void write(final String path, final String content) throws Exception {
+        Files.createDirectories(workspace.resolve(path).getParent());
+        Files.writeString(workspace.resolve(path), content, StandardCharsets.UTF_8);
+    }
+
+    private String read(final String path) throws Exception {
+        return Files.readString(workspace.resolve(path), StandardCharsets.UTF_8);
+    }
+
+    private void assertNothingStaged() throws Exception {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(tempDir.resolve("patch.diff")), files.toList());
+        }
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        write("src/a.txt", "1\n2\n3\n4\n5\n6\n7\n8\n9\n");
+        write("old.txt", "moved\n");
+        write("gone.txt", "bye\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git a/src/a.txt b/src/a.txt\n"
+                        + "--- a/src/a.txt\n"
+                        + "+++ b/src/a.txt\n"
+                        + "@@ -1,3 +1,3 @@\n"
+                        + " 1\n"
+                        + "-2\n"
+                        + "+two\n"
+                        + " 3\n"
+                        + "@@ -7,3 +7,4 @@\n"
+                        + " 7\n"
+                        + " 8\n"
+                        + " 9\n"
+                        + "+10\n"
+                        + "diff --git a/new.txt b/new.txt\n"
+                        + "new file mode 100644\n"
+                        + "--- /dev/null\n"
+                        + "+++ b/new.txt\n"
+                        + "@@ -0,0 +1 @@\n"
+                        + "+hello\n"
+                        + "\\ No newline at end of file\n"
+                        + "diff --git a/old.txt b/renamed.txt\n"
+                        + "similarity index 100%\n"
+                        + "rename from old.txt\n"
+                        + "rename to renamed.txt\n"
+                        + "diff --git a/gone.txt b/gone.txt\n"
+                        + "deleted file mode 100644\n"
+                        + "--- a/gone.txt\n"
+                        + "+++ /dev/null\n"
+                        + "@@ -1 +0,0 @@\n"
+                        + "-bye\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals(List.of("src/a.txt", "new.txt", "renamed.txt", "gone.txt"), result.getFiles());
+        assertEquals("1\ntwo\n3\n4\n5\n6\n7\n8\n9\n10\n", read("src/a.txt"));
+        assertEquals("hello", read("new.txt"));
+        assertEquals("moved\n", read("renamed.txt"));
+        assertFalse(Files.exists(workspace.resolve("old.txt")));
+        assertFalse(Files.exists(workspace.resolve("gone.txt")));
+        assertNothingStaged();
+    }
+
+    @Test
+    public void testApplyKeepsPermissions() throws Exception {
+        assumeTrue(Files.getFileStore(workspace).supportsFileAttributeView(PosixFileAttributeView.class));
+        write("run.sh", "echo 1\n");
+        Files.setPosixFilePermissions(workspace.resolve("run.sh"), PosixFilePermissions.fromString("rwxr-x---"));
+
+        final PatchApplier.Result result =
+                apply("--- a/run.sh\n+++ b/run.sh\n@@ -1 +1 @@\n-echo 1\n+echo 2\n", false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("echo 2\n", read("run.sh"));
+        assertEquals(
+                PosixFilePermissions.fromString("rwxr-x---"),
+                Files.getPosixFilePermissions(workspace.resolve("run.sh")));
+    }
+
+    @Test
+    public void testApplyModes() throws Exception {
+        assumeTrue(Files.getFileStore(workspace).supportsFileAttributeView(PosixFileAttributeView.class));
+        write("run.sh", "echo 1\n");
+        write("tool.sh", "echo tool\n");
+        Files.setPosixFilePermissions(workspace.resolve("run.sh"), PosixFilePermissions.fromString("rw-r--r--"));
+        Files.setPosixFilePermissions(workspace.resolve("tool.sh"), PosixFilePermissions.fromString("rwxr-x---"));
+
+        final PatchApplier.Result result = apply(
+                "diff --git a/run.sh b/run.sh\n"
+                        + "old mode 100644\n"
+                        + "new mode 100755\n"
+                        + "--- a/run.sh\n"
+                        + "+++ b/run.sh\n"
+                        + "@@ -1 +1 @@\n"
+                        + "-echo 1\n"
+                        + "+echo 2\n"
+                        + "diff --git a/tool.sh b/tool.sh\n"
+                        + "old mode 100755\n"
+                        + "new mode 100644\n"
+                        + "diff --git a/build.sh b/build.sh\n"
+                        + "new file mode 100755\n"
+                        + "--- /dev/null\n"
+                        + "+++ b/build.sh\n"
+                        + "@@ -0,0 +1 @@\n"
+                        + "+make\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("echo 2\n", read("run.sh"));
+        assertEquals(
+                PosixFilePermissions.fromString("rwxr-xr-x"),
+                Files.getPosixFilePermissions(workspace.resolve("run.sh")));
+        assertEquals("echo tool\n", read("tool.sh"));
+        assertEquals(
+                PosixFilePermissions.fromString("rw-r-----"),
+                Files.getPosixFilePermissions(workspace.resolve("tool.sh")));
+        assertTrue(Files.isExecutable(workspace.resolve("build.sh")));
+    }
+
+    @Test
+    public void testApplyCopyKeepsSource() throws Exception {
+        write("a.txt", "1\n2\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git a/a.txt b/b.txt\n"
+                        + "similarity index 50%\n"
+                        + "copy from a.txt\n"
+                        + "copy to b.txt\n"
+                        + "--- a/a.txt\n"
+                        + "+++ b/b.txt\n"
+                        + "@@ -1,2 +1,2 @@\n"
+                        + " 1\n"
+                        + "-2\n"
+                        + "+two\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("1\n2\n", read("a.txt"));
+        assertEquals("1\ntwo\n", read("b.txt"));
+    }
+
+    @Test
+    public void testApplyNonAsciiPath() throws Exception {
+        write("café.txt", "a\n");
+        write("naïve.txt", "c\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git \"a/caf\\303\\251.txt\" \"b/caf\\303\\251.txt\"\n"
+                        + "--- \"a/caf\\303\\251.txt\"\n"
+                        + "+++ \"b/caf\\303\\251.txt\"\n"
+                        + "@@ -1 +1 @@\n"
+                        + "-a\n"
+                        + "+b\n"
+                        + "--- a/naïve.txt\n"
+                        + "+++ b/naïve.txt\n"
+                        + "@@ -1 +1 @@\n"
+                        + "-c\n"
+                        + "+d\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals(List.of("café.txt", "naïve.txt"), result.getFiles());
+        assertEquals("b\n", read("café.txt"));
+        assertEquals("d\n", read("naïve.txt"));
+    }
+
+    @Test
+    public void testApplyQuotedPath() throws Exception {
+        write("say \"hi\".txt", "a\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git \"a/say \\\"hi\\\".txt\" \"b/say \\\"hi\\\".txt\"\n"
+                        + "--- \"a/say \\\"hi\\\".txt\"\n"
+                        + "+++ \"b/say \\\"hi\\\".txt\"\n"
+                        + "@@ -1 +1 @@\n"
+                        + "-a\n"
+                        + "+b\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals(List.of("say \"hi\".txt"), result.getFiles());
+        assertEquals("b\n", read("say \"hi\".txt"));
+    }
+
+    @Test
+    public void testApplyRenameChain() throws Exception {
+        write("a.txt", "a\n");
+        write("c.txt", "c\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git a/a.txt b/b.txt\n"
+                        + "similarity index 100%\n"
+                        + "rename from a.txt\n"
+                        + "rename to b.txt\n"
+                        + "diff --git a/c.txt b/a.txt\n"
+                        + "similarity index 100%\n"
+                        + "rename from c.txt\n"
+                        + "rename to a.txt\n",
+                false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("c\n", read("a.txt"));
+        assertEquals("a\n", read("b.txt"));
+        assertFalse(Files.exists(workspace.resolve("c.txt")));
+    }
+
+    @Test
+    public void testRenameOntoExistingFileRejected() throws Exception {
+        write("a.txt", "a\n");
+        write("b.txt", "b\n");
+
+        final PatchApplier.Result result = apply(
+                "diff --git a/a.txt b/b.txt\n"
+                        + "similarity index 100%\n"
+                        + "rename from a.txt\n"
+                        + "rename to b.txt\n",
+                false);
+
+        assertFalse(result.isSuccessful());
+        assertEquals(List.of("b.txt: file already exists"), result.getErrors());
+        assertEquals("a\n", read("a.txt"));
+        assertEquals("b\n", read("b.txt"));
+        assertNothingStaged();
+    }
+
+    @Test
+    public void testWriteFailureChangesNothing() throws Exception {
+        write("a.txt", "a\n");
+        write("b.txt", "b\n");
+        write("c.txt", "c\n");
+
+        // c.txt is a file, so nothing can be created inside it.
+        assertThrows(
+                IOException.class,
+                () -> apply(
+                        "--- a/a.txt\n+++ /dev/null\n@@ -1 +0,0 @@\n-a\n"
+                                + "--- a/b.txt\n+++ b/b.txt\n@@ -1 +1 @@\n-b\n+B\n"
+                                + "--- /dev/null\n+++ b/c.txt/d.txt\n@@ -0,0 +1 @@\n+d\n",
+                        false));
+
+        assertEquals("a\n", read("a.txt"));
+        assertEquals("b\n", read("b.txt"));
+        assertEquals("c\n", read("c.txt"));
+        assertNothingStaged();
+    }
+
+    @Test
+    public void testApplyWithOffset() throws Exception {
+        // Two lines have been added above the hunk since the diff was made.
+        write("a.txt", "x\ny\n1\n2\n3\n");
+
+        final PatchApplier.Result result =
+                apply("--- a/a.txt\n+++ b/a.txt\n@@ -1,3 +1,3 @@\n 1\n-2\n+two\n 3\n", false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("x\ny\n1\ntwo\n3\n", read("a.txt"));
+    }
+
+    @Test
+    public void testApplyKeepsCarriageReturns() throws Exception {
+        write("a.txt", "1\r\n2\r\n");
+
+        final PatchApplier.Result result =
+                apply("--- a/a.txt\n+++ b/a.txt\n@@ -1,2 +1,2 @@\n 1\r\n-2\r\n+two\r\n", false);
+
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals("1\r\ntwo\r\n", read("a.txt"));
+    }
+
+    @Test
+    public void testConflictChangesNothing() throws Exception {
+        write("a.txt", "1\n2\n3\n");
+        write("b.txt", "changed\n");
+
+        final PatchApplier.Result result = apply(
+                "--- a/a.txt\n+++ b/a.txt\n@@ -1 +1 @@\n-1\n+one\n"
+                        + "--- a/b.txt\n+++ b/b.txt\n@@ -1 +1 @@\n-original\n+new\n",
+                false);
+
+        assertFalse(result.isSuccessful());
+        assertEquals(List.of("b.txt: hunk #1 at line 1 does not apply"), result.getErrors());
+        assertEquals("1\n2\n3\n", read("a.txt"));
+        assertEquals("changed\n", read("b.txt"));
+        assertNothingStaged();
+    }
+
+    @Test
+    public void testDryRun() throws Exception {
+        write("a.txt", "1\n");
+
+        final PatchApplier.Result result = apply("--- a/a.txt\n+++ b/a.txt\n@@ -1 +1 @@\n-1\n+one\n", true);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(List.of("a.txt"), result.getFiles());
+        assertEquals("1\n", read("a.txt"));
+        assertNothingStaged();
+    }
+
+    @Test
+    public void testPathOutsideWorkspaceRejected() throws Exception {
+        final PatchApplier.Result result =
+                apply("--- /dev/null\n+++ b/../escape.txt\n@@ -0,0 +1 @@\n+gotcha\n", false);
+
+        assertFalse(result.isSuccessful());
+        assertFalse(Files.exists(workspace.resolveSibling("escape.txt")));
+    }
+
+    @Test
+    public void testInterdiff() throws Exception {
+        // The workspace has the previous diff applied.
+        write("a.txt", "A\n");
+        write("b.txt", "B\n");
+        write("c.txt", "c\n");
+
+        final PatchApplier.Result result = applyInterdiff(PREVIOUS_DIFF, NEW_DIFF);
+
+        // a.txt is changed in the same way by both diffs, so is left alone.
+        assertTrue(result.isSuccessful(), result.getErrors().toString());
+        assertEquals(List.of("b.txt", "c.txt", "d.txt"), result.getFiles());
+        assertEquals("A\n", read("a.txt"));
+        assertEquals("BB\n", read("b.txt"));
+        assertFalse(Files.exists(workspace.resolve("c.txt")));
+        assertEquals("d\n", read("d.txt"));
+    }
+
+    @Test
+    public void testInterdiffWorkspaceReset() throws Exception {
+        // The workspace no longer has the previous diff applied.
+        write("a.txt", "a\n");
+        write("b.txt", "b\n");
+
+        final PatchApplier.Result result = applyInterdiff(PREVIOUS_DIFF, NEW_DIFF);
+
+        assertFalse(result.isSuccessful());
+        assertEquals("a\n", read("a.txt"));
+        assertEquals("b\n", read("b.txt"));
+        assertFalse(Files.exists(workspace.resolve("d.txt")));
+    }
+}
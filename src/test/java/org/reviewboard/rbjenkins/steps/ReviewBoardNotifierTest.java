@@ -2,6 +2,8 @@ package org.reviewboard.rbjenkins.steps;
 
 import hudson.model.*;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import jenkins.model.GlobalConfiguration;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -35,10 +37,7 @@ public class ReviewBoardNotifierTest {
     @AfterEach
     public void resetGlobalConfig() {
         // Ensure that each test has a clean global config
-        GlobalConfiguration.all()
-                .get(ReviewBoardGlobalConfiguration.class)
-                .getServerConfigurations()
-                .clear();
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
     }
 
     public void setupGlobalConfig() {
@@ -49,7 +48,7 @@ public class ReviewBoardNotifierTest {
         ReviewBoardServerConfiguration serverConfig =
                 new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_API_TOKEN);
 
-        globalConfig.getServerConfigurations().add(serverConfig);
+        globalConfig.setServerConfigurations(List.of(serverConfig));
     }
 
     public void addBuildParameters(final FreeStyleProject project) throws IOException {
@@ -141,7 +140,7 @@ public class ReviewBoardNotifierTest {
 
         ReviewBoardNotifier publisher = new ReviewBoardNotifier();
         publisher = Mockito.spy(publisher);
-        Mockito.doNothing()
+        Mockito.doReturn(CompletableFuture.completedFuture(null))
                 .when(publisher)
                 .updateStatusUpdate(
                         ArgumentMatchers.any(ReviewRequest.class),
@@ -154,6 +153,7 @@ public class ReviewBoardNotifierTest {
 
         final FreeStyleBuild build = project.scheduleBuild2(0).get();
         jenkins.assertBuildStatus(result, build);
+        jenkins.assertLogContains("Queued the result of the build to be sent to Review Board", build);
 
         Mockito.verify(publisher, Mockito.times(1))
                 .updateStatusUpdate(
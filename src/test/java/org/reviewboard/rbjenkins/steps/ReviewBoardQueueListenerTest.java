@@ -0,0 +1,184 @@
+package org.reviewboard.rbjenkins.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.*;
+import hudson.util.Secret;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.common.DiffCache;
+import org.reviewboard.rbjenkins.common.ReviewRequest;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class ReviewBoardQueueListenerTest {
+    private static final String REVIEWBOARD_CREDENTIALS = "api_token";
+
+    private JenkinsRule jenkins;
+    private HttpServer server;
+    private String url;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final List<String> statusUpdates = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        this.jenkins = rule;
+
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/review-requests/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+
+            if (path.contains("/status-updates/")) {
+                statusUpdates.add(path
+                        + " "
+                        + URLDecoder.decode(
+                                new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8),
+                                StandardCharsets.UTF_8));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                downloads.incrementAndGet();
+
+                final byte[] body = "diff".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+
+            exchange.close();
+        });
+        server.start();
+
+        url = String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+        GlobalConfiguration.all()
+                .get(ReviewBoardGlobalConfiguration.class)
+                .setServerConfigurations(List.of(new ReviewBoardServerConfiguration(url, REVIEWBOARD_CREDENTIALS)));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
+    }
+
+    private FreeStyleProject createProject() throws Exception {
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", "1"),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", "5"),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", "2")));
+
+        return project;
+    }
+
+    private ParametersAction revision(final int revision, final int statusUpdateId) {
+        return new ParametersAction(
+                new StringParameterValue("REVIEWBOARD_SERVER", url),
+                new StringParameterValue("REVIEWBOARD_REVIEW_ID", "1"),
+                new StringParameterValue("REVIEWBOARD_DIFF_REVISION", Integer.toString(revision)),
+                new StringParameterValue("REVIEWBOARD_STATUS_UPDATE_ID", Integer.toString(statusUpdateId)));
+    }
+
+    private void waitForStatusUpdate(final String update) throws InterruptedException {
+        while (statusUpdates.stream().noneMatch(u -> u.contains(update))) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testQueuedBuildPrefetchesDiff() throws Exception {
+        final FreeStyleProject project = createProject();
+
+        // Keep the build in the queue while the diff is fetched.
+        project.scheduleBuild2(3600);
+
+        final ReviewRequest reviewRequest = new ReviewRequest(1, 5, 2, new URL(url));
+
+        while (DiffCache.get().getChecksum(reviewRequest) == null) {
+            Thread.sleep(50);
+        }
+
+        assertNotNull(Queue.getInstance().getItem(project));
+        assertEquals(1, downloads.get());
+        assertEquals(List.of(), statusUpdates);
+
+        Queue.getInstance().cancel(project);
+    }
+
+    @Test
+    public void testQueuedBuildReported() throws Exception {
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+        globalConfig.setPrefetchDiffs(false);
+        globalConfig.setReportQueuedBuilds(true);
+
+        final FreeStyleProject project = createProject();
+        project.scheduleBuild2(3600);
+
+        waitForStatusUpdate("/status-updates/2/ state=pending&description=waiting in queue");
+
+        Queue.getInstance().cancel(project);
+
+        waitForStatusUpdate("/status-updates/2/ state=error&description=build cancelled before it started.");
+        assertEquals(0, downloads.get());
+    }
+
+    @Test
+    public void testQueuedBuildSuperseded() throws Exception {
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+        globalConfig.setPrefetchDiffs(false);
+        globalConfig.setCancelSupersededBuilds(true);
+
+        final FreeStyleProject project = createProject();
+        project.scheduleBuild2(3600, revision(3, 2));
+        project.scheduleBuild2(3600, revision(4, 3));
+
+        waitForStatusUpdate("/status-updates/2/ state=error&description=build superseded by diff revision 4.");
+
+        assertEquals(1, Queue.getInstance().getItems(project).size());
+        assertEquals(0, downloads.get());
+
+        Queue.getInstance().cancel(project);
+    }
+
+    @Test
+    public void testRunningBuildSuperseded() throws Exception {
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setCancelSupersededBuilds(true);
+
+        final FreeStyleProject project = createProject();
+        project.getBuildersList().add(new SleepBuilder(60000));
+        project.getPublishersList().add(new ReviewBoardNotifier());
+
+        final FreeStyleBuild build = project.scheduleBuild2(0, revision(3, 2)).waitForStart();
+        project.scheduleBuild2(3600, revision(4, 3));
+
+        jenkins.assertBuildStatus(Result.ABORTED, jenkins.waitForCompletion(build));
+        jenkins.assertLogContains("build superseded by diff revision 4.", build);
+        waitForStatusUpdate("/status-updates/2/ state=error&description=build superseded by diff revision 4.");
+
+        Queue.getInstance().cancel(project);
+    }
+}
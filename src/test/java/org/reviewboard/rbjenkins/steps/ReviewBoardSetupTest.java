@@ -1,22 +1,45 @@
 package org.reviewboard.rbjenkins.steps;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
 import hudson.model.*;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
 import org.apache.commons.lang3.ArrayUtils;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
+import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.FakeLauncher;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.PretendSlave;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.common.DiffCache;
 import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
 import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
 
@@ -28,20 +51,32 @@ public class ReviewBoardSetupTest {
     private static final String STATUS_UPDATE_ID = "2";
     private static final String DIFF_REVISION = "3";
 
+    private static final String DIFF = "diff --git a/README b/README\n"
+            + "--- a/README\n"
+            + "+++ b/README\n"
+            + "@@ -1 +1 @@\n"
+            + "-Hello\n"
+            + "+Hello, world\n";
+
     private JenkinsRule jenkins;
+    private HttpServer server;
 
     @BeforeEach
     public void setUp(JenkinsRule rule) {
         this.jenkins = rule;
     }
 
+    @AfterEach
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
     @AfterEach
     public void resetGlobalConfig() {
         // Ensure that each test has a clean global config
-        GlobalConfiguration.all()
-                .get(ReviewBoardGlobalConfiguration.class)
-                .getServerConfigurations()
-                .clear();
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
     }
 
     public void setupGlobalConfig() {
@@ -56,13 +91,66 @@ public class ReviewBoardSetupTest {
             ReviewBoardServerConfiguration serverConfig =
                     new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS);
 
-            globalConfig.getServerConfigurations().add(serverConfig);
+            globalConfig.setServerConfigurations(List.of(serverConfig));
         }
     }
 
+    /**
+     * Starts a fake Review Board server which serves DIFF as diff revision
+     * DIFF_REVISION of review request REVIEW_ID, and configures it as the
+     * only Review Board server.
+     * @return URL of the server
+     */
+    public String startReviewBoardServer() throws IOException {
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+
+            if (path.equals("/api/review-requests/" + REVIEW_ID + "/diffs/" + DIFF_REVISION + "/")
+                    && "text/x-patch".equals(exchange.getRequestHeaders().getFirst("Accept"))) {
+                final byte[] body = DIFF.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } else {
+                exchange.sendResponseHeaders(path.contains("/status-updates/") ? 200 : 404, -1);
+            }
+
+            exchange.close();
+        });
+        server.start();
+
+        final String url = String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+        GlobalConfiguration.all()
+                .get(ReviewBoardGlobalConfiguration.class)
+                .setServerConfigurations(List.of(new ReviewBoardServerConfiguration(url, REVIEWBOARD_CREDENTIALS)));
+
+        return url;
+    }
+
+    /**
+     * Returns a setup step which fetches and applies the patch itself,
+     * rather than with rbt patch.
+     * @param downloadOnly Whether to only download the patch
+     * @return Setup step
+     */
+    private static ReviewBoardSetup createSetup(final boolean downloadOnly) {
+        final ReviewBoardSetup builder = new ReviewBoardSetup(downloadOnly, true);
+        builder.setUseRBTools(false);
+
+        return builder;
+    }
+
     public void addBuildParameters(final FreeStyleProject project) throws IOException {
-        final StringParameterDefinition serverURL =
-                new StringParameterDefinition("REVIEWBOARD_SERVER", REVIEWBOARD_URL);
+        addBuildParameters(project, REVIEWBOARD_URL);
+    }
+
+    public void addBuildParameters(final FreeStyleProject project, final String url) throws IOException {
+        final StringParameterDefinition serverURL = new StringParameterDefinition("REVIEWBOARD_SERVER", url);
         final StringParameterDefinition reviewId = new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID);
         final StringParameterDefinition diffRevision =
                 new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", DIFF_REVISION);
@@ -92,6 +180,37 @@ public class ReviewBoardSetupTest {
                 new ReviewBoardSetup(true, true), project.getBuildersList().get(0));
     }
 
+    @Test
+    public void testOldConfigurationUsesRBTools() {
+        // Configurations saved before useRBTools existed keep using rbt.
+        final ReviewBoardSetup builder = (ReviewBoardSetup) Jenkins.XSTREAM2.fromXML(
+                "<org.reviewboard.rbjenkins.steps.ReviewBoardSetup>"
+                        + "<downloadOnly>false</downloadOnly>"
+                        + "<installRBTools>true</installRBTools>"
+                        + "</org.reviewboard.rbjenkins.steps.ReviewBoardSetup>");
+        assertTrue(builder.getUseRBTools());
+
+        final ReviewBoardSetup saved = (ReviewBoardSetup) Jenkins.XSTREAM2.fromXML(
+                "<org.reviewboard.rbjenkins.steps.ReviewBoardSetup>"
+                        + "<downloadOnly>false</downloadOnly>"
+                        + "<installRBTools>true</installRBTools>"
+                        + "<useRBTools>false</useRBTools>"
+                        + "</org.reviewboard.rbjenkins.steps.ReviewBoardSetup>");
+        assertFalse(saved.getUseRBTools());
+    }
+
+    @Test
+    public void testConfigRoundtripPathFilters() throws Exception {
+        setupGlobalConfig();
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setIncludes("src/**\nREADME");
+        builder.setExcludes("docs/");
+        project.getBuildersList().add(builder);
+        project = jenkins.configRoundtrip(project);
+        jenkins.assertEqualDataBoundBeans(builder, project.getBuildersList().get(0));
+    }
+
     @Test
     public void testBuildNoParameters() throws Exception {
         setupGlobalConfig();
@@ -125,6 +244,275 @@ public class ReviewBoardSetupTest {
         jenkins.assertLogContains("URL provided in REVIEWBOARD_SERVER is not a valid URL.", build);
     }
 
+    @Test
+    public void testBuildDownloadsPatch() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+        project.getBuildersList().add(createSetup(true));
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.SUCCESS, build);
+
+        // The patch is fetched from the API without running rbt.
+        assertEquals(DIFF, build.getWorkspace().child("patch.diff").readToString());
+    }
+
+    @Test
+    public void testBuildAppliesPatch() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+        project.getBuildersList().add(createSetup(false));
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Hello\n", "UTF-8");
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.SUCCESS, build);
+        jenkins.assertLogContains("Patched 1 files", build);
+        jenkins.assertLogContains("Review Board setup timings:", build);
+        jenkins.assertLogContains("download diff revision 3", build);
+        jenkins.assertLogContains("apply patch", build);
+
+        // The patch is applied without running any commands, and isn't left
+        // in the workspace.
+        assertEquals("Hello, world\n", build.getWorkspace().child("README").readToString());
+        assertFalse(build.getWorkspace().child("patch.diff").exists());
+    }
+
+    @Test
+    public void testBuildRecordsChangedFiles() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+        project.getBuildersList().add(createSetup(false));
+
+        final CaptureEnvironmentBuilder captureEnvironment = new CaptureEnvironmentBuilder();
+        project.getBuildersList().add(captureEnvironment);
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Hello\n", "UTF-8");
+
+        final FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("1 files changed, 1 lines added, 1 lines removed", build);
+
+        final EnvVars env = captureEnvironment.getEnvVars();
+        assertEquals("README", env.get("REVIEWBOARD_CHANGED_FILES"));
+        assertEquals("1", env.get("REVIEWBOARD_CHANGED_FILES_COUNT"));
+        assertEquals("1", env.get("REVIEWBOARD_LINES_ADDED"));
+        assertEquals("1", env.get("REVIEWBOARD_LINES_REMOVED"));
+        assertEquals(
+                "M\t1\t1\tREADME\n",
+                new FilePath(new File(env.get("REVIEWBOARD_CHANGED_FILES_MANIFEST"))).readToString());
+    }
+
+    @Test
+    public void testBuildSkipsPatchAlreadyApplied() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", DIFF_REVISION),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", STATUS_UPDATE_ID),
+                new StringParameterDefinition("GIT_COMMIT", "0123456789abcdef")));
+        project.getBuildersList().add(createSetup(false));
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Hello\n", "UTF-8");
+
+        jenkins.buildAndAssertSuccess(project);
+
+        // The same revision on the same commit is already in the workspace,
+        // so the diff isn't even read from the cache.
+        final long cacheLookups = DiffCache.get().getHits() + DiffCache.get().getMisses();
+        final FreeStyleBuild second = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("Diff revision 3 of review request 1 is already applied", second);
+        jenkins.assertLogNotContains("Patched", second);
+        jenkins.assertLogNotContains("download diff", second);
+        jenkins.assertLogContains("1 files changed, 1 lines added, 1 lines removed", second);
+        assertEquals(cacheLookups, DiffCache.get().getHits() + DiffCache.get().getMisses());
+        assertEquals("Hello, world\n", second.getWorkspace().child("README").readToString());
+
+        // Once the workspace is reset, the patch is applied again.
+        second.getWorkspace().child("README").write("Hello\n", "UTF-8");
+
+        final FreeStyleBuild third = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("Patched 1 files", third);
+        assertEquals("Hello, world\n", third.getWorkspace().child("README").readToString());
+    }
+
+    @Test
+    public void testBuildSkipsPatchAlreadyAppliedFromEquivalentServerURL() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", DIFF_REVISION),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", STATUS_UPDATE_ID),
+                new StringParameterDefinition("GIT_COMMIT", "0123456789abcdef")));
+        project.getBuildersList().add(createSetup(false));
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Hello\n", "UTF-8");
+
+        jenkins.buildAndAssertSuccess(project);
+
+        // The same server without the trailing slash still finds the diff
+        // already applied to the workspace.
+        project.removeProperty(ParametersDefinitionProperty.class);
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url.substring(0, url.length() - 1)),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", DIFF_REVISION),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", STATUS_UPDATE_ID),
+                new StringParameterDefinition("GIT_COMMIT", "0123456789abcdef")));
+
+        final FreeStyleBuild second = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("Diff revision 3 of review request 1 is already applied", second);
+        jenkins.assertLogNotContains("Patched", second);
+    }
+
+    @Test
+    public void testBuildSkipsPatchAlreadyAppliedAtGitHead() throws Exception {
+        final String url = startReviewBoardServer();
+        final List<String> ranCommands = Collections.synchronizedList(new ArrayList<>());
+        final byte[] head = "0123456789abcdef0123456789abcdef01234567\n".getBytes(StandardCharsets.UTF_8);
+
+        // Nothing sets GIT_COMMIT, as in a Pipeline, so the commit comes from
+        // Git itself.
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            final String command = String.join(" ", procStarter.cmds());
+            ranCommands.add(command);
+
+            if (command.equals("git rev-parse --verify HEAD")) {
+                procStarter.stdout().write(head);
+            }
+
+            return new FakeLauncher.FinishedProc(0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+        project.getBuildersList().add(createSetup(false));
+        project.setAssignedNode(slave);
+
+        final FilePath workspace = slave.getWorkspaceFor(project);
+        workspace.child(".git").mkdirs();
+        workspace.child("README").write("Hello\n", "UTF-8");
+
+        jenkins.buildAndAssertSuccess(project);
+
+        final FreeStyleBuild second = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("Diff revision 3 of review request 1 is already applied", second);
+        jenkins.assertLogNotContains("Patched", second);
+        assertTrue(ranCommands.contains("git rev-parse --verify HEAD"));
+    }
+
+    @Test
+    public void testBuildSkippedByPathFilters() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+
+        final ReviewBoardSetup builder = createSetup(false);
+        builder.setIncludes("src/**, docs/");
+        project.getBuildersList().add(builder);
+        project.getBuildersList().add(new FailureBuilder());
+        project.getPublishersList().add(new ReviewBoardNotifier());
+
+        // The diff only changes README, so nothing after the setup step runs.
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.NOT_BUILT, build);
+        jenkins.assertLogContains("No files matching the path filters were changed", build);
+        jenkins.assertLogContains("build skipped, no files matching the path filters changed.", build);
+        jenkins.assertLogNotContains("Patched", build);
+    }
+
+    @Test
+    public void testPipelineSkippedByPathFilters() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", DIFF_REVISION),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", STATUS_UPDATE_ID)));
+        job.setDefinition(new CpsFlowDefinition(
+                "node {\n"
+                        + "    withReviewBoard {\n"
+                        + "        publishReview downloadOnly: false, installRBTools: false, useRBTools: false,"
+                        + " includes: 'src/**'\n"
+                        + "        echo 'after the setup step'\n"
+                        + "    }\n"
+                        + "}",
+                true));
+
+        // The diff only changes README, so the script stops at the setup
+        // step, and the build is reported as skipped rather than succeeded.
+        final WorkflowRun run = jenkins.buildAndAssertStatus(Result.NOT_BUILT, job);
+        jenkins.assertLogContains("No files matching the path filters were changed", run);
+        jenkins.assertLogNotContains("after the setup step", run);
+        assertEquals(
+                "build skipped, no files matching the path filters changed.",
+                BuildStatus.of(run.getResult(), BuildStatus.getCausesOfInterruption(run)).description());
+    }
+
+    @Test
+    public void testBuildMatchesPathFilters() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+
+        final ReviewBoardSetup builder = createSetup(false);
+        builder.setIncludes("src/**\nREADME*");
+        builder.setExcludes("**/*.md");
+        project.getBuildersList().add(builder);
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Hello\n", "UTF-8");
+
+        final FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+        jenkins.assertLogContains("README matches the path filters", build);
+        jenkins.assertLogContains("Patched 1 files", build);
+
+        // Excludes win over includes.
+        builder.setExcludes("README");
+        jenkins.assertBuildStatus(Result.NOT_BUILT, project.scheduleBuild2(0).get());
+    }
+
+    @Test
+    public void testBuildPatchDoesNotApply() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project, url);
+        project.getBuildersList().add(createSetup(false));
+        jenkins.jenkins.getWorkspaceFor(project).child("README").write("Goodbye\n", "UTF-8");
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.FAILURE, build);
+        jenkins.assertLogContains("README: hunk #1 at line 1 does not apply", build);
+        assertEquals("Goodbye\n", build.getWorkspace().child("README").readToString());
+    }
+
+    @Test
+    public void testBuildPatchNotFound() throws Exception {
+        final String url = startReviewBoardServer();
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", REVIEW_ID),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", "4"),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", STATUS_UPDATE_ID)));
+        project.getBuildersList().add(createSetup(true));
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.FAILURE, build);
+        jenkins.assertLogContains("Diff revision 4 of review request 1 not found", build);
+    }
+
     @Test
     public void testBuildWithParametersRBToolsAvailable() throws Exception {
         setupGlobalConfig();
@@ -212,10 +600,10 @@ public class ReviewBoardSetupTest {
         final FreeStyleBuild build = project.scheduleBuild2(0).get();
         jenkins.assertBuildStatus(Result.SUCCESS, build);
 
-        // A virtualenv is created, rbtools is installed into it, and the patch
-        // is applied using the rbt from the virtualenv. The virtualenv layout
-        // differs on Windows, so account for both the path separator and the
-        // "Scripts"/".exe" naming used there.
+        // A virtualenv is created in the node's cache directory, rbtools is
+        // installed into it, and the patch is applied using the rbt from the
+        // virtualenv. The virtualenv layout differs on Windows, so account for
+        // both the path separator and the "Scripts"/".exe" naming used there.
         final boolean isUnix = File.separatorChar == '/';
         final String binDir = isUnix ? "bin" : "Scripts";
         final String exeSuffix = isUnix ? "" : ".exe";
@@ -223,14 +611,208 @@ public class ReviewBoardSetupTest {
 
         assertTrue(ranCommands.stream()
                 .map(c -> c.replace('\\', '/'))
-                .anyMatch(c -> c.matches("python3 -m venv .*\\.rbtools-venv")));
+                .anyMatch(c -> c.matches("python3 -m venv .*/caches/rbtools/pip-latest/venv")));
         assertTrue(ranCommands.stream()
                 .map(c -> c.replace('\\', '/'))
-                .anyMatch(
-                        c -> c.matches(".*\\.rbtools-venv/" + binDir + "/pip" + exeSuffixRegex + " install rbtools")));
+                .anyMatch(c -> c.matches(
+                        ".*/caches/rbtools/pip-latest/venv/" + binDir + "/pip" + exeSuffixRegex + " install rbtools")));
         assertTrue(ranCommands.stream()
                 .map(c -> c.replace('\\', '/'))
-                .anyMatch(c -> c.contains(".rbtools-venv/" + binDir + "/rbt" + exeSuffix + " patch ")));
+                .anyMatch(c ->
+                        c.contains("/caches/rbtools/pip-latest/venv/" + binDir + "/rbt" + exeSuffix + " patch ")));
+        assertTrue(ranCommands.stream().noneMatch(c -> c.contains(".rbtools-venv")));
+    }
+
+    @Test
+    public void testBuildInstallsPinnedRBToolsVersion() throws Exception {
+        setupGlobalConfig();
+        final List<String> ranCommands = Collections.synchronizedList(new ArrayList<>());
+
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            final String command = String.join(" ", procStarter.cmds());
+
+            if (command.endsWith("--version")) {
+                return new FakeLauncher.FinishedProc(1);
+            }
+
+            ranCommands.add(command.replace('\\', '/'));
+            return new FakeLauncher.FinishedProc(0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project);
+
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setUseRBTools(true);
+        builder.setRbtoolsVersion("5.0");
+        project.getBuildersList().add(builder);
+        project.setAssignedNode(slave);
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.SUCCESS, build);
+
+        assertTrue(ranCommands.stream()
+                .anyMatch(c -> c.matches(".*/caches/rbtools/pip-5\\.0/venv/.* install rbtools==5\\.0")));
+    }
+
+    @Test
+    public void testInvalidRBToolsVersionRejected() throws Exception {
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        final ReviewBoardSetup.DescriptorImpl descriptor =
+                jenkins.jenkins.getDescriptorByType(ReviewBoardSetup.DescriptorImpl.class);
+
+        // The version is part of the RBTools cache path, so it mustn't be
+        // able to point outside it.
+        assertThrows(IllegalArgumentException.class, () -> builder.setRbtoolsVersion("../../.."));
+        assertThrows(IllegalArgumentException.class, () -> builder.setRbtoolsVersion(".."));
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckRbtoolsVersion("../../..").kind);
+
+        builder.setRbtoolsVersion("5.0.1rc1+local");
+        assertEquals("5.0.1rc1+local", builder.getRbtoolsVersion());
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckRbtoolsVersion("1!5.0.post1").kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckRbtoolsVersion("").kind);
+    }
+
+    @Test
+    public void testConfigRoundtripInstaller() throws Exception {
+        setupGlobalConfig();
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setInstaller(RBToolsInstaller.WHEELHOUSE);
+        builder.setWheelhouse("rbtools.zip");
+
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getBuildersList().add(builder);
+        project = jenkins.configRoundtrip(project);
+        jenkins.assertEqualDataBoundBeans(builder, project.getBuildersList().get(0));
+    }
+
+    @Test
+    public void testBuildInstallsRBToolsWithUv() throws Exception {
+        setupGlobalConfig();
+        final List<String> ranCommands = Collections.synchronizedList(new ArrayList<>());
+
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            final String command = String.join(" ", procStarter.cmds());
+
+            // uv is available, but rbtools is not.
+            if (command.endsWith("--version")) {
+                return new FakeLauncher.FinishedProc(command.equals("uv --version") ? 0 : 1);
+            }
+
+            ranCommands.add(command.replace('\\', '/'));
+            return new FakeLauncher.FinishedProc(0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project);
+
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setUseRBTools(true);
+        builder.setInstaller(RBToolsInstaller.UV);
+        project.getBuildersList().add(builder);
+        project.setAssignedNode(slave);
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.SUCCESS, build);
+
+        assertTrue(ranCommands.stream().anyMatch(c -> c.matches("uv venv .*/caches/rbtools/uv-latest/venv")));
+        assertTrue(ranCommands.stream()
+                .anyMatch(c -> c.matches("uv pip install --python .*/caches/rbtools/uv-latest/venv/.* rbtools")));
+        assertTrue(ranCommands.stream().noneMatch(c -> c.startsWith("python3 ")));
+    }
+
+    @Test
+    public void testBuildInstallsRBToolsFromWheelhouse() throws Exception {
+        setupGlobalConfig();
+        final File wheelhouse = new File(jenkins.jenkins.getRootDir(), "rbtools-wheelhouses/offline");
+        assertTrue(wheelhouse.mkdirs());
+        Files.writeString(new File(wheelhouse, "requirements.txt").toPath(), "rbtools==5.0 --hash=sha256:0000\n");
+
+        final List<String> ranCommands = Collections.synchronizedList(new ArrayList<>());
+
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            final String command = String.join(" ", procStarter.cmds());
+
+            if (command.endsWith("--version")) {
+                return new FakeLauncher.FinishedProc(1);
+            }
+
+            ranCommands.add(command.replace('\\', '/'));
+            return new FakeLauncher.FinishedProc(0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project);
+
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setUseRBTools(true);
+        builder.setInstaller(RBToolsInstaller.WHEELHOUSE);
+        builder.setWheelhouse("offline");
+        project.getBuildersList().add(builder);
+        project.setAssignedNode(slave);
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.SUCCESS, build);
+
+        // The wheelhouse is copied into the node's cache and installed from
+        // without using the package index. It gets its own virtualenv, keyed
+        // by its requirements, rather than reusing one installed by pip.
+        final String cacheDir =
+                "caches/rbtools/wheelhouse-" + Util.getDigestOf(new File(wheelhouse, "requirements.txt"));
+        assertTrue(ranCommands.stream().anyMatch(c -> c.matches("python3 -m venv .*/" + cacheDir + "/venv")));
+        assertTrue(ranCommands.stream()
+                .anyMatch(c -> c.matches(".* install --no-index --find-links .*/" + cacheDir + "/wheelhouse "
+                        + "--require-hashes -r .*/" + cacheDir + "/wheelhouse/requirements.txt")));
+    }
+
+    @Test
+    public void testBuildWheelhouseOutsideHomeRejected() throws Exception {
+        setupGlobalConfig();
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            final String command = String.join(" ", procStarter.cmds());
+            return new FakeLauncher.FinishedProc(command.endsWith("--version") ? 1 : 0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project);
+
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setUseRBTools(true);
+        builder.setInstaller(RBToolsInstaller.WHEELHOUSE);
+        builder.setWheelhouse("../secrets");
+        project.getBuildersList().add(builder);
+        project.setAssignedNode(slave);
+
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+        jenkins.assertBuildStatus(Result.FAILURE, build);
+        jenkins.assertLogContains("RBTools wheelhouse '../secrets' not found", build);
+    }
+
+    @Test
+    public void testRBToolsProbeCached() throws Exception {
+        setupGlobalConfig();
+        final AtomicInteger probes = new AtomicInteger();
+
+        final PretendSlave slave = jenkins.createPretendSlave(procStarter -> {
+            if (String.join(" ", procStarter.cmds()).equals("rbt --version")) {
+                probes.incrementAndGet();
+            }
+
+            return new FakeLauncher.FinishedProc(0);
+        });
+
+        final FreeStyleProject project = jenkins.createFreeStyleProject();
+        addBuildParameters(project);
+        final ReviewBoardSetup builder = new ReviewBoardSetup(false, true);
+        builder.setUseRBTools(true);
+        project.getBuildersList().add(builder);
+        project.setAssignedNode(slave);
+
+        jenkins.assertBuildStatus(Result.SUCCESS, project.scheduleBuild2(0).get());
+        jenkins.assertBuildStatus(Result.SUCCESS, project.scheduleBuild2(0).get());
+
+        // The second build reuses the result of the first build's probe.
+        assertEquals(1, probes.get());
     }
 
     @Test
@@ -0,0 +1,136 @@
+package org.reviewboard.rbjenkins.steps;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.*;
+import hudson.util.Secret;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class ReviewBoardStatusUpdateStepTest {
+    private static final String REVIEWBOARD_CREDENTIALS = "api_token";
+
+    private JenkinsRule jenkins;
+    private HttpServer server;
+    private String url;
+    private final List<String> statusUpdates = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        this.jenkins = rule;
+
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString("token")));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/review-requests/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+
+            if (path.contains("/status-updates/")) {
+                statusUpdates.add(path
+                        + " "
+                        + URLDecoder.decode(
+                                new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8),
+                                StandardCharsets.UTF_8));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+
+            exchange.close();
+        });
+        server.start();
+
+        url = String.format("http://127.0.0.1:%d/", server.getAddress().getPort());
+
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+        globalConfig.setServerConfigurations(List.of(new ReviewBoardServerConfiguration(url, REVIEWBOARD_CREDENTIALS)));
+        globalConfig.setPrefetchDiffs(false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
+    }
+
+    private WorkflowJob createJob(final String script) throws Exception {
+        final WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", url),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", "1"),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", "3"),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", "2")));
+        job.setDefinition(new CpsFlowDefinition(script, true));
+
+        return job;
+    }
+
+    @Test
+    public void testStatusUpdateWithoutNode() throws Exception {
+        final WorkflowJob job = createJob("reviewBoardStatusUpdate state: 'pending'\n"
+                + "reviewBoardStatusUpdate state: 'done-success', description: 'checks passed.'");
+
+        jenkins.buildAndAssertSuccess(job);
+
+        // Each step waits for Review Board, so both updates have been sent
+        // by the time the build finishes.
+        assertTrue(statusUpdates.stream()
+                .anyMatch(u -> u.contains("/status-updates/2/ state=pending&description=build running")));
+        assertTrue(statusUpdates.stream()
+                .anyMatch(u -> u.contains("/status-updates/2/ state=done-success&description=checks passed.")));
+    }
+
+    @Test
+    public void testStatusUpdateWithoutWaiting() throws Exception {
+        final WorkflowJob job = createJob("reviewBoardStatusUpdate state: 'pending', wait: false");
+
+        jenkins.buildAndAssertSuccess(job);
+
+        // The step finishes once the update is queued, so it may still be
+        // on its way.
+        while (statusUpdates.stream()
+                .noneMatch(u -> u.contains("/status-updates/2/ state=pending&description=build running"))) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testStatusUpdateUnknownState() throws Exception {
+        final WorkflowJob job = createJob("reviewBoardStatusUpdate state: 'finished'");
+
+        final WorkflowRun run = jenkins.buildAndAssertStatus(Result.FAILURE, job);
+        jenkins.assertLogContains("Unknown Review Board status update state: finished", run);
+    }
+
+    @Test
+    public void testStatusUpdateMissingParameters() throws Exception {
+        final WorkflowJob job = jenkins.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition("reviewBoardStatusUpdate state: 'done-failure'", true));
+
+        final WorkflowRun run = jenkins.buildAndAssertStatus(Result.FAILURE, job);
+        jenkins.assertLogContains("REVIEWBOARD_SERVER not provided in parameters", run);
+    }
+}
@@ -0,0 +1,137 @@
+package org.reviewboard.rbjenkins.steps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.*;
+import hudson.util.Secret;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.reviewboard.rbjenkins.config.ReviewBoardGlobalConfiguration;
+import org.reviewboard.rbjenkins.config.ReviewBoardServerConfiguration;
+
+@WithJenkins
+public class ReviewBoardTriggerActionTest {
+    private static final String REVIEWBOARD_URL = "https://reviews.example.com/";
+    private static final String REVIEWBOARD_CREDENTIALS = "api_token";
+    private static final String TOKEN = "secret-token";
+
+    private JenkinsRule jenkins;
+    private FreeStyleProject project;
+
+    @BeforeEach
+    public void setUp(JenkinsRule rule) throws Exception {
+        this.jenkins = rule;
+
+        SystemCredentialsProvider.getInstance()
+                .getCredentials()
+                .add(new StringCredentialsImpl(
+                        CredentialsScope.SYSTEM, REVIEWBOARD_CREDENTIALS, "Description", Secret.fromString(TOKEN)));
+
+        final ReviewBoardGlobalConfiguration globalConfig =
+                GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class);
+        globalConfig.setServerConfigurations(
+                List.of(new ReviewBoardServerConfiguration(REVIEWBOARD_URL, REVIEWBOARD_CREDENTIALS)));
+        globalConfig.setPrefetchDiffs(false);
+
+        project = jenkins.createFreeStyleProject("review");
+        project.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("REVIEWBOARD_SERVER", ""),
+                new StringParameterDefinition("REVIEWBOARD_REVIEW_ID", ""),
+                new StringParameterDefinition("REVIEWBOARD_DIFF_REVISION", ""),
+                new StringParameterDefinition("REVIEWBOARD_STATUS_UPDATE_ID", ""),
+                new StringParameterDefinition("OTHER", "default")));
+
+        // Keep triggered builds in the queue.
+        project.setQuietPeriod(3600);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Queue.getInstance().clear();
+        GlobalConfiguration.all().get(ReviewBoardGlobalConfiguration.class).setServerConfigurations(List.of());
+    }
+
+    private HttpResponse<String> trigger(final String token, final Map<String, String> parameters) throws Exception {
+        final String body = parameters.entrySet().stream()
+                .map(e -> e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(jenkins.getURL() + "reviewboard/build"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+
+        if (token != null) {
+            request.header("Authorization", "token " + token);
+        }
+
+        return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static Map<String, String> parameters(final String statusUpdateId) {
+        return Map.of(
+                "job", "review",
+                "REVIEWBOARD_SERVER", REVIEWBOARD_URL,
+                "REVIEWBOARD_REVIEW_ID", "1",
+                "REVIEWBOARD_DIFF_REVISION", "3",
+                "REVIEWBOARD_STATUS_UPDATE_ID", statusUpdateId);
+    }
+
+    @Test
+    public void testTriggerQueuesBuild() throws Exception {
+        final HttpResponse<String> response = trigger(TOKEN, parameters("2"));
+        assertEquals(201, response.statusCode());
+
+        final Queue.Item item = Queue.getInstance().getItem(project);
+        assertNotNull(item);
+
+        final ParametersAction parameters = item.getAction(ParametersAction.class);
+        assertEquals("3", parameters.getParameter("REVIEWBOARD_DIFF_REVISION").getValue());
+        assertEquals("default", parameters.getParameter("OTHER").getValue());
+    }
+
+    @Test
+    public void testDuplicateTriggerFolded() throws Exception {
+        assertEquals(201, trigger(TOKEN, parameters("2")).statusCode());
+        assertEquals(200, trigger(TOKEN, parameters("2")).statusCode());
+        assertEquals(1, Queue.getInstance().getItems(project).size());
+
+        // A different status update is a different build.
+        assertEquals(201, trigger(TOKEN, parameters("4")).statusCode());
+        assertEquals(2, Queue.getInstance().getItems(project).size());
+    }
+
+    @Test
+    public void testInvalidToken() throws Exception {
+        assertEquals(403, trigger("wrong", parameters("2")).statusCode());
+        assertEquals(403, trigger(null, parameters("2")).statusCode());
+        assertEquals(0, Queue.getInstance().getItems(project).size());
+    }
+
+    @Test
+    public void testInvalidParameters() throws Exception {
+        assertEquals(
+                400,
+                trigger(TOKEN, Map.of("job", "review", "REVIEWBOARD_SERVER", REVIEWBOARD_URL)).statusCode());
+
+        final Map<String, String> parameters = new HashMap<>(parameters("2"));
+        parameters.put("job", "missing");
+        assertEquals(404, trigger(TOKEN, parameters).statusCode());
+    }
+}